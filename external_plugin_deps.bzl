@@ -2,6 +2,7 @@ load("//tools/bzl:maven_jar.bzl", "maven_jar")
 
 def external_plugin_deps():
     CURATOR_VER = "4.2.0"
+    JMH_VER = "1.23"
 
     maven_jar(
         name = "curator-test",
@@ -38,3 +39,27 @@ def external_plugin_deps():
         artifact = "com.gerritforge:global-refdb:3.1.2",
         sha1 = "6ddee3de0f3fe9254453118ae1eca481ec03e957",
     )
+
+    maven_jar(
+        name = "jmh-core",
+        artifact = "org.openjdk.jmh:jmh-core:" + JMH_VER,
+        sha1 = "eb242d3261f3795c8bf09818d17c3241191284a0",
+    )
+
+    maven_jar(
+        name = "jmh-generator-annprocess",
+        artifact = "org.openjdk.jmh:jmh-generator-annprocess:" + JMH_VER,
+        sha1 = "4ea76227ce15d5389a25c005b9b23f7390928fd3",
+    )
+
+    maven_jar(
+        name = "commons-math3",
+        artifact = "org.apache.commons:commons-math3:3.2",
+        sha1 = "ec2544ab27e110d2d431bdad7d538ed509b21e62",
+    )
+
+    maven_jar(
+        name = "jopt-simple",
+        artifact = "net.sf.jopt-simple:jopt-simple:4.6",
+        sha1 = "306816fb57cf94f108a43c95731b08934dcae15c",
+    )
@@ -0,0 +1,84 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper.ZkBenchmarkSupport.PROJECT;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the bulk {@code isUpToDate} of many refs of a project with checking them one at a time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BulkIsUpToDateBenchmark {
+  @Param({"100", "500"})
+  public int numberOfRefs;
+
+  private ZkBenchmarkSupport zk;
+  private List<Ref> refs;
+
+  @Setup
+  public void setup() throws Exception {
+    zk = new ZkBenchmarkSupport();
+    refs = new ArrayList<>(numberOfRefs);
+    for (int i = 0; i < numberOfRefs; i++) {
+      ObjectId objectId = new ObjectId(i, 0, 0, 0, 1);
+      Ref ref = new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, "refs/heads/branch-" + i, objectId);
+      zk.createRef(ref.getName(), objectId);
+      refs.add(ref);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    zk.close();
+  }
+
+  @Benchmark
+  public void oneAtATime(Blackhole blackhole) throws Exception {
+    for (Ref ref : refs) {
+      blackhole.consume(zk.refDb().isUpToDate(PROJECT, ref));
+    }
+  }
+
+  @Benchmark
+  public Map<String, Boolean> bulk() throws Exception {
+    return zk.refDb().isUpToDate(PROJECT, refs);
+  }
+}
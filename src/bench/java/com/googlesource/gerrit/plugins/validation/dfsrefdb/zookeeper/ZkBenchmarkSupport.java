@@ -0,0 +1,109 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper.ZkSharedRefDatabase.pathFor;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper.ZkSharedRefDatabase.writeObjectId;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryNTimes;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.KeeperException;
+import org.eclipse.jgit.lib.ObjectId;
+
+/** Shared ref-db backed by an in-process Zookeeper {@link TestingServer}, for the benchmarks. */
+class ZkBenchmarkSupport implements AutoCloseable {
+  static final Project.NameKey PROJECT = Project.nameKey("benchmark");
+
+  private static final long LOCK_TIMEOUT_MS = 10000;
+
+  private final TestingServer server;
+  private final CuratorFramework curator;
+  private final ScheduledExecutorService executor;
+  private final ZkSharedRefDatabase refDb;
+
+  ZkBenchmarkSupport() throws Exception {
+    this(0);
+  }
+
+  /**
+   * @param groupCommitWindowMicros window of the group commit of the Compare and Swap operations,
+   *     or zero to disable it.
+   */
+  ZkBenchmarkSupport(long groupCommitWindowMicros) throws Exception {
+    server = new TestingServer();
+    curator = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryOneTime(100));
+    curator.start();
+    curator.blockUntilConnected();
+    executor = Executors.newScheduledThreadPool(4);
+
+    DynamicSet<StringDeserializer> deserializers = new DynamicSet<>();
+    deserializers.add("zookeeper", new StringToObjectIdDeserializer());
+    deserializers.add("zookeeper", new StringToLongDeserializer());
+    deserializers.add("zookeeper", new IdentityDeserializer());
+    refDb =
+        new ZkSharedRefDatabase(
+            curator,
+            new ZkConnectionConfig(
+                new RetryNTimes(5, 30),
+                LOCK_TIMEOUT_MS,
+                groupCommitWindowMicros,
+                ZkConnectionConfig.DEFAULT_GROUP_COMMIT_MAX_BATCH_SIZE,
+                false,
+                ZkConnectionConfig.DEFAULT_CIRCUIT_BREAKER_PROBE_INTERVAL_MS),
+            new StringDeserializerFactory(deserializers),
+            new ZkRefCache(curator, ImmutableSet.of(), 1),
+            new ZkRefLocker(
+                new ZkLockRegistry(curator, 10000, 60000),
+                LOCK_TIMEOUT_MS,
+                ZkRefLocker.Mode.MUTEX,
+                3,
+                new RefContentionTracker(60000)),
+            new ZkValueCodec(ZkValueCodec.Encoding.ASCII),
+            new ZkSharedRefDbMetrics(new DisabledMetricMaker(), curator),
+            executor);
+  }
+
+  ZkSharedRefDatabase refDb() {
+    return refDb;
+  }
+
+  /** Creates the ref with {@code value}, unless it already exists. */
+  void createRef(String refName, ObjectId value) throws Exception {
+    try {
+      curator
+          .create()
+          .creatingParentContainersIfNeeded()
+          .forPath(pathFor(PROJECT, refName), writeObjectId(value));
+    } catch (KeeperException.NodeExistsException e) {
+      // Created by another benchmark thread
+    }
+  }
+
+  @Override
+  public void close() throws Exception {
+    executor.shutdown();
+    curator.close();
+    server.close();
+  }
+}
@@ -0,0 +1,150 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper.ZkBenchmarkSupport.PROJECT;
+
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbLockException;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput and latency percentiles of the shared ref-db operations.
+ *
+ * <p>With the {@code uncontended} ref set every benchmark thread works on its own ref, whilst with
+ * the {@code contended} ref set all the threads work on the same ref. The number of threads is set
+ * with the JMH {@code -t} option. A failed Compare and Swap refreshes the value of the ref from the
+ * shared ref-db before returning, as a real client would do, and its time is included. A non-zero
+ * {@code groupCommitWindowMicros} writes the concurrent Compare and Swap operations together.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ZkSharedRefDatabaseBenchmark {
+  static final String CONTENDED = "contended";
+  static final String UNCONTENDED = "uncontended";
+
+  @Param({UNCONTENDED, CONTENDED})
+  public String refSet;
+
+  @Param({"0", "2000"})
+  public long groupCommitWindowMicros;
+
+  private final AtomicInteger threads = new AtomicInteger();
+  private ZkBenchmarkSupport zk;
+
+  @Setup
+  public void setup() throws Exception {
+    zk = new ZkBenchmarkSupport(groupCommitWindowMicros);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    zk.close();
+  }
+
+  @State(Scope.Thread)
+  public static class ThreadRef {
+    private int thread;
+    private int updates;
+    private String refName;
+    private String versionName;
+    private ObjectId current;
+    private long version;
+
+    @Setup
+    public void setup(ZkSharedRefDatabaseBenchmark benchmark) throws Exception {
+      thread = benchmark.threads.incrementAndGet();
+      String suffix = CONTENDED.equals(benchmark.refSet) ? CONTENDED : "thread-" + thread;
+      refName = "refs/heads/" + suffix;
+      versionName = "refs/versions/" + suffix;
+      benchmark.zk.createRef(refName, new ObjectId(thread, 0, 0, 0, 1));
+      benchmark.zk.refDb().compareAndPut(PROJECT, versionName, null, 0L);
+      refresh(benchmark.zk.refDb());
+    }
+
+    Ref ref() {
+      return new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, refName, current);
+    }
+
+    ObjectId nextObjectId() {
+      return new ObjectId(thread, ++updates, 0, 0, 1);
+    }
+
+    void refresh(ZkSharedRefDatabase refDb) {
+      current = refDb.get(PROJECT, refName, ObjectId.class).orElse(ObjectId.zeroId());
+      version = refDb.get(PROJECT, versionName, Long.class).orElse(0L);
+    }
+  }
+
+  @Benchmark
+  public boolean isUpToDate(ThreadRef ref) throws Exception {
+    return zk.refDb().isUpToDate(PROJECT, ref.ref());
+  }
+
+  @Benchmark
+  public boolean compareAndPut(ThreadRef ref) {
+    ObjectId newValue = ref.nextObjectId();
+    if (zk.refDb().compareAndPut(PROJECT, ref.ref(), newValue)) {
+      ref.current = newValue;
+      return true;
+    }
+    ref.refresh(zk.refDb());
+    return false;
+  }
+
+  @Benchmark
+  public boolean compareAndPutGeneric(ThreadRef ref) {
+    if (zk.refDb().compareAndPut(PROJECT, ref.versionName, ref.version, ref.version + 1)) {
+      ref.version++;
+      return true;
+    }
+    ref.refresh(zk.refDb());
+    return false;
+  }
+
+  @Benchmark
+  public Optional<ObjectId> get(ThreadRef ref) {
+    return zk.refDb().get(PROJECT, ref.refName, ObjectId.class);
+  }
+
+  @Benchmark
+  public boolean lockRef(ThreadRef ref) throws Exception {
+    try (AutoCloseable lock = zk.refDb().lockRef(PROJECT, ref.refName)) {
+      return true;
+    } catch (GlobalRefDbLockException e) {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,52 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import com.google.gerrit.common.data.GlobalCapability;
+import com.google.gerrit.extensions.annotations.RequiresCapability;
+import com.google.gerrit.sshd.CommandMetaData;
+import com.google.gerrit.sshd.SshCommand;
+import com.google.inject.Inject;
+import java.io.File;
+import java.util.Optional;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+
+@RequiresCapability(GlobalCapability.ADMINISTRATE_SERVER)
+@CommandMetaData(
+    name = "diff-tree",
+    description = "Compare a dump of a Zookeeper tree with another one or with the current tree")
+final class DiffTreeCommand extends SshCommand {
+  @Option(name = "--shard", metaVar = "SHARD", usage = "shard to compare, the default one if unset")
+  private String shardName = ZkShard.DEFAULT;
+
+  @Argument(index = 0, required = true, metaVar = "FROM", usage = "dump to compare")
+  private File from;
+
+  @Argument(index = 1, metaVar = "TO", usage = "dump to compare with, the current tree if unset")
+  private File to;
+
+  @Inject private ZkTreeExporter exporter;
+
+  @Override
+  protected void run() throws UnloggedFailure, Exception {
+    ZkShard shard = exporter.shard(shardName).orElseThrow(() -> die("unknown shard " + shardName));
+    ZkTreeDump.Diff diff =
+        exporter.diff(
+            shard, from.toPath(), Optional.ofNullable(to).map(File::toPath), stdout::println);
+    stdout.format(
+        "%d added, %d removed, %d changed nodes\n", diff.added, diff.removed, diff.changed);
+  }
+}
@@ -0,0 +1,54 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import com.google.gerrit.common.data.GlobalCapability;
+import com.google.gerrit.extensions.annotations.RequiresCapability;
+import com.google.gerrit.sshd.CommandMetaData;
+import com.google.gerrit.sshd.SshCommand;
+import com.google.inject.Inject;
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import org.kohsuke.args4j.Option;
+
+@RequiresCapability(GlobalCapability.ADMINISTRATE_SERVER)
+@CommandMetaData(
+    name = "export-tree",
+    description = "Dump the Zookeeper tree of a shard to a file of the server")
+final class ExportTreeCommand extends SshCommand {
+  @Option(name = "--shard", metaVar = "SHARD", usage = "shard to export, the default one if unset")
+  private String shardName = ZkShard.DEFAULT;
+
+  @Option(
+      name = "--output",
+      metaVar = "FILE",
+      required = true,
+      usage = "file of the server to write the dump to")
+  private File output;
+
+  @Inject private ZkTreeExporter exporter;
+
+  @Override
+  protected void run() throws UnloggedFailure, Exception {
+    ZkShard shard = exporter.shard(shardName).orElseThrow(() -> die("unknown shard " + shardName));
+    long exported;
+    try (OutputStream out = Files.newOutputStream(output.toPath(), StandardOpenOption.CREATE_NEW)) {
+      exported = exporter.export(shard, out);
+    }
+    stdout.format("Exported %d nodes of shard %s to %s\n", exported, shardName, output);
+  }
+}
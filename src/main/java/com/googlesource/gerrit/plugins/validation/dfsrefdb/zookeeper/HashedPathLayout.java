@@ -0,0 +1,83 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import com.google.common.hash.Hashing;
+import com.google.gerrit.entities.Project;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import org.apache.curator.utils.ZKPaths;
+
+/**
+ * Layout storing every ref in a bucket chosen by the hash of its name.
+ *
+ * <p>The refs of a project are spread across two levels of 256 buckets, and each of them is a
+ * single node named after the escaped ref name, such as:
+ *
+ * <pre>/&lt;project&gt;/hashed-refs/3f/a2/refs%2Fheads%2Fmaster</pre>
+ *
+ * <p>A project with a hundred million refs has less than two thousand nodes per bucket.
+ */
+class HashedPathLayout implements ZkPathLayout {
+  static final String HASHED_REFS = "hashed-refs";
+
+  private static final int LEVELS = 2;
+
+  @Override
+  public String pathFor(Project.NameKey project, String refName) {
+    byte[] hash = Hashing.murmur3_128().hashString(refName, StandardCharsets.UTF_8).asBytes();
+    StringBuilder path = new StringBuilder(refsRoot(project));
+    for (int i = 0; i < LEVELS; i++) {
+      path.append('/').append(String.format("%02x", hash[i] & 0xff));
+    }
+    return path.append('/').append(encode(refName)).toString();
+  }
+
+  @Override
+  public String refsRoot(Project.NameKey project) {
+    return "/" + project + "/" + HASHED_REFS;
+  }
+
+  @Override
+  public Optional<String> refNameOf(Project.NameKey project, String path) {
+    String root = refsRoot(project) + "/";
+    if (!path.startsWith(root)) {
+      return Optional.empty();
+    }
+    String[] components = path.substring(root.length()).split("/");
+    return components.length == LEVELS + 1
+        ? Optional.of(decode(ZKPaths.getNodeFromPath(path)))
+        : Optional.empty();
+  }
+
+  private static String encode(String refName) {
+    try {
+      return URLEncoder.encode(refName, StandardCharsets.UTF_8.name());
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String decode(String node) {
+    try {
+      return URLDecoder.decode(node, StandardCharsets.UTF_8.name());
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,46 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import com.google.gerrit.entities.Project;
+import java.util.Optional;
+
+/**
+ * Layout storing every ref at the path of its name, under the path of its project.
+ *
+ * <p>Parent nodes may end up with a very large number of children, such as the change refs of a
+ * big project.
+ */
+class LiteralPathLayout implements ZkPathLayout {
+  private static final String REFS = "refs";
+
+  @Override
+  public String pathFor(Project.NameKey project, String refName) {
+    return "/" + project + "/" + refName;
+  }
+
+  @Override
+  public String refsRoot(Project.NameKey project) {
+    return "/" + project + "/" + REFS;
+  }
+
+  @Override
+  public Optional<String> refNameOf(Project.NameKey project, String path) {
+    String projectPrefix = "/" + project + "/";
+    return path.startsWith(projectPrefix)
+        ? Optional.of(path.substring(projectPrefix.length()))
+        : Optional.empty();
+  }
+}
@@ -0,0 +1,68 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import com.google.gerrit.common.data.GlobalCapability;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.annotations.RequiresCapability;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.gerrit.sshd.CommandMetaData;
+import com.google.gerrit.sshd.SshCommand;
+import com.google.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+
+@RequiresCapability(GlobalCapability.ADMINISTRATE_SERVER)
+@CommandMetaData(
+    name = "migrate-path-layout",
+    description = "Move the refs of projects from the previous path layout to the configured one")
+final class MigratePathLayoutCommand extends SshCommand {
+  @Option(name = "--all", usage = "migrate all the projects")
+  private boolean all;
+
+  @Argument(index = 0, multiValued = true, metaVar = "PROJECT", usage = "projects to migrate")
+  private List<String> projects = new ArrayList<>();
+
+  @Inject private ZkPathLayoutMigration migration;
+
+  @Inject private ProjectCache projectCache;
+
+  @Override
+  protected void run() throws UnloggedFailure, Exception {
+    if (all == !projects.isEmpty()) {
+      throw die("either --all or a list of projects is required");
+    }
+    if (!migration.isMigrating()) {
+      throw die("ref-database.zookeeper.previousPathLayout is not set");
+    }
+
+    Collection<Project.NameKey> toMigrate = new ArrayList<>();
+    if (all) {
+      toMigrate.addAll(projectCache.all());
+    } else {
+      projects.forEach(project -> toMigrate.add(Project.nameKey(project)));
+    }
+
+    for (Project.NameKey project : toMigrate) {
+      ZkPathLayoutMigration.Outcome outcome = migration.migrate(project);
+      stdout.format(
+          "%s: moved %d refs, %d skipped\n", project, outcome.migrated, outcome.skipped);
+      stdout.flush();
+    }
+  }
+}
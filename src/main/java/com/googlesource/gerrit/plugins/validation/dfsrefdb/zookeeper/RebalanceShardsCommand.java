@@ -0,0 +1,74 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import com.google.gerrit.common.data.GlobalCapability;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.annotations.RequiresCapability;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.gerrit.sshd.CommandMetaData;
+import com.google.gerrit.sshd.SshCommand;
+import com.google.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+
+@RequiresCapability(GlobalCapability.ADMINISTRATE_SERVER)
+@CommandMetaData(
+    name = "rebalance-shards",
+    description = "Move the refs of projects to the Zookeeper shard they are routed to")
+final class RebalanceShardsCommand extends SshCommand {
+  @Option(name = "--all", usage = "rebalance all the projects")
+  private boolean all;
+
+  @Option(name = "--dry-run", usage = "only show the number of nodes to move")
+  private boolean dryRun;
+
+  @Argument(index = 0, multiValued = true, metaVar = "PROJECT", usage = "projects to rebalance")
+  private List<String> projects = new ArrayList<>();
+
+  @Inject private ZkShardRebalancer rebalancer;
+
+  @Inject private ProjectCache projectCache;
+
+  @Override
+  protected void run() throws UnloggedFailure, Exception {
+    if (all == !projects.isEmpty()) {
+      throw die("either --all or a list of projects is required");
+    }
+    if (!rebalancer.isRebalancing()) {
+      throw die("ref-database.zookeeper.rebalancingShards is not set");
+    }
+
+    Collection<Project.NameKey> toRebalance = new ArrayList<>();
+    if (all) {
+      toRebalance.addAll(projectCache.all());
+    } else {
+      projects.forEach(project -> toRebalance.add(Project.nameKey(project)));
+    }
+
+    for (Project.NameKey project : toRebalance) {
+      Map<String, Integer> moved = rebalancer.rebalance(project, dryRun);
+      moved.forEach(
+          (shard, nodes) ->
+              stdout.format(
+                  "%s: %s %d nodes from shard %s\n",
+                  project, dryRun ? "would move" : "moved", nodes, shard));
+    }
+  }
+}
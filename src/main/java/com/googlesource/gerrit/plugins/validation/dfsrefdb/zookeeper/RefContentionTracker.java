@@ -0,0 +1,49 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Recent Compare and Swap conflicts of every ref.
+ *
+ * <p>The conflicts of a ref are forgotten once no new conflict has been recorded for it within the
+ * configured window.
+ */
+public class RefContentionTracker {
+  private static final long MAX_TRACKED_REFS = 10000;
+
+  private final Cache<String, Integer> conflicts;
+
+  public RefContentionTracker(long conflictWindowMs) {
+    this.conflicts =
+        CacheBuilder.newBuilder()
+            .maximumSize(MAX_TRACKED_REFS)
+            .expireAfterWrite(conflictWindowMs, MILLISECONDS)
+            .build();
+  }
+
+  void recordConflict(String refPath) {
+    conflicts.asMap().merge(refPath, 1, Integer::sum);
+  }
+
+  int conflicts(String refPath) {
+    Integer refConflicts = conflicts.getIfPresent(refPath);
+    return refConflicts == null ? 0 : refConflicts;
+  }
+}
@@ -0,0 +1,126 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Set of ref name patterns.
+ *
+ * <p>A pattern is a regular expression when it starts with {@code ^}, a prefix when it ends with
+ * {@code *}, and an exact ref name otherwise.
+ *
+ * <p>The patterns are compiled into a trie of the characters of their literal prefix, so that a
+ * ref name is matched by walking the trie once, whatever the number of patterns. A regular
+ * expression is evaluated only for the ref names starting with the literal characters it begins
+ * with, for example {@code refs/changes/} for {@code ^refs/changes/[0-9]+/[0-9]+/[0-9]+}.
+ */
+public class RefPatternSet {
+  private static final String REGEX_SPECIAL_CHARS = "\\.[]{}()*+?^$|";
+  private static final String REGEX_OPTIONAL_QUANTIFIERS = "*?{";
+
+  private final ImmutableList<String> patterns;
+  private final Node root = new Node();
+
+  private static class Node {
+    final Map<Character, Node> children = new HashMap<>();
+    final List<Pattern> regexes = new ArrayList<>();
+    boolean exactMatch;
+    boolean prefixMatch;
+  }
+
+  public RefPatternSet(Collection<String> patterns) {
+    this.patterns = ImmutableList.copyOf(patterns);
+    for (String pattern : patterns) {
+      if (pattern.startsWith("^")) {
+        nodeFor(literalPrefix(pattern)).regexes.add(Pattern.compile(pattern));
+      } else if (pattern.endsWith("*")) {
+        nodeFor(pattern.substring(0, pattern.length() - 1)).prefixMatch = true;
+      } else {
+        nodeFor(pattern).exactMatch = true;
+      }
+    }
+  }
+
+  public static RefPatternSet empty() {
+    return new RefPatternSet(ImmutableList.of());
+  }
+
+  public boolean isEmpty() {
+    return patterns.isEmpty();
+  }
+
+  public boolean matches(String refName) {
+    Node node = root;
+    for (int i = 0; ; i++) {
+      if (node.prefixMatch) {
+        return true;
+      }
+      for (Pattern regex : node.regexes) {
+        if (regex.matcher(refName).matches()) {
+          return true;
+        }
+      }
+      if (i == refName.length()) {
+        return node.exactMatch;
+      }
+      node = node.children.get(refName.charAt(i));
+      if (node == null) {
+        return false;
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return patterns.toString();
+  }
+
+  private Node nodeFor(String prefix) {
+    Node node = root;
+    for (int i = 0; i < prefix.length(); i++) {
+      node = node.children.computeIfAbsent(prefix.charAt(i), c -> new Node());
+    }
+    return node;
+  }
+
+  /**
+   * Returns the characters every ref name matching {@code regex} starts with, stopping at the first
+   * special character and dropping the last literal character when it is optional.
+   */
+  static String literalPrefix(String regex) {
+    if (regex.indexOf('|') >= 0) {
+      return "";
+    }
+    StringBuilder prefix = new StringBuilder();
+    for (int i = 1; i < regex.length(); i++) {
+      char c = regex.charAt(i);
+      if (REGEX_SPECIAL_CHARS.indexOf(c) >= 0) {
+        if (REGEX_OPTIONAL_QUANTIFIERS.indexOf(c) >= 0 && prefix.length() > 0) {
+          prefix.setLength(prefix.length() - 1);
+        }
+        break;
+      }
+      prefix.append(c);
+    }
+    return prefix.toString();
+  }
+}
@@ -0,0 +1,84 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import com.google.gerrit.common.data.GlobalCapability;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.annotations.RequiresCapability;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.gerrit.sshd.CommandMetaData;
+import com.google.gerrit.sshd.SshCommand;
+import com.google.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import org.eclipse.jgit.errors.RepositoryNotFoundException;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+
+@RequiresCapability(GlobalCapability.ADMINISTRATE_SERVER)
+@CommandMetaData(
+    name = "seed-refs",
+    description = "Store in Zookeeper the refs of projects from the local repositories")
+final class SeedRefsCommand extends SshCommand {
+  @Option(name = "--all", usage = "seed all the projects")
+  private boolean all;
+
+  @Option(name = "--force", usage = "seed again the projects already seeded")
+  private boolean force;
+
+  @Argument(index = 0, multiValued = true, metaVar = "PROJECT", usage = "projects to seed")
+  private List<String> projects = new ArrayList<>();
+
+  @Inject private ZkRefSeeder seeder;
+
+  @Inject private ProjectCache projectCache;
+
+  @Override
+  protected void run() throws UnloggedFailure, Exception {
+    if (all == !projects.isEmpty()) {
+      throw die("either --all or a list of projects is required");
+    }
+    if (seeder.isMigrating()) {
+      throw die("cannot seed whilst ref-database.zookeeper.previousPathLayout is set");
+    }
+    if (seeder.isRebalancing()) {
+      throw die("cannot seed whilst ref-database.zookeeper.rebalancingShards is set");
+    }
+
+    Collection<Project.NameKey> toSeed = new ArrayList<>();
+    if (all) {
+      toSeed.addAll(projectCache.all());
+    } else {
+      projects.forEach(project -> toSeed.add(Project.nameKey(project)));
+    }
+
+    for (Project.NameKey project : toSeed) {
+      try {
+        ZkRefSeeder.Outcome outcome = seeder.seed(project, force);
+        if (outcome.alreadySeeded) {
+          stdout.format("%s: already seeded\n", project);
+        } else {
+          stdout.format(
+              "%s: created %d refs, %d already present\n",
+              project, outcome.created, outcome.existing);
+        }
+      } catch (RepositoryNotFoundException e) {
+        stderr.format("%s: repository not found\n", project);
+      }
+      stdout.flush();
+    }
+  }
+}
@@ -14,9 +14,21 @@
 
 package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
 
+import java.nio.charset.StandardCharsets;
+
 public interface StringDeserializer<T> {
 
   T fromString(String str);
 
+  /**
+   * Deserializes a value from its ASCII bytes, as stored in Zookeeper.
+   *
+   * <p>Deserializers of types that can be parsed directly from the bytes should override it, to
+   * avoid the conversion to {@link String}.
+   */
+  default T fromBytes(byte[] value) {
+    return fromString(new String(value, StandardCharsets.US_ASCII));
+  }
+
   Class<T> getTypeClass();
 }
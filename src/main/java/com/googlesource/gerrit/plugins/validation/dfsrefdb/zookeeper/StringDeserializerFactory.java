@@ -14,12 +14,31 @@
 
 package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.server.plugins.Plugin;
+import com.google.gerrit.server.plugins.ReloadPluginListener;
+import com.google.gerrit.server.plugins.StartPluginListener;
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 
-public class StringDeserializerFactory {
+/**
+ * Lookup of the deserializer of a type.
+ *
+ * <p>Deserializers are indexed by type on their first lookup, and a type missing from the index is
+ * always looked up again in the registered deserializers. The index is dropped whenever a plugin is
+ * started or reloaded, as it may have changed the registered deserializers. Gerrit does not notify
+ * the unloading of a plugin, so the index only holds weak references to the types and to their
+ * deserializers: the entries of an unloaded plugin are dropped once its classes are collected,
+ * instead of keeping them loaded.
+ */
+@Singleton
+public class StringDeserializerFactory implements StartPluginListener, ReloadPluginListener {
 
   private final DynamicSet<StringDeserializer> stringToGenericDeserializers;
+  private final Cache<Class<?>, StringDeserializer<?>> deserializersByType =
+      CacheBuilder.newBuilder().weakKeys().weakValues().build();
 
   @Inject
   public StringDeserializerFactory(DynamicSet<StringDeserializer> stringToGenericDeserializers) {
@@ -28,11 +47,27 @@ public class StringDeserializerFactory {
 
   @SuppressWarnings("unchecked")
   public <T> StringDeserializer<T> create(final Class<T> clazz) throws DeserializerException {
+    StringDeserializer<?> indexed = deserializersByType.getIfPresent(clazz);
+    if (indexed != null) {
+      return (StringDeserializer<T>) indexed;
+    }
+
     for (StringDeserializer<?> stringDeserializer : stringToGenericDeserializers) {
       if (stringDeserializer.getTypeClass().getName().equals(clazz.getTypeName())) {
+        deserializersByType.put(clazz, stringDeserializer);
         return (StringDeserializer<T>) stringDeserializer;
       }
     }
     throw new DeserializerException("No serializer registered for class " + clazz.getName());
   }
+
+  @Override
+  public void onStartPlugin(Plugin plugin) {
+    deserializersByType.invalidateAll();
+  }
+
+  @Override
+  public void onReloadPlugin(Plugin oldPlugin, Plugin newPlugin) {
+    deserializersByType.invalidateAll();
+  }
 }
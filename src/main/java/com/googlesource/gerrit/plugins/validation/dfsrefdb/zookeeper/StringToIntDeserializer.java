@@ -25,4 +25,13 @@ public class StringToIntDeserializer implements StringDeserializer<Integer> {
   public Integer fromString(String str) {
     return Integer.parseInt(str);
   }
+
+  @Override
+  public Integer fromBytes(byte[] value) {
+    long parsed = StringToLongDeserializer.parseLong(value);
+    if (parsed < Integer.MIN_VALUE || parsed > Integer.MAX_VALUE) {
+      throw new NumberFormatException("Value out of range: " + parsed);
+    }
+    return (int) parsed;
+  }
 }
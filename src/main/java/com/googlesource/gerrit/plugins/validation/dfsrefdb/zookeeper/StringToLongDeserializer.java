@@ -14,6 +14,8 @@
 
 package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
 
+import java.nio.charset.StandardCharsets;
+
 public class StringToLongDeserializer implements StringDeserializer<Long> {
 
   @Override
@@ -25,4 +27,40 @@ public class StringToLongDeserializer implements StringDeserializer<Long> {
   public Long fromString(String str) {
     return Long.parseLong(str);
   }
+
+  @Override
+  public Long fromBytes(byte[] value) {
+    return parseLong(value);
+  }
+
+  /** Same as {@link Long#parseLong(String)}, but reading the ASCII digits straight from bytes. */
+  static long parseLong(byte[] value) {
+    int length = value.length;
+    boolean negative = length > 0 && value[0] == '-';
+    int start = length > 0 && (negative || value[0] == '+') ? 1 : 0;
+    if (start == length) {
+      throw numberFormatException(value);
+    }
+
+    // Accumulates negatively, as Long.MIN_VALUE has no positive counterpart
+    long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+    long result = 0;
+    for (int i = start; i < length; i++) {
+      int digit = value[i] - '0';
+      if (digit < 0 || digit > 9 || result < limit / 10) {
+        throw numberFormatException(value);
+      }
+      result *= 10;
+      if (result < limit + digit) {
+        throw numberFormatException(value);
+      }
+      result -= digit;
+    }
+    return negative ? result : -result;
+  }
+
+  private static NumberFormatException numberFormatException(byte[] value) {
+    return new NumberFormatException(
+        "For input string: \"" + new String(value, StandardCharsets.US_ASCII) + "\"");
+  }
 }
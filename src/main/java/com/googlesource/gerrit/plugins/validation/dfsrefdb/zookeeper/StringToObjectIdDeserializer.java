@@ -14,6 +14,7 @@
 
 package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
 
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 
 public class StringToObjectIdDeserializer implements StringDeserializer<ObjectId> {
@@ -27,4 +28,12 @@ public class StringToObjectIdDeserializer implements StringDeserializer<ObjectId
   public ObjectId fromString(String str) {
     return ObjectId.fromString(str);
   }
+
+  @Override
+  public ObjectId fromBytes(byte[] value) {
+    if (value.length != Constants.OBJECT_ID_STRING_LENGTH) {
+      return StringDeserializer.super.fromBytes(value);
+    }
+    return ObjectId.fromString(value, 0);
+  }
 }
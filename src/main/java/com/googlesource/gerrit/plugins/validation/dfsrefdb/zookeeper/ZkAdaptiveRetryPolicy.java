@@ -0,0 +1,125 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.util.concurrent.RateLimiter;
+import java.util.concurrent.ThreadLocalRandom;
+import org.apache.curator.RetryPolicy;
+import org.apache.curator.RetrySleeper;
+
+/**
+ * Retry policy adapting its back-off to the contention of the refs.
+ *
+ * <p>The retries of a ref, obtained with {@link #forRef(String)} for every operation, follow a
+ * decorrelated jitter: every sleep is drawn at random between the base sleep time and three times
+ * the previous sleep of the operation, capped at the maximum sleep time, so that the retries of
+ * concurrent writers spread out instead of hitting the Zookeeper leader at the same time. Their
+ * base and maximum sleep times scale with the recent Compare and Swap conflicts of the ref, so that
+ * hot refs back off harder.
+ *
+ * <p>The retries without a ref are issued by Curator after a transient connection loss, possibly
+ * on its own background thread, and the policy cannot tell apart the operations they belong to.
+ * They start with an immediate retry and then follow an exponential back-off with full jitter: the
+ * n-th sleep is drawn at random between the base sleep time and {@code 2^(n-1)} times it, capped at
+ * the maximum sleep time, relying only on the retry count.
+ *
+ * <p>All the retries of a policy draw from its budget of retries per second. Once the budget is
+ * exhausted the operations fail rather than retry, so that retry storms do not amplify a slowdown
+ * of the ensemble.
+ */
+public class ZkAdaptiveRetryPolicy implements RetryPolicy {
+  /** Maximum factor applied to the sleep times of the most contended refs. */
+  static final int MAX_CONTENTION_FACTOR = 8;
+
+  private final int baseSleepTimeMs;
+  private final int maxSleepTimeMs;
+  private final int maxRetries;
+  private final RateLimiter retryBudget;
+  private final RefContentionTracker contention;
+
+  public ZkAdaptiveRetryPolicy(
+      int baseSleepTimeMs,
+      int maxSleepTimeMs,
+      int maxRetries,
+      RateLimiter retryBudget,
+      RefContentionTracker contention) {
+    this.baseSleepTimeMs = baseSleepTimeMs;
+    this.maxSleepTimeMs = Math.max(baseSleepTimeMs, maxSleepTimeMs);
+    this.maxRetries = maxRetries;
+    this.retryBudget = retryBudget;
+    this.contention = contention;
+  }
+
+  @Override
+  public boolean allowRetry(int retryCount, long elapsedTimeMs, RetrySleeper sleeper) {
+    if (retryCount >= maxRetries || !retryBudget.tryAcquire()) {
+      return false;
+    }
+    if (retryCount == 0) {
+      return true;
+    }
+    long upperBoundMs =
+        Math.min(maxSleepTimeMs, (long) baseSleepTimeMs << Math.min(retryCount - 1, 30));
+    return sleep(sleeper, randomSleepMs(baseSleepTimeMs, upperBoundMs));
+  }
+
+  /** Returns the policy of the retries of a single operation on the ref at {@code refPath}. */
+  RetryPolicy forRef(String refPath) {
+    int factor = Math.min(1 + contention.conflicts(refPath), MAX_CONTENTION_FACTOR);
+    return new RefRetries(baseSleepTimeMs * factor, maxSleepTimeMs * factor);
+  }
+
+  private class RefRetries implements RetryPolicy {
+    private final int baseSleepTimeMs;
+    private final int maxSleepTimeMs;
+    private long previousSleepMs;
+
+    RefRetries(int baseSleepTimeMs, int maxSleepTimeMs) {
+      this.baseSleepTimeMs = baseSleepTimeMs;
+      this.maxSleepTimeMs = maxSleepTimeMs;
+      this.previousSleepMs = baseSleepTimeMs;
+    }
+
+    @Override
+    public boolean allowRetry(int retryCount, long elapsedTimeMs, RetrySleeper sleeper) {
+      if (retryCount >= maxRetries || !retryBudget.tryAcquire()) {
+        return false;
+      }
+      previousSleepMs = nextSleepMs(baseSleepTimeMs, maxSleepTimeMs, previousSleepMs);
+      return sleep(sleeper, previousSleepMs);
+    }
+  }
+
+  private static long nextSleepMs(long baseSleepTimeMs, long maxSleepTimeMs, long previousSleepMs) {
+    return randomSleepMs(baseSleepTimeMs, Math.min(maxSleepTimeMs, previousSleepMs * 3));
+  }
+
+  private static long randomSleepMs(long baseSleepTimeMs, long upperBoundMs) {
+    return ThreadLocalRandom.current()
+        .nextLong(baseSleepTimeMs, Math.max(baseSleepTimeMs, upperBoundMs) + 1);
+  }
+
+  private static boolean sleep(RetrySleeper sleeper, long sleepMs) {
+    try {
+      sleeper.sleepFor(sleepMs, MILLISECONDS);
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+}
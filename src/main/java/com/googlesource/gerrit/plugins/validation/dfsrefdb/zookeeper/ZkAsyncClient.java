@@ -0,0 +1,141 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import com.google.common.collect.ImmutableSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.BackgroundCallback;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.framework.api.transaction.CuratorOp;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.Watcher;
+
+/**
+ * {@link CompletableFuture} view of the Curator background operations used by the shared ref-db.
+ *
+ * <p>Every operation completes with the {@link CuratorEvent} returned by Zookeeper when its result
+ * code is {@link Code#OK} or one of the codes accepted by the caller, and exceptionally with the
+ * matching {@link KeeperException} otherwise. Completion happens on the Zookeeper event thread,
+ * hence dependent stages must never block.
+ */
+class ZkAsyncClient {
+  private final CuratorFramework client;
+
+  ZkAsyncClient(CuratorFramework client) {
+    this.client = client;
+  }
+
+  CompletableFuture<CuratorEvent> getData(String path, Code... accepted) {
+    return inBackground(accepted, cb -> client.getData().inBackground(cb).forPath(path));
+  }
+
+  CompletableFuture<CuratorEvent> getData(String path, Watcher watcher, Code... accepted) {
+    return inBackground(
+        accepted, cb -> client.getData().usingWatcher(watcher).inBackground(cb).forPath(path));
+  }
+
+  CompletableFuture<CuratorEvent> checkExists(String path, Code... accepted) {
+    return inBackground(accepted, cb -> client.checkExists().inBackground(cb).forPath(path));
+  }
+
+  CompletableFuture<CuratorEvent> checkExists(String path, Watcher watcher, Code... accepted) {
+    return inBackground(
+        accepted, cb -> client.checkExists().usingWatcher(watcher).inBackground(cb).forPath(path));
+  }
+
+  CompletableFuture<CuratorEvent> create(String path, byte[] value, Code... accepted) {
+    return inBackground(
+        accepted,
+        cb ->
+            client
+                .create()
+                .creatingParentContainersIfNeeded()
+                .inBackground(cb)
+                .forPath(path, value));
+  }
+
+  CompletableFuture<CuratorEvent> setData(
+      String path, byte[] value, int version, Code... accepted) {
+    return inBackground(
+        accepted,
+        cb -> client.setData().withVersion(version).inBackground(cb).forPath(path, value));
+  }
+
+  CompletableFuture<CuratorEvent> getChildren(String path, Code... accepted) {
+    return inBackground(accepted, cb -> client.getChildren().inBackground(cb).forPath(path));
+  }
+
+  CompletableFuture<CuratorEvent> delete(String path, Code... accepted) {
+    return inBackground(accepted, cb -> client.delete().inBackground(cb).forPath(path));
+  }
+
+  CompletableFuture<CuratorEvent> sync(String path, Code... accepted) {
+    return inBackground(accepted, cb -> client.sync().inBackground(cb).forPath(path));
+  }
+
+  CompletableFuture<CuratorEvent> multi(List<CuratorOp> operations, Code... accepted) {
+    return inBackground(
+        accepted, cb -> client.transaction().inBackground(cb).forOperations(operations));
+  }
+
+  static Code resultCode(CuratorEvent event) {
+    return Code.get(event.getResultCode());
+  }
+
+  static <T> CompletableFuture<T> failedFuture(Throwable error) {
+    CompletableFuture<T> failed = new CompletableFuture<>();
+    failed.completeExceptionally(error);
+    return failed;
+  }
+
+  /** Strips the {@link CompletionException} wrapping added by dependent stages. */
+  static Exception causeOf(Throwable error) {
+    Throwable cause =
+        error instanceof CompletionException && error.getCause() != null
+            ? error.getCause()
+            : error;
+    return cause instanceof Exception ? (Exception) cause : new ExecutionException(cause);
+  }
+
+  private static CompletableFuture<CuratorEvent> inBackground(
+      Code[] accepted, BackgroundOperation operation) {
+    ImmutableSet<Code> acceptedCodes = ImmutableSet.copyOf(accepted);
+    CompletableFuture<CuratorEvent> result = new CompletableFuture<>();
+    try {
+      operation.start(
+          (client, event) -> {
+            Code code = resultCode(event);
+            if (code == Code.OK || acceptedCodes.contains(code)) {
+              result.complete(event);
+            } else {
+              result.completeExceptionally(KeeperException.create(code, event.getPath()));
+            }
+          });
+    } catch (Exception e) {
+      result.completeExceptionally(e);
+    }
+    return result;
+  }
+
+  @FunctionalInterface
+  private interface BackgroundOperation {
+    void start(BackgroundCallback callback) throws Exception;
+  }
+}
@@ -0,0 +1,172 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper.ZkAsyncClient.resultCode;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import org.apache.curator.RetryPolicy;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.zookeeper.KeeperException.Code;
+
+/**
+ * Compare and Set of a single Zookeeper node.
+ *
+ * <p>Every attempt reads the node together with its {@code Stat} and then writes it with a {@code
+ * setData} guarded by the version just read, or with a single {@code create} when the node does not
+ * exist yet. An attempt is repeated, according to the retry policy, only when a concurrent writer
+ * changed the node between the read and the write. The whole operation is asynchronous: retries
+ * are delayed through the executor rather than by sleeping on the Zookeeper event thread. A {@link
+ * ZkAdaptiveRetryPolicy} provides the retries of every operation according to the contention of its
+ * node.
+ */
+class ZkCasEngine {
+  private final ZkAsyncClient zk;
+  private final RetryPolicy retryPolicy;
+  private final ScheduledExecutorService executor;
+
+  ZkCasEngine(ZkAsyncClient zk, RetryPolicy retryPolicy, ScheduledExecutorService executor) {
+    this.zk = zk;
+    this.retryPolicy = retryPolicy;
+    this.executor = executor;
+  }
+
+  /**
+   * Sets the node at {@code path} to {@code newValue} if its current value matches {@code
+   * expected}.
+   *
+   * @param path node to update.
+   * @param expected matcher of the current value of the node; never called with a {@code null}
+   *     value.
+   * @param createIfMissing whether the node should be created when it does not exist.
+   * @param newValue value to store.
+   * @return the outcome of the operation, with the number of attempts it took, or a future failed
+   *     with the Zookeeper error.
+   */
+  CompletableFuture<CasResult> compareAndSet(
+      String path, Predicate<byte[]> expected, boolean createIfMissing, byte[] newValue) {
+    CasOperation operation = new CasOperation(path, expected, createIfMissing, newValue);
+    operation.attempt();
+    return operation.result;
+  }
+
+  static class CasResult {
+    final boolean succeeded;
+    final int attempts;
+
+    CasResult(boolean succeeded, int attempts) {
+      this.succeeded = succeeded;
+      this.attempts = attempts;
+    }
+  }
+
+  private enum Outcome {
+    SUCCEEDED,
+    FAILED,
+    CONFLICT
+  }
+
+  private class CasOperation {
+    private final String path;
+    private final Predicate<byte[]> expected;
+    private final boolean createIfMissing;
+    private final byte[] newValue;
+    private final RetryPolicy operationRetryPolicy;
+    private final long startMs = System.currentTimeMillis();
+    private final CompletableFuture<CasResult> result = new CompletableFuture<>();
+    private int attempts;
+
+    CasOperation(
+        String path, Predicate<byte[]> expected, boolean createIfMissing, byte[] newValue) {
+      this.path = path;
+      this.expected = expected;
+      this.createIfMissing = createIfMissing;
+      this.newValue = newValue;
+      this.operationRetryPolicy =
+          retryPolicy instanceof ZkAdaptiveRetryPolicy
+              ? ((ZkAdaptiveRetryPolicy) retryPolicy).forRef(path)
+              : retryPolicy;
+    }
+
+    void attempt() {
+      attempts++;
+      zk.getData(path, Code.NONODE)
+          .thenCompose(this::write)
+          .whenComplete(
+              (outcome, error) -> {
+                if (error != null) {
+                  result.completeExceptionally(ZkAsyncClient.causeOf(error));
+                } else if (outcome == Outcome.CONFLICT) {
+                  retry();
+                } else {
+                  result.complete(new CasResult(outcome == Outcome.SUCCEEDED, attempts));
+                }
+              });
+    }
+
+    private CompletableFuture<Outcome> write(CuratorEvent current) {
+      if (resultCode(current) == Code.NONODE) {
+        if (!createIfMissing) {
+          return CompletableFuture.completedFuture(Outcome.FAILED);
+        }
+        return zk.create(path, newValue, Code.NODEEXISTS)
+            .thenApply(created -> outcomeOf(created, Code.NODEEXISTS));
+      }
+
+      byte[] currentValue = current.getData();
+      if (currentValue == null || !expected.test(currentValue)) {
+        return CompletableFuture.completedFuture(Outcome.FAILED);
+      }
+      return zk.setData(
+              path, newValue, current.getStat().getVersion(), Code.BADVERSION, Code.NONODE)
+          .thenApply(updated -> outcomeOf(updated, Code.BADVERSION, Code.NONODE));
+    }
+
+    private Outcome outcomeOf(CuratorEvent event, Code... conflicts) {
+      Code code = resultCode(event);
+      for (Code conflict : conflicts) {
+        if (code == conflict) {
+          return Outcome.CONFLICT;
+        }
+      }
+      return Outcome.SUCCEEDED;
+    }
+
+    private void retry() {
+      AtomicLong delayMs = new AtomicLong();
+      if (!operationRetryPolicy.allowRetry(
+          attempts - 1,
+          System.currentTimeMillis() - startMs,
+          (time, unit) -> delayMs.set(unit.toMillis(time)))) {
+        result.complete(new CasResult(false, attempts));
+        return;
+      }
+
+      if (delayMs.get() == 0) {
+        attempt();
+        return;
+      }
+      try {
+        executor.schedule(this::attempt, delayMs.get(), MILLISECONDS);
+      } catch (RuntimeException e) {
+        result.completeExceptionally(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,142 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
+import com.google.common.flogger.FluentLogger;
+import java.util.concurrent.CompletableFuture;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.zookeeper.KeeperException;
+
+/**
+ * Circuit breaker failing fast the requests of a Zookeeper session whilst its connection is down.
+ *
+ * <p>The breaker opens when the connection is {@code SUSPENDED} or {@code LOST}: the requests then
+ * fail immediately with a {@link GlobalRefDbSystemError} rather than waiting for the connection
+ * timeout and the retries of Curator. Once per probe interval, a single request is let through as
+ * a half-open probe: the breaker closes if it succeeds, and opens again otherwise. The breaker
+ * also closes as soon as the connection is {@code RECONNECTED}.
+ */
+class ZkCircuitBreaker implements ConnectionStateListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  enum State {
+    /** Connected: all the requests are issued. */
+    CLOSED,
+    /** Disconnected: the requests fail fast until the next probe. */
+    OPEN,
+    /** Disconnected, with a probe request recently let through. */
+    HALF_OPEN
+  }
+
+  private final String name;
+  private final long probeIntervalMs;
+  private volatile State state;
+  private long lastProbeMs;
+
+  ZkCircuitBreaker(String name, CuratorFramework client, boolean enabled, long probeIntervalMs) {
+    this.name = name;
+    this.probeIntervalMs = probeIntervalMs;
+    this.state = State.CLOSED;
+    if (enabled) {
+      client.getConnectionStateListenable().addListener(this);
+      if (!client.getZookeeperClient().isConnected()) {
+        open();
+      }
+    }
+  }
+
+  /**
+   * Returns whether a request can be issued: always when closed, and as a probe at most once per
+   * probe interval otherwise. The outcome of the request is then recorded with {@link
+   * #recordOutcome(boolean)}.
+   */
+  boolean tryAcquire() {
+    if (state == State.CLOSED) {
+      return true;
+    }
+    synchronized (this) {
+      if (state == State.CLOSED) {
+        return true;
+      }
+      long nowMs = System.currentTimeMillis();
+      if (nowMs - lastProbeMs < probeIntervalMs) {
+        return false;
+      }
+      state = State.HALF_OPEN;
+      lastProbeMs = nowMs;
+      return true;
+    }
+  }
+
+  /** Records the outcome of a request, which closes or opens again the breaker after a probe. */
+  synchronized void recordOutcome(boolean succeeded) {
+    if (state != State.HALF_OPEN) {
+      return;
+    }
+    if (succeeded) {
+      logger.atInfo().log("Zookeeper session %s: probe succeeded, closing the circuit", name);
+      state = State.CLOSED;
+    } else {
+      open();
+    }
+  }
+
+  /** Records the outcome of {@code request} once completed. */
+  <T> CompletableFuture<T> monitor(CompletableFuture<T> request) {
+    return request.whenComplete((value, error) -> recordOutcome(error == null));
+  }
+
+  /** Returns the error of the requests rejected whilst the breaker is open. */
+  GlobalRefDbSystemError rejection() {
+    return new GlobalRefDbSystemError(
+        String.format("Zookeeper session %s is disconnected: failing fast", name),
+        KeeperException.create(KeeperException.Code.CONNECTIONLOSS));
+  }
+
+  State getState() {
+    return state;
+  }
+
+  @Override
+  public synchronized void stateChanged(CuratorFramework client, ConnectionState newState) {
+    switch (newState) {
+      case SUSPENDED:
+      case LOST:
+        if (state == State.CLOSED) {
+          logger.atWarning().log(
+              "Zookeeper session %s %s: opening the circuit, failing fast", name, newState);
+        }
+        open();
+        break;
+      case CONNECTED:
+      case RECONNECTED:
+        if (state != State.CLOSED) {
+          logger.atInfo().log("Zookeeper session %s %s: closing the circuit", name, newState);
+        }
+        state = State.CLOSED;
+        break;
+      default:
+        break;
+    }
+  }
+
+  private void open() {
+    state = State.OPEN;
+    lastProbeMs = System.currentTimeMillis();
+  }
+}
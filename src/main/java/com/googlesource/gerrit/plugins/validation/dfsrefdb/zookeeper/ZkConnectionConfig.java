@@ -17,12 +17,38 @@ package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
 import org.apache.curator.RetryPolicy;
 
 public class ZkConnectionConfig {
+  static final int DEFAULT_GROUP_COMMIT_MAX_BATCH_SIZE = 64;
+  static final long DEFAULT_CIRCUIT_BREAKER_PROBE_INTERVAL_MS = 1000;
 
   public final RetryPolicy curatorRetryPolicy;
   public final Long transactionLockTimeout;
+  public final long groupCommitWindowMicros;
+  public final int groupCommitMaxBatchSize;
+  public final boolean circuitBreaker;
+  public final long circuitBreakerProbeIntervalMs;
 
   public ZkConnectionConfig(RetryPolicy curatorRetryPolicy, Long transactionLockTimeout) {
+    this(
+        curatorRetryPolicy,
+        transactionLockTimeout,
+        0,
+        DEFAULT_GROUP_COMMIT_MAX_BATCH_SIZE,
+        false,
+        DEFAULT_CIRCUIT_BREAKER_PROBE_INTERVAL_MS);
+  }
+
+  public ZkConnectionConfig(
+      RetryPolicy curatorRetryPolicy,
+      Long transactionLockTimeout,
+      long groupCommitWindowMicros,
+      int groupCommitMaxBatchSize,
+      boolean circuitBreaker,
+      long circuitBreakerProbeIntervalMs) {
     this.curatorRetryPolicy = curatorRetryPolicy;
     this.transactionLockTimeout = transactionLockTimeout;
+    this.groupCommitWindowMicros = groupCommitWindowMicros;
+    this.groupCommitMaxBatchSize = groupCommitMaxBatchSize;
+    this.circuitBreaker = circuitBreaker;
+    this.circuitBreakerProbeIntervalMs = circuitBreakerProbeIntervalMs;
   }
 }
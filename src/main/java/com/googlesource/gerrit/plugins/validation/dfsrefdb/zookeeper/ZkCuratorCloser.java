@@ -0,0 +1,46 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Closes all the Zookeeper clients built by {@link ZookeeperConfig} when the plugin is stopped, so
+ * that the sessions of the shards are not leaked across the plugin reloads.
+ *
+ * <p>Registered before all the other listeners, it is stopped after them, once nothing uses the
+ * clients anymore.
+ */
+@Singleton
+class ZkCuratorCloser implements LifecycleListener {
+  private final ZookeeperConfig cfg;
+
+  @Inject
+  ZkCuratorCloser(ZookeeperConfig cfg) {
+    this.cfg = cfg;
+  }
+
+  @Override
+  public void start() {
+    // do nothing
+  }
+
+  @Override
+  public void stop() {
+    cfg.closeCurators();
+  }
+}
@@ -0,0 +1,164 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Predicate;
+
+/**
+ * Group commit of the concurrent Compare and Set of different Zookeeper nodes.
+ *
+ * <p>The requests received within a short window, or until the batch is full, are applied together
+ * by the {@link ZkMultiCasEngine}: their nodes are read in parallel and written in one {@code
+ * multi()} transaction of version-guarded writes, costing a single write round-trip for the whole
+ * batch. When the transaction is not applied, because any of the nodes did not have its expected
+ * value or was concurrently updated, every request of the batch falls back to the {@link
+ * ZkCasEngine} on its own, so that each caller still gets the outcome of its own request. A batch
+ * of a single request goes straight to the {@link ZkCasEngine}.
+ */
+class ZkGroupCommitter {
+  private final ZkCasEngine casEngine;
+  private final ZkMultiCasEngine multiCasEngine;
+  private final ScheduledExecutorService executor;
+  private final long windowMicros;
+  private final int maxBatchSize;
+
+  private List<PendingCas> pending = new ArrayList<>();
+
+  ZkGroupCommitter(
+      ZkCasEngine casEngine,
+      ZkMultiCasEngine multiCasEngine,
+      ScheduledExecutorService executor,
+      long windowMicros,
+      int maxBatchSize) {
+    this.casEngine = casEngine;
+    this.multiCasEngine = multiCasEngine;
+    this.executor = executor;
+    this.windowMicros = windowMicros;
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  /**
+   * Sets the node at {@code path} to {@code newValue} if its current value matches {@code
+   * expected}, as {@link ZkCasEngine#compareAndSet(String, Predicate, boolean, byte[])} does.
+   */
+  CompletableFuture<ZkCasEngine.CasResult> compareAndSet(
+      String path, Predicate<byte[]> expected, boolean createIfMissing, byte[] newValue) {
+    if (windowMicros <= 0 || maxBatchSize <= 1) {
+      return casEngine.compareAndSet(path, expected, createIfMissing, newValue);
+    }
+
+    PendingCas cas =
+        new PendingCas(new ZkMultiCasEngine.CasRequest(path, expected, createIfMissing, newValue));
+    List<PendingCas> fullBatch = null;
+    boolean firstOfBatch;
+    synchronized (this) {
+      pending.add(cas);
+      firstOfBatch = pending.size() == 1;
+      if (pending.size() >= maxBatchSize) {
+        fullBatch = takePending();
+      }
+    }
+
+    if (fullBatch != null) {
+      commit(fullBatch);
+    } else if (firstOfBatch) {
+      scheduleFlush();
+    }
+    return cas.result;
+  }
+
+  private void scheduleFlush() {
+    try {
+      executor.schedule(this::flush, windowMicros, MICROSECONDS);
+    } catch (RejectedExecutionException e) {
+      flush();
+    }
+  }
+
+  /**
+   * Commits the pending requests. A flush scheduled for a batch already committed because full
+   * commits the following batch before the end of its window, which is harmless.
+   */
+  private void flush() {
+    List<PendingCas> batch;
+    synchronized (this) {
+      batch = takePending();
+    }
+    if (!batch.isEmpty()) {
+      commit(batch);
+    }
+  }
+
+  private List<PendingCas> takePending() {
+    List<PendingCas> batch = pending;
+    pending = new ArrayList<>();
+    return batch;
+  }
+
+  private void commit(List<PendingCas> batch) {
+    if (batch.size() == 1) {
+      compareAndSetAlone(batch.get(0));
+      return;
+    }
+
+    List<ZkMultiCasEngine.CasRequest> requests = new ArrayList<>(batch.size());
+    batch.forEach(cas -> requests.add(cas.request));
+    multiCasEngine
+        .compareAndSet(requests)
+        .whenComplete(
+            (multiResult, error) -> {
+              for (int i = 0; i < batch.size(); i++) {
+                PendingCas cas = batch.get(i);
+                if (error != null) {
+                  cas.result.completeExceptionally(ZkAsyncClient.causeOf(error));
+                } else if (multiResult.results.get(i) == ZkRefUpdate.Result.SUCCEEDED) {
+                  cas.result.complete(new ZkCasEngine.CasResult(true, 1));
+                } else {
+                  compareAndSetAlone(cas);
+                }
+              }
+            });
+  }
+
+  private void compareAndSetAlone(PendingCas cas) {
+    ZkMultiCasEngine.CasRequest request = cas.request;
+    casEngine
+        .compareAndSet(request.path, request.expected, request.createIfMissing, request.newValue)
+        .whenComplete(
+            (result, error) -> {
+              if (error != null) {
+                cas.result.completeExceptionally(error);
+              } else {
+                cas.result.complete(result);
+              }
+            });
+  }
+
+  private static class PendingCas {
+    final ZkMultiCasEngine.CasRequest request;
+    final CompletableFuture<ZkCasEngine.CasResult> result = new CompletableFuture<>();
+
+    PendingCas(ZkMultiCasEngine.CasRequest request) {
+      this.request = request;
+    }
+  }
+}
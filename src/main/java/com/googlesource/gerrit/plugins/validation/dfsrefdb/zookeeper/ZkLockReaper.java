@@ -0,0 +1,251 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.leader.LeaderLatch;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Background garbage collector of the empty lock nodes.
+ *
+ * <p>The distributed mutexes of the refs leave behind their parent nodes under {@code /locks}
+ * forever, because container nodes are not available on Zookeeper 3.4. The reaper periodically
+ * walks the lock tree depth-first and deletes the persistent nodes left without children, never
+ * touching a node created within the grace period or holding a lock. In every Zookeeper shard only
+ * the site holding the reaper leadership runs it, and its Zookeeper requests are rate limited so
+ * that it does not compete with the Compare and Swap traffic.
+ */
+@Singleton
+class ZkLockReaper implements LifecycleListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  static final String LOCKS_ROOT = "/locks";
+  static final String LEADER_PATH = ZkSharedRefDatabase.INTERNAL_ROOT + "/leaders/lock-reaper";
+
+  private final ImmutableList<CuratorFramework> clients;
+  private final ScheduledExecutorService executor;
+  private final long intervalMs;
+  private final long gracePeriodMs;
+  private final RateLimiter requestsLimiter;
+  private final Counter0 scannedNodes;
+  private final Counter0 reclaimedNodes;
+
+  private final Map<CuratorFramework, LeaderLatch> leaderLatches = new LinkedHashMap<>();
+  private ScheduledFuture<?> reaperTask;
+  private volatile boolean stopped;
+
+  @Inject
+  ZkLockReaper(
+      ZkShardRouter router,
+      ZookeeperConfig cfg,
+      @ZkMaintenanceExecutor ScheduledExecutorService executor,
+      MetricMaker metricMaker) {
+    this(
+        router.shards().stream().map(ZkShard::getClient).collect(toImmutableList()),
+        executor,
+        cfg.getLockReaperIntervalMs(),
+        cfg.getLockReaperGracePeriodMs(),
+        cfg.getLockReaperRequestsPerSecond(),
+        metricMaker);
+  }
+
+  ZkLockReaper(
+      Collection<CuratorFramework> clients,
+      ScheduledExecutorService executor,
+      long intervalMs,
+      long gracePeriodMs,
+      double requestsPerSecond,
+      MetricMaker metricMaker) {
+    this.clients = ImmutableList.copyOf(clients);
+    this.executor = executor;
+    this.intervalMs = intervalMs;
+    this.gracePeriodMs = gracePeriodMs;
+    this.requestsLimiter = RateLimiter.create(requestsPerSecond);
+    this.scannedNodes =
+        metricMaker.newCounter(
+            "lock_reaper/scanned_nodes",
+            new Description("Lock nodes scanned by the lock reaper").setRate().setUnit("nodes"));
+    this.reclaimedNodes =
+        metricMaker.newCounter(
+            "lock_reaper/reclaimed_nodes",
+            new Description("Empty lock nodes deleted by the lock reaper")
+                .setRate()
+                .setUnit("nodes"));
+  }
+
+  @Override
+  public synchronized void start() {
+    if (intervalMs <= 0) {
+      logger.atInfo().log("Lock reaper disabled");
+      return;
+    }
+
+    stopped = false;
+    try {
+      for (CuratorFramework client : clients) {
+        LeaderLatch leaderLatch = new LeaderLatch(client, LEADER_PATH);
+        leaderLatches.put(client, leaderLatch);
+        leaderLatch.start();
+      }
+    } catch (Exception e) {
+      logger.atSevere().withCause(e).log("Unable to start the lock reaper");
+      closeLeaderLatches();
+      return;
+    }
+    reaperTask =
+        executor.scheduleWithFixedDelay(this::reapIfLeader, intervalMs, intervalMs, MILLISECONDS);
+  }
+
+  @Override
+  public synchronized void stop() {
+    stopped = true;
+    if (reaperTask != null) {
+      reaperTask.cancel(false);
+      reaperTask = null;
+    }
+    closeLeaderLatches();
+  }
+
+  private void closeLeaderLatches() {
+    for (LeaderLatch leaderLatch : leaderLatches.values()) {
+      try {
+        leaderLatch.close();
+      } catch (Exception e) {
+        logger.atWarning().withCause(e).log("Unable to release the lock reaper leadership");
+      }
+    }
+    leaderLatches.clear();
+  }
+
+  /**
+   * Deletes all the empty lock nodes of every shard.
+   *
+   * @return the number of deleted nodes.
+   */
+  int reap() throws Exception {
+    int reclaimed = 0;
+    for (CuratorFramework client : clients) {
+      reclaimed += reap(client);
+    }
+    return reclaimed;
+  }
+
+  private int reap(CuratorFramework client) throws Exception {
+    ReaperRun run = new ReaperRun(client, System.currentTimeMillis());
+    run.reap(LOCKS_ROOT, false);
+    return run.reclaimed;
+  }
+
+  private synchronized List<CuratorFramework> leadingClients() {
+    List<CuratorFramework> leading = new ArrayList<>();
+    leaderLatches.forEach(
+        (client, latch) -> {
+          if (latch.hasLeadership()) {
+            leading.add(client);
+          }
+        });
+    return leading;
+  }
+
+  private void reapIfLeader() {
+    for (CuratorFramework client : leadingClients()) {
+      try {
+        long startMs = System.currentTimeMillis();
+        int reclaimed = reap(client);
+        logger.atInfo().log(
+            "Lock reaper deleted %d empty lock nodes of %s in %d ms",
+            reclaimed, client.getNamespace(), System.currentTimeMillis() - startMs);
+      } catch (Exception e) {
+        logger.atWarning().withCause(e).log("Lock reaper run failed");
+      }
+    }
+  }
+
+  private class ReaperRun {
+    private final CuratorFramework client;
+    private final long startMs;
+    private int reclaimed;
+
+    ReaperRun(CuratorFramework client, long startMs) {
+      this.client = client;
+      this.startMs = startMs;
+    }
+
+    /** Returns whether the node at {@code path} no longer exists. */
+    boolean reap(String path, boolean reclaimable) throws Exception {
+      Stat stat = new Stat();
+      List<String> children;
+      requestsLimiter.acquire();
+      try {
+        children = client.getChildren().storingStatIn(stat).forPath(path);
+      } catch (KeeperException.NoNodeException e) {
+        return true;
+      }
+      scannedNodes.increment();
+
+      if (stat.getEphemeralOwner() != 0) {
+        return false;
+      }
+
+      int remaining = children.size();
+      for (String child : children) {
+        if (stopped) {
+          return false;
+        }
+        if (reap(ZKPaths.makePath(path, child), true)) {
+          remaining--;
+        }
+      }
+
+      if (!reclaimable || remaining > 0 || startMs - stat.getCtime() < gracePeriodMs) {
+        return false;
+      }
+
+      requestsLimiter.acquire();
+      try {
+        client.delete().withVersion(stat.getVersion()).forPath(path);
+      } catch (KeeperException.NoNodeException e) {
+        return true;
+      } catch (KeeperException.NotEmptyException | KeeperException.BadVersionException e) {
+        return false;
+      }
+      reclaimedNodes.increment();
+      reclaimed++;
+      return true;
+    }
+  }
+}
@@ -0,0 +1,145 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.locks.InterProcessMutex;
+
+/**
+ * Bounded registry of the distributed mutexes of the refs.
+ *
+ * <p>Every lock path maps to a single {@link InterProcessMutex}, reused across calls, guarded by an
+ * in-process {@link ReentrantLock}: threads of the same JVM contending for a ref wait on the local
+ * lock rather than queueing on Zookeeper, and a thread already holding the lock of a ref re-enters
+ * it without any Zookeeper request. Unused entries are evicted once idle for longer than the
+ * configured timeout, or as soon as the registry grows beyond its maximum size.
+ */
+public class ZkLockRegistry {
+  private final CuratorFramework client;
+  private final int maxEntries;
+  private final long idleTimeoutMs;
+  private final ConcurrentMap<String, RefLock> locks = new ConcurrentHashMap<>();
+  private volatile long lastEvictionMs = System.currentTimeMillis();
+
+  public ZkLockRegistry(CuratorFramework client, int maxEntries, long idleTimeoutMs) {
+    this.client = client;
+    this.maxEntries = maxEntries;
+    this.idleTimeoutMs = idleTimeoutMs;
+  }
+
+  /**
+   * Acquires the lock at {@code lockPath}, first within the JVM and then in Zookeeper.
+   *
+   * @return the acquired lock, released when closed.
+   * @throws TimeoutException if the lock could not be acquired within {@code timeoutMs}.
+   */
+  AutoCloseable lock(String lockPath, long timeoutMs) throws Exception {
+    long deadlineMs = System.currentTimeMillis() + timeoutMs;
+    RefLock refLock = locks.compute(lockPath, (path, current) -> retain(path, current));
+    boolean locked = false;
+    try {
+      if (!refLock.local.tryLock(timeoutMs, MILLISECONDS)) {
+        throw timeout(lockPath, timeoutMs);
+      }
+      try {
+        if (!refLock.mutex.acquire(
+            Math.max(0, deadlineMs - System.currentTimeMillis()), MILLISECONDS)) {
+          throw timeout(lockPath, timeoutMs);
+        }
+        locked = true;
+      } finally {
+        if (!locked) {
+          refLock.local.unlock();
+        }
+      }
+    } finally {
+      if (!locked) {
+        release(refLock);
+      }
+    }
+
+    return () -> {
+      try {
+        refLock.mutex.release();
+      } finally {
+        refLock.local.unlock();
+        release(refLock);
+      }
+    };
+  }
+
+  int size() {
+    return locks.size();
+  }
+
+  private RefLock retain(String lockPath, RefLock current) {
+    RefLock refLock = current == null ? new RefLock(lockPath) : current;
+    refLock.users++;
+    return refLock;
+  }
+
+  private void release(RefLock refLock) {
+    locks.computeIfPresent(
+        refLock.path,
+        (path, current) -> {
+          current.users--;
+          current.lastReleasedMs = System.currentTimeMillis();
+          return current;
+        });
+
+    long nowMs = System.currentTimeMillis();
+    if (locks.size() > maxEntries || nowMs - lastEvictionMs > idleTimeoutMs) {
+      lastEvictionMs = nowMs;
+      evictUnused(nowMs);
+    }
+  }
+
+  private void evictUnused(long nowMs) {
+    boolean overflow = locks.size() > maxEntries;
+    for (String lockPath : locks.keySet()) {
+      locks.computeIfPresent(
+          lockPath,
+          (path, current) ->
+              current.users == 0 && (overflow || nowMs - current.lastReleasedMs > idleTimeoutMs)
+                  ? null
+                  : current);
+    }
+  }
+
+  private static TimeoutException timeout(String lockPath, long timeoutMs) {
+    return new TimeoutException(
+        String.format("Could not acquire lock %s within timeout of %dms", lockPath, timeoutMs));
+  }
+
+  private class RefLock {
+    final String path;
+    final ReentrantLock local = new ReentrantLock();
+    final InterProcessMutex mutex;
+    // Guarded by the compute functions of the registry map
+    int users;
+    long lastReleasedMs;
+
+    RefLock(String path) {
+      this.path = path;
+      this.mutex = new InterProcessMutex(client, path);
+    }
+  }
+}
@@ -0,0 +1,211 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper.ZkAsyncClient.resultCode;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Predicate;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.framework.api.transaction.CuratorOp;
+import org.apache.curator.framework.api.transaction.CuratorTransactionResult;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException.Code;
+
+/**
+ * Compare and Set of many Zookeeper nodes in a single {@code multi()} transaction.
+ *
+ * <p>All the nodes are first read in parallel, pipelined over the Zookeeper connection. When all of
+ * them have the expected value, they are written in one transaction in which every {@code setData}
+ * is guarded by the version just read and every missing node is created. Either all the nodes are
+ * updated or none of them is.
+ *
+ * <p>A request fails with a {@link ZkRefUpdate.Result#CONFLICT} either because its node did not
+ * have the expected value when read, or because a concurrent writer changed the node between the
+ * read and the transaction. Only the latter is a race on the node, and the result tells them apart.
+ */
+class ZkMultiCasEngine {
+  private static final ImmutableSet<Code> CONFLICTS =
+      ImmutableSet.of(Code.BADVERSION, Code.NODEEXISTS, Code.NONODE);
+
+  private final CuratorFramework client;
+  private final ZkAsyncClient zk;
+  private final ExecutorService executor;
+
+  ZkMultiCasEngine(CuratorFramework client, ZkAsyncClient zk, ExecutorService executor) {
+    this.client = client;
+    this.zk = zk;
+    this.executor = executor;
+  }
+
+  /**
+   * Sets all the nodes of {@code requests} to their new value if all of them match their expected
+   * value.
+   *
+   * @return the outcome of every request, in the same order, or a future failed with the Zookeeper
+   *     error.
+   */
+  CompletableFuture<MultiCasResult> compareAndSet(List<CasRequest> requests) {
+    if (requests.isEmpty()) {
+      return CompletableFuture.completedFuture(
+          new MultiCasResult(ImmutableList.of(), new BitSet()));
+    }
+
+    List<CompletableFuture<CuratorEvent>> reads = new ArrayList<>(requests.size());
+    for (CasRequest request : requests) {
+      reads.add(zk.getData(request.path, Code.NONODE));
+    }
+    return CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[0]))
+        .thenCompose(
+            allRead -> {
+              List<CuratorEvent> current = new ArrayList<>(reads.size());
+              for (CompletableFuture<CuratorEvent> read : reads) {
+                current.add(read.join());
+              }
+              return write(requests, current);
+            });
+  }
+
+  private CompletableFuture<MultiCasResult> write(
+      List<CasRequest> requests, List<CuratorEvent> current) {
+    List<ZkRefUpdate.Result> results = new ArrayList<>(requests.size());
+    List<CuratorOp> operations = new ArrayList<>(requests.size());
+    Set<String> parentsToCreate = new HashSet<>();
+    boolean conflict = false;
+
+    try {
+      for (int i = 0; i < requests.size(); i++) {
+        CasRequest request = requests.get(i);
+        CuratorEvent value = current.get(i);
+
+        if (resultCode(value) == Code.NONODE) {
+          if (!request.createIfMissing) {
+            results.add(ZkRefUpdate.Result.CONFLICT);
+            conflict = true;
+            continue;
+          }
+          operations.add(client.transactionOp().create().forPath(request.path, request.newValue));
+          parentsToCreate.add(ZKPaths.getPathAndNode(request.path).getPath());
+        } else {
+          byte[] currentValue = value.getData();
+          if (currentValue == null || !request.expected.test(currentValue)) {
+            results.add(ZkRefUpdate.Result.CONFLICT);
+            conflict = true;
+            continue;
+          }
+          operations.add(
+              client
+                  .transactionOp()
+                  .setData()
+                  .withVersion(value.getStat().getVersion())
+                  .forPath(request.path, request.newValue));
+        }
+        results.add(ZkRefUpdate.Result.SUCCEEDED);
+      }
+    } catch (Exception e) {
+      return ZkAsyncClient.failedFuture(e);
+    }
+
+    if (conflict) {
+      results.replaceAll(
+          result ->
+              result == ZkRefUpdate.Result.SUCCEEDED ? ZkRefUpdate.Result.ABORTED : result);
+      return CompletableFuture.completedFuture(new MultiCasResult(results, new BitSet()));
+    }
+
+    return createContainers(parentsToCreate)
+        .thenCompose(created -> zk.multi(operations, CONFLICTS.toArray(new Code[0])))
+        .thenApply(
+            transaction -> {
+              BitSet raced = new BitSet();
+              if (resultCode(transaction) != Code.OK) {
+                setFailedResults(results, raced, transaction);
+              }
+              return new MultiCasResult(results, raced);
+            });
+  }
+
+  private CompletableFuture<Void> createContainers(Set<String> paths) {
+    if (paths.isEmpty()) {
+      return CompletableFuture.completedFuture(null);
+    }
+    return CompletableFuture.runAsync(
+        () -> {
+          try {
+            for (String path : paths) {
+              client.createContainers(path);
+            }
+          } catch (Exception e) {
+            throw new CompletionException(e);
+          }
+        },
+        executor);
+  }
+
+  private static void setFailedResults(
+      List<ZkRefUpdate.Result> results, BitSet raced, CuratorEvent transaction) {
+    List<CuratorTransactionResult> opResults = transaction.getOpResults();
+    for (int i = 0; i < results.size(); i++) {
+      boolean conflict =
+          opResults != null
+              && i < opResults.size()
+              && CONFLICTS.contains(Code.get(opResults.get(i).getError()));
+      results.set(i, conflict ? ZkRefUpdate.Result.CONFLICT : ZkRefUpdate.Result.ABORTED);
+      raced.set(i, conflict);
+    }
+  }
+
+  static class MultiCasResult {
+    final List<ZkRefUpdate.Result> results;
+    private final BitSet raced;
+
+    MultiCasResult(List<ZkRefUpdate.Result> results, BitSet raced) {
+      this.results = results;
+      this.raced = raced;
+    }
+
+    /**
+     * Whether the request at {@code index} conflicted because a concurrent writer changed its node
+     * after it was read, rather than because the node did not have the expected value.
+     */
+    boolean raced(int index) {
+      return raced.get(index);
+    }
+  }
+
+  static class CasRequest {
+    final String path;
+    final Predicate<byte[]> expected;
+    final boolean createIfMissing;
+    final byte[] newValue;
+
+    CasRequest(String path, Predicate<byte[]> expected, boolean createIfMissing, byte[] newValue) {
+      this.path = path;
+      this.expected = expected;
+      this.createIfMissing = createIfMissing;
+      this.newValue = newValue;
+    }
+  }
+}
@@ -0,0 +1,52 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import com.google.gerrit.entities.Project;
+import java.util.Optional;
+
+/** Mapping of the refs of the projects to the Zookeeper nodes storing their values. */
+public interface ZkPathLayout {
+  enum Type {
+    /** Every ref name component is a node: {@code /<project>/refs/heads/master}. */
+    LITERAL {
+      @Override
+      ZkPathLayout create() {
+        return new LiteralPathLayout();
+      }
+    },
+    /** Refs are spread across a bounded number of hash buckets of every project. */
+    HASHED {
+      @Override
+      ZkPathLayout create() {
+        return new HashedPathLayout();
+      }
+    };
+
+    abstract ZkPathLayout create();
+  }
+
+  /** Returns the path of the node storing the value of {@code refName}. */
+  String pathFor(Project.NameKey project, String refName);
+
+  /** Returns the root of the subtree storing all the refs of {@code project}. */
+  String refsRoot(Project.NameKey project);
+
+  /**
+   * Returns the name of the ref stored at {@code path}, or empty if it is an intermediate node of
+   * the layout.
+   */
+  Optional<String> refNameOf(Project.NameKey project, String path);
+}
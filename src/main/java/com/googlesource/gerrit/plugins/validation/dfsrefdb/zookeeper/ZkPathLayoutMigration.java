@@ -0,0 +1,157 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.gerrit.entities.Project;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.List;
+import java.util.Optional;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Online move of the refs of projects from the previous path layout to the configured one.
+ *
+ * <p>Whilst migrating, the shared ref-db reads a ref missing in the configured layout from the
+ * previous one, and copies it to the configured layout before updating it, so that the refs can be
+ * moved whilst the sites keep serving traffic. Every ref is copied unless already present in the
+ * configured layout, and then deleted from the previous layout only if it was not updated since it
+ * was read. Its Zookeeper requests are rate limited so that they do not compete with the Compare
+ * and Swap traffic.
+ */
+@Singleton
+public class ZkPathLayoutMigration {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private final ZkShardRouter router;
+  private final ZkRefPaths refPaths;
+  private final RateLimiter requestsLimiter;
+
+  @Inject
+  ZkPathLayoutMigration(ZkShardRouter router, ZkRefPaths refPaths, ZookeeperConfig cfg) {
+    this(router, refPaths, cfg.getPathMigrationRequestsPerSecond());
+  }
+
+  ZkPathLayoutMigration(ZkShardRouter router, ZkRefPaths refPaths, double requestsPerSecond) {
+    this.router = router;
+    this.refPaths = refPaths;
+    this.requestsLimiter = RateLimiter.create(requestsPerSecond);
+  }
+
+  public boolean isMigrating() {
+    return refPaths.isMigrating();
+  }
+
+  /**
+   * Moves all the refs of {@code project} stored in the previous layout to the configured one.
+   *
+   * @return the outcome of the migration of the project.
+   */
+  public Outcome migrate(Project.NameKey project) throws Exception {
+    Optional<ZkPathLayout> previousLayout = refPaths.previousLayout();
+    if (!previousLayout.isPresent()) {
+      return new Outcome(0, 0);
+    }
+
+    CuratorFramework client = router.shardFor(project).sessionFor(project).getClient();
+    MigrationRun run = new MigrationRun(client, project, previousLayout.get());
+    String previousRoot = previousLayout.get().refsRoot(project);
+    run.migrate(previousRoot);
+    if (run.skipped == 0) {
+      try {
+        client.delete().deletingChildrenIfNeeded().forPath(previousRoot);
+      } catch (KeeperException.NoNodeException e) {
+        // Nothing left to clean up
+      }
+    }
+
+    logger.atInfo().log(
+        "Moved %d refs of project %s to the %s path layout, %d skipped",
+        run.migrated, project, refPaths.layout().getClass().getSimpleName(), run.skipped);
+    return new Outcome(run.migrated, run.skipped);
+  }
+
+  public static class Outcome {
+    /** Number of refs moved to the configured layout. */
+    public final int migrated;
+    /** Number of refs left in the previous layout, because concurrently updated there. */
+    public final int skipped;
+
+    Outcome(int migrated, int skipped) {
+      this.migrated = migrated;
+      this.skipped = skipped;
+    }
+  }
+
+  private class MigrationRun {
+    private final CuratorFramework client;
+    private final Project.NameKey project;
+    private final ZkPathLayout previousLayout;
+    private int migrated;
+    private int skipped;
+
+    MigrationRun(CuratorFramework client, Project.NameKey project, ZkPathLayout previousLayout) {
+      this.client = client;
+      this.project = project;
+      this.previousLayout = previousLayout;
+    }
+
+    void migrate(String path) throws Exception {
+      Stat stat = new Stat();
+      byte[] value;
+      List<String> children;
+      requestsLimiter.acquire();
+      try {
+        value = client.getData().storingStatIn(stat).forPath(path);
+        children = client.getChildren().forPath(path);
+      } catch (KeeperException.NoNodeException e) {
+        return;
+      }
+
+      Optional<String> refName = previousLayout.refNameOf(project, path);
+      if (value != null && value.length > 0 && refName.isPresent()) {
+        moveRef(path, stat.getVersion(), value, refPaths.pathFor(project, refName.get()));
+      }
+      for (String child : children) {
+        migrate(ZKPaths.makePath(path, child));
+      }
+    }
+
+    private void moveRef(String path, int version, byte[] value, String newPath)
+        throws Exception {
+      requestsLimiter.acquire();
+      try {
+        client.create().creatingParentContainersIfNeeded().forPath(newPath, value);
+      } catch (KeeperException.NodeExistsException e) {
+        // Already updated in the configured layout
+      }
+
+      requestsLimiter.acquire();
+      try {
+        client.delete().withVersion(version).forPath(path);
+        migrated++;
+      } catch (KeeperException.NoNodeException e) {
+        // Concurrently moved
+      } catch (KeeperException.BadVersionException | KeeperException.NotEmptyException e) {
+        skipped++;
+      }
+    }
+  }
+}
@@ -0,0 +1,270 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper.ZkAsyncClient.resultCode;
+
+import com.google.common.collect.Lists;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.gerrit.entities.Project;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.framework.api.transaction.CuratorOp;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException.Code;
+
+/**
+ * Background removal of the Zookeeper nodes of a project.
+ *
+ * <p>A project may own millions of ref nodes, too many to be deleted one at a time on the thread
+ * removing the project. The remover enumerates the refs and the locks subtrees of the project, and
+ * its seeding marker, breadth-first, and then deletes them bottom-up, one level at a time, in
+ * batches of nodes deleted by a single multi() transaction. At most a bounded number of requests is
+ * in flight, and the Zookeeper requests are rate limited so that they do not flood the Zookeeper
+ * leader. A batch failing because one of its nodes was concurrently deleted is retried one node at
+ * a time.
+ */
+@Singleton
+public class ZkProjectRemover {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  static final int DEFAULT_BATCH_SIZE = 100;
+  static final int DEFAULT_PARALLELISM = 4;
+  static final int DEFAULT_REQUESTS_PER_SECOND = 1000;
+
+  private static final long PROGRESS_LOG_INTERVAL_MS = 10000;
+
+  private final ScheduledExecutorService executor;
+  private final int batchSize;
+  private final Semaphore inFlight;
+  private final RateLimiter requestsLimiter;
+
+  @Inject
+  ZkProjectRemover(
+      ZookeeperConfig cfg, @ZkMaintenanceExecutor ScheduledExecutorService executor) {
+    this(
+        executor,
+        cfg.getRemovalBatchSize(),
+        cfg.getRemovalParallelism(),
+        cfg.getRemovalRequestsPerSecond());
+  }
+
+  ZkProjectRemover(
+      ScheduledExecutorService executor,
+      int batchSize,
+      int parallelism,
+      double requestsPerSecond) {
+    this.executor = executor;
+    this.batchSize = batchSize;
+    this.inFlight = new Semaphore(parallelism);
+    this.requestsLimiter = RateLimiter.create(requestsPerSecond);
+  }
+
+  /**
+   * Deletes in background all the nodes of {@code project}, together with its locks.
+   *
+   * @return a future completed with the progress of the removal once all the nodes are deleted.
+   */
+  CompletableFuture<Progress> remove(CuratorFramework client, Project.NameKey project) {
+    CompletableFuture<Progress> result = new CompletableFuture<>();
+    Progress progress = new Progress(project);
+    try {
+      executor.execute(
+          () -> {
+            try {
+              RemovalRun run = new RemovalRun(client, progress);
+              run.remove("/" + project.get());
+              run.remove(ZkLockReaper.LOCKS_ROOT + "/" + project.get());
+              run.remove(ZkRefSeeder.markerPath(project));
+              logger.atInfo().log("Removed %s", progress);
+              result.complete(progress);
+            } catch (Exception e) {
+              logger.atSevere().withCause(e).log("Removal failed after %s", progress);
+              result.completeExceptionally(e);
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      result.completeExceptionally(e);
+    }
+    return result;
+  }
+
+  /** Progress of the removal of a project. */
+  public static class Progress {
+    private final Project.NameKey project;
+    private final long startMs = System.currentTimeMillis();
+    private final AtomicLong found = new AtomicLong();
+    private final AtomicLong deleted = new AtomicLong();
+    private volatile long lastLogMs = startMs;
+
+    Progress(Project.NameKey project) {
+      this.project = project;
+    }
+
+    /** Returns the number of nodes of the project found so far. */
+    public long getFound() {
+      return found.get();
+    }
+
+    /** Returns the number of nodes of the project deleted so far. */
+    public long getDeleted() {
+      return deleted.get();
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%d/%d nodes of project %s in %d ms",
+          deleted.get(), found.get(), project, System.currentTimeMillis() - startMs);
+    }
+
+    private void logIfDue() {
+      long nowMs = System.currentTimeMillis();
+      if (nowMs - lastLogMs >= PROGRESS_LOG_INTERVAL_MS) {
+        lastLogMs = nowMs;
+        logger.atInfo().log("Removing %s", this);
+      }
+    }
+  }
+
+  private class RemovalRun {
+    private final CuratorFramework client;
+    private final ZkAsyncClient zk;
+    private final Progress progress;
+
+    RemovalRun(CuratorFramework client, Progress progress) {
+      this.client = client;
+      this.zk = new ZkAsyncClient(client);
+      this.progress = progress;
+    }
+
+    void remove(String root) throws Exception {
+      List<List<String>> levels = new ArrayList<>();
+      for (List<String> level = Collections.singletonList(root);
+          !level.isEmpty();
+          level = childrenOf(level)) {
+        levels.add(level);
+      }
+      for (int depth = levels.size() - 1; depth >= 0; depth--) {
+        delete(levels.get(depth));
+      }
+    }
+
+    private List<String> childrenOf(List<String> parents) throws Exception {
+      List<String> children = Collections.synchronizedList(new ArrayList<>());
+      List<CompletableFuture<Void>> requests = new ArrayList<>();
+      for (String parent : parents) {
+        requests.add(
+            submit(
+                1,
+                () ->
+                    zk.getChildren(parent, Code.NONODE)
+                        .thenAccept(event -> addChildren(parent, event, children))));
+      }
+      waitFor(requests);
+      return children;
+    }
+
+    private void addChildren(String parent, CuratorEvent event, List<String> children) {
+      if (resultCode(event) == Code.OK) {
+        progress.found.incrementAndGet();
+        for (String child : event.getChildren()) {
+          children.add(ZKPaths.makePath(parent, child));
+        }
+      }
+    }
+
+    private void delete(List<String> paths) throws Exception {
+      List<CompletableFuture<Void>> requests = new ArrayList<>();
+      for (List<String> batch : Lists.partition(paths, batchSize)) {
+        requests.add(submit(batch.size(), () -> deleteBatch(batch)));
+      }
+      waitFor(requests);
+    }
+
+    private CompletableFuture<Void> deleteBatch(List<String> batch) {
+      List<CuratorOp> operations = new ArrayList<>(batch.size());
+      try {
+        for (String path : batch) {
+          operations.add(client.transactionOp().delete().forPath(path));
+        }
+      } catch (Exception e) {
+        return ZkAsyncClient.failedFuture(e);
+      }
+
+      return zk.multi(operations)
+          .handle((event, error) -> error == null)
+          .thenCompose(
+              deleted -> {
+                if (deleted) {
+                  progress.deleted.addAndGet(batch.size());
+                  return CompletableFuture.completedFuture(null);
+                }
+                return CompletableFuture.allOf(
+                    batch.stream().map(this::deleteNode).toArray(CompletableFuture[]::new));
+              });
+    }
+
+    private CompletableFuture<Void> deleteNode(String path) {
+      return zk.delete(path, Code.NONODE)
+          .thenAccept(
+              event -> {
+                if (resultCode(event) == Code.OK) {
+                  progress.deleted.incrementAndGet();
+                }
+              });
+    }
+
+    /**
+     * Issues a request once it fits in the rate limit and in the maximum number of requests in
+     * flight.
+     */
+    private CompletableFuture<Void> submit(
+        int operations, Supplier<CompletableFuture<Void>> request) throws InterruptedException {
+      requestsLimiter.acquire(operations);
+      inFlight.acquire();
+      progress.logIfDue();
+      CompletableFuture<Void> result;
+      try {
+        result = request.get();
+      } catch (RuntimeException e) {
+        inFlight.release();
+        throw e;
+      }
+      return result.whenComplete((value, error) -> inFlight.release());
+    }
+
+    private void waitFor(List<CompletableFuture<Void>> requests) throws Exception {
+      try {
+        CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[0])).get();
+      } catch (ExecutionException e) {
+        throw ZkAsyncClient.causeOf(e.getCause());
+      }
+    }
+  }
+}
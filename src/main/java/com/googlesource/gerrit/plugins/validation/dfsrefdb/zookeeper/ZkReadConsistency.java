@@ -0,0 +1,48 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+/**
+ * Consistency of the reads of the refs in Zookeeper.
+ *
+ * <p>A Zookeeper server may lag behind the leader, hence a read served by it may miss the latest
+ * updates. The reads of the refs matching the linearizable patterns, or of all the refs when
+ * linearizable by default, are preceded by a {@code sync()} with the leader.
+ */
+public class ZkReadConsistency {
+  public enum Level {
+    /** Read from the Zookeeper server the session is connected to, possibly behind the leader. */
+    LOCAL,
+    /** Synchronise the Zookeeper server with the leader before reading. */
+    LINEARIZABLE
+  }
+
+  private final Level defaultLevel;
+  private final RefPatternSet linearizableRefs;
+
+  public ZkReadConsistency(Level defaultLevel, RefPatternSet linearizableRefs) {
+    this.defaultLevel = defaultLevel;
+    this.linearizableRefs = linearizableRefs;
+  }
+
+  /** Local reads of all the refs. */
+  public static ZkReadConsistency local() {
+    return new ZkReadConsistency(Level.LOCAL, RefPatternSet.empty());
+  }
+
+  public Level forRef(String refName) {
+    return linearizableRefs.matches(refName) ? Level.LINEARIZABLE : defaultLevel;
+  }
+}
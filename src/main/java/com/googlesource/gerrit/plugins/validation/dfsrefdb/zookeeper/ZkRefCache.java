@@ -0,0 +1,168 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper.ZkAsyncClient.resultCode;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.entities.Project;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Bounded in-process cache of the ref values stored in Zookeeper.
+ *
+ * <p>Every cached entry is guarded by a one-shot Zookeeper watch: any change, deletion or
+ * connection event on the node drops the entry, so that the next read goes back to Zookeeper. The
+ * whole cache is dropped when the session is suspended or lost, because the watches may not have
+ * survived it.
+ *
+ * <p>Zookeeper 3.4 cannot remove a watch, hence the watch of an evicted entry stays registered
+ * until its node changes. A single watcher is kept per node until it fires, and reused when the
+ * node is read again, so that the repeated misses on a node never stack up watches.
+ */
+public class ZkRefCache implements ConnectionStateListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  public static final String ALL_PROJECTS = "*";
+
+  private final ZkAsyncClient zk;
+  private final ImmutableSet<String> projects;
+  private final Cache<String, CachedRef> entries;
+  private final ConcurrentMap<String, RefWatcher> watchers = new ConcurrentHashMap<>();
+
+  public ZkRefCache(CuratorFramework client, Set<String> projects, long maxEntries) {
+    this.zk = new ZkAsyncClient(client);
+    this.projects = ImmutableSet.copyOf(projects);
+    this.entries = CacheBuilder.newBuilder().maximumSize(maxEntries).build();
+
+    if (!this.projects.isEmpty()) {
+      client.getConnectionStateListenable().addListener(this);
+    }
+  }
+
+  public boolean isEnabledFor(Project.NameKey project) {
+    return projects.contains(ALL_PROJECTS) || projects.contains(project.get());
+  }
+
+  /**
+   * Returns the value stored at {@code path}, reading and watching it in Zookeeper when it is not
+   * cached yet.
+   */
+  CompletableFuture<CachedRef> get(String path) {
+    CachedRef cached = entries.getIfPresent(path);
+    if (cached != null) {
+      return CompletableFuture.completedFuture(cached);
+    }
+
+    RefWatcher watcher = watchers.computeIfAbsent(path, RefWatcher::new);
+    return load(path, watcher)
+        .thenApply(
+            loaded -> {
+              entries.put(path, loaded);
+              if (watcher.fired) {
+                entries.asMap().remove(path, loaded);
+              }
+              return loaded;
+            });
+  }
+
+  void invalidate(String path) {
+    entries.invalidate(path);
+  }
+
+  long size() {
+    return entries.size();
+  }
+
+  /** Returns the number of nodes watched, cached or evicted since their last change. */
+  int watchedNodes() {
+    return watchers.size();
+  }
+
+  @Override
+  public void stateChanged(CuratorFramework client, ConnectionState newState) {
+    switch (newState) {
+      case SUSPENDED:
+      case LOST:
+      case RECONNECTED:
+        logger.atInfo().log(
+            "Zookeeper connection %s: dropping %d cached refs", newState, entries.size());
+        entries.invalidateAll();
+        if (newState == ConnectionState.LOST) {
+          watchers.clear();
+        }
+        break;
+      default:
+        break;
+    }
+  }
+
+  private CompletableFuture<CachedRef> load(String path, RefWatcher watcher) {
+    return zk.getData(path, watcher, Code.NONODE)
+        .thenCompose(
+            value -> {
+              if (resultCode(value) == Code.OK) {
+                return CompletableFuture.completedFuture(new CachedRef(true, value.getData()));
+              }
+              return zk.checkExists(path, watcher, Code.NONODE)
+                  .thenCompose(
+                      exists ->
+                          resultCode(exists) == Code.NONODE
+                              ? CompletableFuture.completedFuture(new CachedRef(false, null))
+                              : load(path, watcher));
+            });
+  }
+
+  static class CachedRef {
+    final boolean exists;
+    final ObjectId objectId;
+
+    CachedRef(boolean exists, byte[] value) {
+      this.exists = exists;
+      this.objectId = value == null ? null : ZkSharedRefDatabase.readObjectId(value);
+    }
+  }
+
+  private class RefWatcher implements Watcher {
+    private final String path;
+    private volatile boolean fired;
+
+    RefWatcher(String path) {
+      this.path = path;
+    }
+
+    @Override
+    public void process(WatchedEvent event) {
+      if (event.getType() != Event.EventType.None) {
+        fired = true;
+        watchers.remove(path, this);
+      }
+      entries.invalidate(path);
+    }
+  }
+}
@@ -0,0 +1,47 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+/**
+ * Refs coordinated through Zookeeper.
+ *
+ * <p>Some refs need no global coordination, such as the immutable patch-set refs, which are only
+ * ever created, and the refs derived locally from others. The refs matching an excluded pattern,
+ * unless they also match an included pattern, are never stored in Zookeeper: they are always
+ * up-to-date, their compare and swap always succeeds and their lock is a no-op.
+ */
+public class ZkRefFilter {
+  private final RefPatternSet excludedRefs;
+  private final RefPatternSet includedRefs;
+
+  public ZkRefFilter(RefPatternSet excludedRefs, RefPatternSet includedRefs) {
+    this.excludedRefs = excludedRefs;
+    this.includedRefs = includedRefs;
+  }
+
+  /** Coordination of all the refs. */
+  public static ZkRefFilter all() {
+    return new ZkRefFilter(RefPatternSet.empty(), RefPatternSet.empty());
+  }
+
+  public boolean isExcluded(String refName) {
+    return excludedRefs.matches(refName) && !includedRefs.matches(refName);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("excluded %s, included %s", excludedRefs, includedRefs);
+  }
+}
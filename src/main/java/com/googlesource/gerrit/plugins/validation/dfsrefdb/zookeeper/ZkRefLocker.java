@@ -0,0 +1,104 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import com.google.gerrit.entities.Project;
+
+/**
+ * Exclusive locks of refs across all the nodes sharing the Zookeeper ensemble.
+ *
+ * <p>In {@link Mode#OPTIMISTIC} mode no distributed mutex is acquired for refs without recent
+ * Compare and Swap conflicts: their updates are already protected by the version check of the CAS.
+ * The mutex is used only for the refs having reached the configured number of conflicts.
+ *
+ * <p>With an adaptive lock timeout, the time waited for the mutex of a ref grows with its recent
+ * conflicts, up to {@link ZkAdaptiveRetryPolicy#MAX_CONTENTION_FACTOR} times the lock timeout, so
+ * that the writers of a hot ref queue on its mutex rather than give up during a burst.
+ *
+ * <p>The distributed mutexes are drawn from a {@link ZkLockRegistry}. The mutex of a ref is always
+ * under {@code /locks} at the literal path of the ref, whatever the path layout storing its value,
+ * so that all the sites lock the same node even whilst the layout is migrated.
+ */
+public class ZkRefLocker {
+  public enum Mode {
+    /** Always acquire the distributed mutex of the ref. */
+    MUTEX,
+    /** Acquire the distributed mutex only for the refs with recent CAS conflicts. */
+    OPTIMISTIC
+  }
+
+  private static final AutoCloseable NO_LOCK = () -> {};
+
+  private final ZkLockRegistry locks;
+  private final long lockTimeoutMs;
+  private final Mode mode;
+  private final int maxOptimisticConflicts;
+  private final RefContentionTracker contention;
+  private final boolean adaptiveLockTimeout;
+
+  public ZkRefLocker(
+      ZkLockRegistry locks,
+      long lockTimeoutMs,
+      Mode mode,
+      int maxOptimisticConflicts,
+      RefContentionTracker contention) {
+    this(locks, lockTimeoutMs, mode, maxOptimisticConflicts, contention, false);
+  }
+
+  public ZkRefLocker(
+      ZkLockRegistry locks,
+      long lockTimeoutMs,
+      Mode mode,
+      int maxOptimisticConflicts,
+      RefContentionTracker contention,
+      boolean adaptiveLockTimeout) {
+    this.locks = locks;
+    this.lockTimeoutMs = lockTimeoutMs;
+    this.mode = mode;
+    this.maxOptimisticConflicts = maxOptimisticConflicts;
+    this.contention = contention;
+    this.adaptiveLockTimeout = adaptiveLockTimeout;
+  }
+
+  /**
+   * Locks a ref.
+   *
+   * @param project project of the ref.
+   * @param refName name of the ref.
+   * @param refPath path of the node storing the value of the ref, keying its recent conflicts.
+   */
+  AutoCloseable lock(Project.NameKey project, String refName, String refPath) throws Exception {
+    int conflicts = contention.conflicts(refPath);
+    if (mode == Mode.OPTIMISTIC && conflicts < maxOptimisticConflicts) {
+      return NO_LOCK;
+    }
+    return locks.lock(
+        ZkLockReaper.LOCKS_ROOT + ZkSharedRefDatabase.pathFor(project, refName),
+        lockTimeoutMs(conflicts));
+  }
+
+  private long lockTimeoutMs(int conflicts) {
+    if (!adaptiveLockTimeout) {
+      return lockTimeoutMs;
+    }
+    return lockTimeoutMs * Math.min(1 + conflicts, ZkAdaptiveRetryPolicy.MAX_CONTENTION_FACTOR);
+  }
+
+  void recordCasOutcome(String refPath, boolean conflict) {
+    if (conflict) {
+      contention.recordConflict(refPath);
+    }
+  }
+}
@@ -0,0 +1,60 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import com.google.gerrit.entities.Project;
+import java.util.Optional;
+
+/**
+ * Paths of the refs in the configured layout and, whilst migrating to it, in the previous one.
+ *
+ * <p>During the migration a ref missing in the configured layout is read from the previous layout,
+ * and copied to the configured one before being updated.
+ */
+public class ZkRefPaths {
+  private final ZkPathLayout layout;
+  private final Optional<ZkPathLayout> previousLayout;
+
+  public ZkRefPaths(ZkPathLayout.Type layout, ZkPathLayout.Type previousLayout) {
+    this.layout = layout.create();
+    this.previousLayout =
+        previousLayout == layout ? Optional.empty() : Optional.of(previousLayout.create());
+  }
+
+  /** Paths of the refs in the literal layout, without migration. */
+  public static ZkRefPaths literal() {
+    return new ZkRefPaths(ZkPathLayout.Type.LITERAL, ZkPathLayout.Type.LITERAL);
+  }
+
+  public ZkPathLayout layout() {
+    return layout;
+  }
+
+  public Optional<ZkPathLayout> previousLayout() {
+    return previousLayout;
+  }
+
+  public boolean isMigrating() {
+    return previousLayout.isPresent();
+  }
+
+  String pathFor(Project.NameKey project, String refName) {
+    return layout.pathFor(project, refName);
+  }
+
+  Optional<String> previousPathFor(Project.NameKey project, String refName) {
+    return previousLayout.map(previous -> previous.pathFor(project, refName));
+  }
+}
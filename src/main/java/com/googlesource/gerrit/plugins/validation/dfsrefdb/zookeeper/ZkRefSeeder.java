@@ -0,0 +1,193 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import static com.google.common.base.Preconditions.checkState;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper.ZkAsyncClient.resultCode;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * Bulk creation of the refs of projects in the shared ref-db from the local repositories.
+ *
+ * <p>Without seeding, the refs are stored in Zookeeper only when first updated. The seeder streams
+ * the refs of a project as asynchronous creations, with a bounded number of requests in flight,
+ * and never overwrites a ref already stored in Zookeeper. The values are encoded as the shared
+ * ref-db would. Once all the refs of a project are stored, a marker node under {@link
+ * #SEEDED_ROOT} records it, so that an interrupted seeding resumes from the projects not seeded
+ * yet.
+ */
+@Singleton
+public class ZkRefSeeder {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  static final String SEEDED_ROOT = ZkSharedRefDatabase.INTERNAL_ROOT + "/seeded";
+
+  private final ZkShardRouter router;
+  private final ZkRefPaths refPaths;
+  private final ZkValueCodec codec;
+  private final GitRepositoryManager repoManager;
+  private final int maxInFlightRequests;
+
+  @Inject
+  ZkRefSeeder(
+      ZkShardRouter router,
+      ZkRefPaths refPaths,
+      ZkValueCodec codec,
+      GitRepositoryManager repoManager,
+      ZookeeperConfig cfg) {
+    this(router, refPaths, codec, repoManager, cfg.getSeedMaxInFlightRequests());
+  }
+
+  ZkRefSeeder(
+      ZkShardRouter router,
+      ZkRefPaths refPaths,
+      ZkValueCodec codec,
+      GitRepositoryManager repoManager,
+      int maxInFlightRequests) {
+    this.router = router;
+    this.refPaths = refPaths;
+    this.codec = codec;
+    this.repoManager = repoManager;
+    this.maxInFlightRequests = maxInFlightRequests;
+  }
+
+  /**
+   * Returns whether the path layout is being migrated, which would make the seeded refs hide the
+   * ones still stored in the previous layout.
+   */
+  public boolean isMigrating() {
+    return refPaths.isMigrating();
+  }
+
+  /**
+   * Returns whether the shards are being rebalanced, which would make the seeded refs hide the ones
+   * still stored in the previous shard of their project.
+   */
+  public boolean isRebalancing() {
+    return router.isRebalancing();
+  }
+
+  /**
+   * Stores in Zookeeper all the refs of the local repository of {@code project} missing there.
+   *
+   * @param force whether to seed the project even if already seeded.
+   * @return the outcome of the seeding of the project.
+   */
+  public Outcome seed(Project.NameKey project, boolean force) throws Exception {
+    checkState(!isMigrating(), "Cannot seed the refs whilst migrating the path layout");
+    checkState(!isRebalancing(), "Cannot seed the refs whilst rebalancing the shards");
+    CuratorFramework client = router.shardFor(project).sessionFor(project).getClient();
+    String markerPath = markerPath(project);
+    if (!force && client.checkExists().forPath(markerPath) != null) {
+      return new Outcome(0, 0, true);
+    }
+
+    Outcome outcome;
+    try (Repository repo = repoManager.openRepository(project)) {
+      outcome = seed(client, project, repo.getRefDatabase().getRefs());
+    }
+
+    try {
+      client.create().creatingParentContainersIfNeeded().forPath(markerPath);
+    } catch (KeeperException.NodeExistsException e) {
+      // Seeded again
+    }
+    logger.atInfo().log(
+        "Seeded project %s: %d refs created, %d already present",
+        project, outcome.created, outcome.existing);
+    return outcome;
+  }
+
+  Outcome seed(CuratorFramework client, Project.NameKey project, Collection<Ref> refs)
+      throws Exception {
+    ZkAsyncClient zk = new ZkAsyncClient(client);
+    Semaphore inFlight = new Semaphore(maxInFlightRequests);
+    AtomicInteger created = new AtomicInteger();
+    AtomicInteger existing = new AtomicInteger();
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    for (Ref ref : refs) {
+      if (ref.isSymbolic() || ref.getObjectId() == null) {
+        continue;
+      }
+      inFlight.acquire();
+      if (failure.get() != null) {
+        inFlight.release();
+        break;
+      }
+      zk.create(
+              refPaths.pathFor(project, ref.getName()),
+              codec.encodeObjectId(ref.getObjectId()),
+              Code.NODEEXISTS)
+          .whenComplete(
+              (event, error) -> {
+                if (error != null) {
+                  failure.compareAndSet(null, error);
+                } else if (resultCode(event) == Code.OK) {
+                  created.incrementAndGet();
+                } else {
+                  existing.incrementAndGet();
+                }
+                inFlight.release();
+              });
+    }
+    inFlight.acquire(maxInFlightRequests);
+
+    if (failure.get() != null) {
+      throw ZkAsyncClient.causeOf(failure.get());
+    }
+    return new Outcome(created.get(), existing.get(), false);
+  }
+
+  static String markerPath(Project.NameKey project) {
+    try {
+      return SEEDED_ROOT + "/" + URLEncoder.encode(project.get(), StandardCharsets.UTF_8.name());
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public static class Outcome {
+    /** Number of refs created in Zookeeper. */
+    public final int created;
+    /** Number of refs already stored in Zookeeper, and left untouched. */
+    public final int existing;
+    /** Whether the project was not seeded again, because already seeded. */
+    public final boolean alreadySeeded;
+
+    Outcome(int created, int existing, boolean alreadySeeded) {
+      this.created = created;
+      this.existing = existing;
+      this.alreadySeeded = alreadySeeded;
+    }
+  }
+}
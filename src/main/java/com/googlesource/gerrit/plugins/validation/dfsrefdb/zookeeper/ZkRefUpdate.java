@@ -0,0 +1,49 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import com.google.gerrit.entities.Project;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+
+/** Update of a single ref, part of a batch of Compare and Swap operations. */
+public class ZkRefUpdate {
+
+  /** Outcome of a ref update within a batch. */
+  public enum Result {
+    /** The ref has been updated, together with all the other refs of the batch. */
+    SUCCEEDED,
+    /** The ref did not have the expected value: none of the refs of the batch have been updated. */
+    CONFLICT,
+    /** The ref was not updated because of a conflict on another ref of the batch. */
+    ABORTED
+  }
+
+  public final Project.NameKey project;
+  public final Ref oldRef;
+  public final ObjectId newValue;
+
+  public ZkRefUpdate(Project.NameKey project, Ref oldRef, ObjectId newValue) {
+    this.project = project;
+    this.oldRef = oldRef;
+    this.newValue = newValue;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "%s:%s %s -> %s", project, oldRef.getName(), oldRef.getObjectId(), newValue);
+  }
+}
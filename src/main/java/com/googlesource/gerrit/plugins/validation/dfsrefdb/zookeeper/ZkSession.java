@@ -0,0 +1,47 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import org.apache.curator.framework.CuratorFramework;
+
+/**
+ * A Zookeeper session of a shard, with the client-side state bound to it.
+ *
+ * <p>The cached refs are guarded by watches and the locks are ephemeral nodes of this session,
+ * hence they are never shared with the other sessions of the shard.
+ */
+public class ZkSession {
+  private final CuratorFramework client;
+  private final ZkRefCache refCache;
+  private final ZkRefLocker refLocker;
+
+  public ZkSession(CuratorFramework client, ZkRefCache refCache, ZkRefLocker refLocker) {
+    this.client = client;
+    this.refCache = refCache;
+    this.refLocker = refLocker;
+  }
+
+  public CuratorFramework getClient() {
+    return client;
+  }
+
+  ZkRefCache getRefCache() {
+    return refCache;
+  }
+
+  ZkRefLocker getRefLocker() {
+    return refLocker;
+  }
+}
@@ -0,0 +1,78 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import com.google.gerrit.entities.Project;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.apache.curator.framework.CuratorFramework;
+
+/**
+ * One of the Zookeeper ensembles storing the shared ref-db, reached through one or more sessions.
+ *
+ * <p>Every project is bound to one of the sessions by the hash of its name, so that a slow request
+ * only delays the projects sharing its session. All the requests about the refs of a project go
+ * through the same session, which keeps them in order, and its locks are always created and
+ * released by that session.
+ */
+public class ZkShard {
+  public static final String DEFAULT = "default";
+
+  private final String name;
+  private final ImmutableList<ZkSession> sessions;
+
+  public ZkShard(String name, List<ZkSession> sessions) {
+    checkArgument(!sessions.isEmpty(), "Zookeeper shard %s has no sessions", name);
+    this.name = name;
+    this.sessions = ImmutableList.copyOf(sessions);
+  }
+
+  public ZkShard(String name, CuratorFramework client, ZkRefCache refCache, ZkRefLocker refLocker) {
+    this(name, ImmutableList.of(new ZkSession(client, refCache, refLocker)));
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /** Returns the client of the first session, for the work not bound to a project. */
+  public CuratorFramework getClient() {
+    return sessions.get(0).getClient();
+  }
+
+  public ImmutableList<ZkSession> getSessions() {
+    return sessions;
+  }
+
+  /** Returns the session of all the requests about the refs of {@code project}. */
+  public ZkSession sessionFor(Project.NameKey project) {
+    if (sessions.size() == 1) {
+      return sessions.get(0);
+    }
+    return sessions.get(
+        Hashing.consistentHash(
+            Hashing.murmur3_128().hashString(project.get(), StandardCharsets.UTF_8),
+            sessions.size()));
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
@@ -0,0 +1,213 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.gerrit.entities.Project;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Moves the refs of projects to the Zookeeper shard they are routed to.
+ *
+ * <p>Once the routing of a project is changed, its refs are updated in the new shard whilst the
+ * older values are still stored in the previous one. Rebalancing copies to the new shard every node
+ * it does not have yet, keeping the values already updated there, and then deletes the refs of the
+ * project from the other shards. The refs stored in any of the path layouts are moved.
+ *
+ * <p>Every node is deleted from its previous shard with the version it was copied at: a node
+ * updated there in the meantime, by a site still routing the project to it, is left in place and
+ * reported, rather than losing its update.
+ *
+ * <p>Projects are only moved whilst the shards are being rebalanced, so that the sites still read
+ * the refs not moved yet from their previous shard. The Zookeeper requests are rate limited so that
+ * they do not compete with the Compare and Swap traffic.
+ */
+@Singleton
+public class ZkShardRebalancer {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private final ZkShardRouter router;
+  private final RateLimiter requestsLimiter;
+
+  @Inject
+  ZkShardRebalancer(ZkShardRouter router, ZookeeperConfig cfg) {
+    this(router, cfg.getRebalanceRequestsPerSecond());
+  }
+
+  ZkShardRebalancer(ZkShardRouter router, double requestsPerSecond) {
+    this.router = router;
+    this.requestsLimiter = RateLimiter.create(requestsPerSecond);
+  }
+
+  public boolean isRebalancing() {
+    return router.isRebalancing();
+  }
+
+  /**
+   * Moves the refs of {@code project} from any other shard to the one it is routed to.
+   *
+   * @param project project to rebalance.
+   * @param dryRun whether to only count the nodes to move.
+   * @return the number of nodes moved from each shard, indexed by shard name.
+   * @throws IllegalStateException if the shards are not being rebalanced.
+   */
+  public Map<String, Integer> rebalance(Project.NameKey project, boolean dryRun)
+      throws Exception {
+    checkState(
+        router.isRebalancing(),
+        "Cannot rebalance project %s whilst the shards are not being rebalanced",
+        project);
+    ZkShard target = router.shardFor(project);
+    String projectPath = ZKPaths.makePath("/", project.get());
+
+    Map<String, Integer> moved = new LinkedHashMap<>();
+    for (ZkShard source : router.shards()) {
+      if (source == target) {
+        continue;
+      }
+
+      CuratorFramework sourceClient = source.getClient();
+      int nodes = 0;
+      for (ZkPathLayout.Type layout : ZkPathLayout.Type.values()) {
+        String refsPath = layout.create().refsRoot(project);
+        requestsLimiter.acquire();
+        if (sourceClient.checkExists().forPath(refsPath) == null) {
+          continue;
+        }
+        if (dryRun) {
+          nodes += count(sourceClient, refsPath);
+        } else {
+          Map<String, Integer> copiedVersions = new LinkedHashMap<>();
+          nodes += copy(sourceClient, target.getClient(), refsPath, copiedVersions);
+          int leftOver = delete(sourceClient, copiedVersions);
+          if (leftOver > 0) {
+            logger.atWarning().log(
+                "%d nodes of project %s were updated in Zookeeper shard %s after being copied"
+                    + " and were left in place: make sure all the sites route it to %s",
+                leftOver, project, source, target);
+          }
+        }
+      }
+      if (nodes == 0) {
+        continue;
+      }
+      moved.put(source.getName(), nodes);
+      if (dryRun) {
+        continue;
+      }
+
+      try {
+        requestsLimiter.acquire();
+        sourceClient.delete().forPath(projectPath);
+      } catch (KeeperException.NoNodeException | KeeperException.NotEmptyException e) {
+        // Still holding the refs of nested projects
+      }
+      logger.atInfo().log(
+          "Moved %d nodes of project %s from Zookeeper shard %s to %s",
+          nodes, project, source, target);
+    }
+    return moved;
+  }
+
+  /**
+   * Copies the nodes under {@code path} missing in the target shard.
+   *
+   * @param copiedVersions filled with the version of every node of the source shard, parents first.
+   * @return the number of nodes created in the target shard.
+   */
+  private int copy(
+      CuratorFramework source,
+      CuratorFramework target,
+      String path,
+      Map<String, Integer> copiedVersions)
+      throws Exception {
+    Stat stat = new Stat();
+    byte[] value;
+    List<String> children;
+    try {
+      requestsLimiter.acquire(2);
+      value = source.getData().storingStatIn(stat).forPath(path);
+      children = source.getChildren().forPath(path);
+    } catch (KeeperException.NoNodeException e) {
+      return 0;
+    }
+    copiedVersions.put(path, stat.getVersion());
+
+    int copied = 0;
+    try {
+      requestsLimiter.acquire();
+      target.create().creatingParentContainersIfNeeded().forPath(path, value);
+      copied++;
+    } catch (KeeperException.NodeExistsException e) {
+      // Already updated in the target shard
+    }
+    for (String child : children) {
+      copied += copy(source, target, ZKPaths.makePath(path, child), copiedVersions);
+    }
+    return copied;
+  }
+
+  /**
+   * Deletes the copied nodes, children first, unless updated since they were copied.
+   *
+   * @return the number of nodes left in place.
+   */
+  private int delete(CuratorFramework client, Map<String, Integer> copiedVersions)
+      throws Exception {
+    List<String> paths = new ArrayList<>(copiedVersions.keySet());
+    Collections.reverse(paths);
+    int leftOver = 0;
+    for (String path : paths) {
+      try {
+        requestsLimiter.acquire();
+        client.delete().withVersion(copiedVersions.get(path)).forPath(path);
+      } catch (KeeperException.NoNodeException e) {
+        // Already deleted
+      } catch (KeeperException.BadVersionException | KeeperException.NotEmptyException e) {
+        leftOver++;
+      }
+    }
+    return leftOver;
+  }
+
+  private int count(CuratorFramework client, String path) throws Exception {
+    List<String> children;
+    try {
+      requestsLimiter.acquire();
+      children = client.getChildren().forPath(path);
+    } catch (KeeperException.NoNodeException e) {
+      return 0;
+    }
+
+    int count = 1;
+    for (String child : children) {
+      count += count(client, ZKPaths.makePath(path, child));
+    }
+    return count;
+  }
+}
@@ -0,0 +1,179 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.ImmutableList.toImmutableList;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.gerrit.entities.Project;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Routes every project to the Zookeeper shard storing its refs.
+ *
+ * <p>A project matching one of the patterns of a shard is routed to it, trying the shards in their
+ * configuration order. The other projects are routed to the default shard or, when hashing is
+ * enabled, spread across all the shards by consistent hashing of their name, so that adding a shard
+ * moves only the projects landing on its share of the hash ring.
+ *
+ * <p>A project pattern is a regular expression when it starts with {@code ^}, a prefix when it
+ * ends with {@code *}, and an exact project name otherwise.
+ *
+ * <p>Whilst rebalancing after a routing change, the refs of a project missing in its shard may
+ * still be stored in the shard it was previously routed to, and are then read from the other
+ * shards.
+ */
+public class ZkShardRouter {
+  private static final int VIRTUAL_NODES_PER_SHARD = 128;
+  private static final HashFunction HASH = Hashing.murmur3_128();
+
+  private final ImmutableMap<String, ZkShard> shards;
+  private final ZkShard defaultShard;
+  private final ImmutableList<ProjectMapping> mappings;
+  private final NavigableMap<Long, ZkShard> hashRing;
+  private final boolean rebalancing;
+
+  public ZkShardRouter(
+      List<ZkShard> shards, ListMultimap<String, String> projectPatterns, boolean hashProjects) {
+    this(shards, projectPatterns, hashProjects, false);
+  }
+
+  /**
+   * @param shards all the shards, including the {@link ZkShard#DEFAULT} one.
+   * @param projectPatterns project patterns routed to each shard, indexed by shard name.
+   * @param hashProjects whether the projects not matching any pattern are spread across all the
+   *     shards.
+   * @param rebalancing whether the projects are being moved to their shard after a routing change.
+   */
+  public ZkShardRouter(
+      List<ZkShard> shards,
+      ListMultimap<String, String> projectPatterns,
+      boolean hashProjects,
+      boolean rebalancing) {
+    ImmutableMap.Builder<String, ZkShard> shardsByName = ImmutableMap.builder();
+    shards.forEach(shard -> shardsByName.put(shard.getName(), shard));
+    this.shards = shardsByName.build();
+    this.defaultShard = this.shards.get(ZkShard.DEFAULT);
+    checkArgument(defaultShard != null, "Missing the %s Zookeeper shard", ZkShard.DEFAULT);
+
+    ImmutableList.Builder<ProjectMapping> mappings = ImmutableList.builder();
+    for (Map.Entry<String, String> pattern : projectPatterns.entries()) {
+      ZkShard shard = this.shards.get(pattern.getKey());
+      checkArgument(shard != null, "Unknown Zookeeper shard %s", pattern.getKey());
+      mappings.add(new ProjectMapping(pattern.getValue(), shard));
+    }
+    this.mappings = mappings.build();
+
+    this.hashRing = new TreeMap<>();
+    if (hashProjects) {
+      for (ZkShard shard : shards) {
+        for (int i = 0; i < VIRTUAL_NODES_PER_SHARD; i++) {
+          hashRing.put(hash(shard.getName() + "#" + i), shard);
+        }
+      }
+    }
+    this.rebalancing = rebalancing;
+  }
+
+  /** Router of a single Zookeeper ensemble. */
+  public static ZkShardRouter singleShard(ZkShard shard) {
+    return new ZkShardRouter(ImmutableList.of(shard), ImmutableListMultimap.of(), false);
+  }
+
+  /** Returns the shard storing the refs of {@code project}. */
+  public ZkShard shardFor(Project.NameKey project) {
+    String projectName = project.get();
+    for (ProjectMapping mapping : mappings) {
+      if (mapping.matches(projectName)) {
+        return mapping.shard;
+      }
+    }
+
+    if (hashRing.isEmpty()) {
+      return defaultShard;
+    }
+    Map.Entry<Long, ZkShard> owner = hashRing.ceilingEntry(hash(projectName));
+    return owner != null ? owner.getValue() : hashRing.firstEntry().getValue();
+  }
+
+  /**
+   * Returns the shards that may still store refs of {@code project} whilst rebalancing, empty
+   * otherwise.
+   */
+  public List<ZkShard> previousShardsFor(Project.NameKey project) {
+    if (!rebalancing) {
+      return ImmutableList.of();
+    }
+    ZkShard shard = shardFor(project);
+    return shards.values().stream().filter(other -> other != shard).collect(toImmutableList());
+  }
+
+  public boolean isRebalancing() {
+    return rebalancing;
+  }
+
+  public ZkShard defaultShard() {
+    return defaultShard;
+  }
+
+  public Optional<ZkShard> shard(String name) {
+    return Optional.ofNullable(shards.get(name));
+  }
+
+  /** Returns all the shards, in configuration order. */
+  public Collection<ZkShard> shards() {
+    return shards.values();
+  }
+
+  private static long hash(String value) {
+    return HASH.hashString(value, StandardCharsets.UTF_8).asLong();
+  }
+
+  private static class ProjectMapping {
+    final Predicate<String> matcher;
+    final ZkShard shard;
+
+    ProjectMapping(String pattern, ZkShard shard) {
+      this.shard = shard;
+      if (pattern.startsWith("^")) {
+        Pattern regex = Pattern.compile(pattern);
+        this.matcher = name -> regex.matcher(name).matches();
+      } else if (pattern.endsWith("*")) {
+        String prefix = pattern.substring(0, pattern.length() - 1);
+        this.matcher = name -> name.startsWith(prefix);
+      } else {
+        this.matcher = pattern::equals;
+      }
+    }
+
+    boolean matches(String projectName) {
+      return matcher.test(projectName);
+    }
+  }
+}
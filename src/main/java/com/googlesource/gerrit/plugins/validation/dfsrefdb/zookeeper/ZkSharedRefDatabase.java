@@ -14,103 +14,403 @@
 
 package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
 
-import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper.ZkAsyncClient.resultCode;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper.ZkSharedRefDbMetrics.COMPARE_AND_PUT;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper.ZkSharedRefDbMetrics.COMPARE_AND_PUT_ALL;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper.ZkSharedRefDbMetrics.COMPARE_AND_PUT_GENERIC;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper.ZkSharedRefDbMetrics.ERROR;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper.ZkSharedRefDbMetrics.EXISTS;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper.ZkSharedRefDbMetrics.GET;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper.ZkSharedRefDbMetrics.IS_UP_TO_DATE;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper.ZkSharedRefDbMetrics.LOCK_WAIT;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper.ZkSharedRefDbMetrics.REMOVE;
 
 import com.gerritforge.gerrit.globalrefdb.GlobalRefDatabase;
 import com.gerritforge.gerrit.globalrefdb.GlobalRefDbLockException;
 import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.flogger.FluentLogger;
 import com.google.gerrit.entities.Project;
 import com.google.inject.Inject;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import org.apache.curator.RetryPolicy;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 import org.apache.curator.framework.CuratorFramework;
-import org.apache.curator.framework.recipes.atomic.AtomicValue;
-import org.apache.curator.framework.recipes.atomic.DistributedAtomicValue;
-import org.apache.curator.framework.recipes.locks.InterProcessMutex;
-import org.apache.curator.framework.recipes.locks.Locker;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.zookeeper.KeeperException.Code;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Ref;
 
 public class ZkSharedRefDatabase implements GlobalRefDatabase {
   private static final FluentLogger logger = FluentLogger.forEnclosingClass();
 
-  private final CuratorFramework client;
-  private final RetryPolicy retryPolicy;
+  private final ZkShardRouter router;
+  private final ZkRefPaths refPaths;
+  private final ZkReadConsistency readConsistency;
+  private final ZkRefFilter refFilter;
+  private final ImmutableMap<ZkSession, SessionClient> sessionClients;
 
-  private final Long transactionLockTimeOut;
   private StringDeserializerFactory stringDeserializerFactory;
+  private final ZkValueCodec codec;
+  private final ZkSharedRefDbMetrics metrics;
+  private final ZkProjectRemover remover;
 
   @Inject
   public ZkSharedRefDatabase(
-      CuratorFramework client,
+      ZkShardRouter router,
+      ZkRefPaths refPaths,
+      ZkReadConsistency readConsistency,
+      ZkRefFilter refFilter,
       ZkConnectionConfig connConfig,
-      StringDeserializerFactory stringDeserializerFactory) {
-    this.client = client;
-    this.retryPolicy = connConfig.curatorRetryPolicy;
-    this.transactionLockTimeOut = connConfig.transactionLockTimeout;
+      StringDeserializerFactory stringDeserializerFactory,
+      ZkValueCodec codec,
+      ZkSharedRefDbMetrics metrics,
+      ZkProjectRemover remover,
+      @ZkExecutor ScheduledExecutorService executor) {
+    this.router = router;
+    this.refPaths = refPaths;
+    this.readConsistency = readConsistency;
+    this.refFilter = refFilter;
+    ImmutableMap.Builder<ZkSession, SessionClient> sessionClients = ImmutableMap.builder();
+    for (ZkShard shard : router.shards()) {
+      for (ZkSession session : shard.getSessions()) {
+        sessionClients.put(
+            session, new SessionClient(shard, session, connConfig, executor));
+      }
+    }
+    this.sessionClients = sessionClients.build();
     this.stringDeserializerFactory = stringDeserializerFactory;
+    this.codec = codec;
+    this.metrics = metrics;
+    this.remover = remover;
+  }
+
+  /** Shared ref-db stored in a single Zookeeper ensemble. */
+  public ZkSharedRefDatabase(
+      CuratorFramework client,
+      ZkConnectionConfig connConfig,
+      StringDeserializerFactory stringDeserializerFactory,
+      ZkRefCache refCache,
+      ZkRefLocker refLocker,
+      ZkValueCodec codec,
+      ZkSharedRefDbMetrics metrics,
+      ScheduledExecutorService executor) {
+    this(
+        ZkShardRouter.singleShard(new ZkShard(ZkShard.DEFAULT, client, refCache, refLocker)),
+        ZkRefPaths.literal(),
+        ZkReadConsistency.local(),
+        ZkRefFilter.all(),
+        connConfig,
+        stringDeserializerFactory,
+        codec,
+        metrics,
+        new ZkProjectRemover(
+            executor,
+            ZkProjectRemover.DEFAULT_BATCH_SIZE,
+            ZkProjectRemover.DEFAULT_PARALLELISM,
+            ZkProjectRemover.DEFAULT_REQUESTS_PER_SECOND),
+        executor);
   }
 
   @Override
   public boolean isUpToDate(Project.NameKey project, Ref ref) throws GlobalRefDbLockException {
-    if (!exists(project, ref.getName())) {
-      return true;
+    return waitFor(
+        isUpToDateAsync(project, ref),
+        GlobalRefDbLockException.class,
+        e -> new GlobalRefDbLockException(project.get(), ref.getName(), e));
+  }
+
+  /**
+   * Asynchronous version of {@link #isUpToDate(Project.NameKey, Ref)}.
+   *
+   * @return a future completed with the outcome of the check, or failed with a {@link
+   *     GlobalRefDbLockException}.
+   */
+  public CompletableFuture<Boolean> isUpToDateAsync(Project.NameKey project, Ref ref) {
+    return isUpToDateAsync(project, ref, readConsistency.forRef(ref.getName()));
+  }
+
+  /**
+   * Asynchronous version of {@link #isUpToDate(Project.NameKey, Ref)}, reading the ref with the
+   * given consistency rather than the configured one.
+   *
+   * @return a future completed with the outcome of the check, or failed with a {@link
+   *     GlobalRefDbLockException}.
+   */
+  public CompletableFuture<Boolean> isUpToDateAsync(
+      Project.NameKey project, Ref ref, ZkReadConsistency.Level consistency) {
+    if (refFilter.isExcluded(ref.getName())) {
+      return CompletableFuture.completedFuture(true);
+    }
+    long startNanos = System.nanoTime();
+    SessionClient session = sessionFor(project);
+    if (!session.circuitBreaker.tryAcquire()) {
+      return ZkAsyncClient.failedFuture(session.circuitBreaker.rejection());
     }
+    return session.circuitBreaker.monitor(
+        isUpToDateAsync(
+            session,
+            project,
+            ref,
+            consistency,
+            syncIfLinearizable(session, refPaths.pathFor(project, ref.getName()), consistency),
+            startNanos));
+  }
 
-    try {
-      final byte[] valueInZk = client.getData().forPath(pathFor(project, ref.getName()));
-
-      // Assuming this is a delete node NULL_REF
-      if (valueInZk == null) {
-        logger.atInfo().log(
-            "%s:%s not found in Zookeeper, assumed as delete node NULL_REF",
-            project, ref.getName());
-        return false;
-      }
+  private CompletableFuture<Boolean> isUpToDateAsync(
+      SessionClient session,
+      Project.NameKey project,
+      Ref ref,
+      ZkReadConsistency.Level consistency,
+      CompletableFuture<Void> synced,
+      long startNanos) {
+    String path = refPaths.pathFor(project, ref.getName());
+    CompletableFuture<Boolean> upToDate;
+    if (consistency == ZkReadConsistency.Level.LOCAL
+        && session.refCache.isEnabledFor(project)
+        && !refPaths.isMigrating()
+        && !router.isRebalancing()) {
+      upToDate =
+          session
+              .refCache
+              .get(path)
+              .thenApply(cached -> !cached.exists || isUpToDate(project, ref, cached.objectId));
+    } else {
+      upToDate =
+          synced
+              .thenCompose(
+                  barrier ->
+                      readWithFallback(
+                          session,
+                          project,
+                          ref.getName(),
+                          (client, refPath) -> client.zk.getData(refPath, Code.NONODE)))
+              .thenApply(
+                  event -> {
+                    if (resultCode(event) == Code.NONODE) {
+                      return true;
+                    }
+                    byte[] valueInZk = event.getData();
+                    return isUpToDate(
+                        project, ref, valueInZk == null ? null : readObjectId(valueInZk));
+                  });
+    }
+    return metrics.observe(
+        IS_UP_TO_DATE,
+        startNanos,
+        failWith(upToDate, e -> new GlobalRefDbLockException(project.get(), ref.getName(), e)),
+        isUpToDate -> !isUpToDate);
+  }
 
-      ObjectId objectIdInSharedRefDb = readObjectId(valueInZk);
-      Boolean isUpToDate = objectIdInSharedRefDb.equals(ref.getObjectId());
+  /**
+   * Checks whether many refs of a project are up-to-date, issuing all the Zookeeper reads at once.
+   *
+   * <p>A single {@code sync()} precedes the reads when any of the refs is read with the {@link
+   * ZkReadConsistency.Level#LINEARIZABLE} consistency.
+   *
+   * @param project project of the refs.
+   * @param refs local refs to check.
+   * @return whether each ref is up-to-date, indexed by ref name.
+   * @throws GlobalRefDbLockException if any of the refs could not be checked.
+   */
+  public Map<String, Boolean> isUpToDate(Project.NameKey project, Collection<Ref> refs)
+      throws GlobalRefDbLockException {
+    return waitFor(
+        isUpToDateAsync(project, refs),
+        GlobalRefDbLockException.class,
+        e -> new GlobalRefDbLockException(project.get(), refs.size() + " refs", e));
+  }
 
-      if (!isUpToDate) {
-        logger.atWarning().log(
-            "%s:%s is out of sync: local=%s zk=%s",
-            project, ref.getName(), ref.getObjectId(), objectIdInSharedRefDb);
+  /**
+   * Asynchronous version of {@link #isUpToDate(Project.NameKey, Collection)}.
+   *
+   * @return a future completed with whether each ref is up-to-date, indexed by ref name, or failed
+   *     with a {@link GlobalRefDbLockException}.
+   */
+  public CompletableFuture<Map<String, Boolean>> isUpToDateAsync(
+      Project.NameKey project, Collection<Ref> refs) {
+    SessionClient session = sessionFor(project);
+    if (!session.circuitBreaker.tryAcquire()) {
+      return ZkAsyncClient.failedFuture(session.circuitBreaker.rejection());
+    }
+    Map<Ref, ZkReadConsistency.Level> consistencies = new LinkedHashMap<>();
+    for (Ref ref : refs) {
+      if (!refFilter.isExcluded(ref.getName())) {
+        consistencies.put(ref, readConsistency.forRef(ref.getName()));
       }
+    }
+    CompletableFuture<Void> synced =
+        syncIfLinearizable(
+            session,
+            "/" + project.get(),
+            consistencies.containsValue(ZkReadConsistency.Level.LINEARIZABLE)
+                ? ZkReadConsistency.Level.LINEARIZABLE
+                : ZkReadConsistency.Level.LOCAL);
+
+    Map<String, CompletableFuture<Boolean>> checks = new LinkedHashMap<>();
+    for (Ref ref : refs) {
+      ZkReadConsistency.Level consistency = consistencies.get(ref);
+      checks.put(
+          ref.getName(),
+          consistency == null
+              ? CompletableFuture.completedFuture(true)
+              : isUpToDateAsync(session, project, ref, consistency, synced, System.nanoTime()));
+    }
 
-      return isUpToDate;
-    } catch (Exception e) {
-      throw new GlobalRefDbLockException(project.get(), ref.getName(), e);
+    return session.circuitBreaker.monitor(
+        CompletableFuture.allOf(checks.values().toArray(new CompletableFuture<?>[0]))
+            .thenApply(
+                allChecked -> {
+                  ImmutableMap.Builder<String, Boolean> upToDate = ImmutableMap.builder();
+                  checks.forEach((refName, check) -> upToDate.put(refName, check.join()));
+                  return upToDate.build();
+                }));
+  }
+
+  private boolean isUpToDate(Project.NameKey project, Ref ref, ObjectId objectIdInSharedRefDb) {
+    // Assuming this is a delete node NULL_REF
+    if (objectIdInSharedRefDb == null) {
+      logger.atInfo().log(
+          "%s:%s not found in Zookeeper, assumed as delete node NULL_REF", project, ref.getName());
+      return false;
     }
+
+    Boolean isUpToDate = objectIdInSharedRefDb.equals(ref.getObjectId());
+
+    if (!isUpToDate) {
+      logger.atWarning().log(
+          "%s:%s is out of sync: local=%s zk=%s",
+          project, ref.getName(), ref.getObjectId(), objectIdInSharedRefDb);
+    }
+
+    return isUpToDate;
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The nodes of the project are deleted in background: see {@link ZkProjectRemover}. Returns
+   * once the removal is scheduled, and fails only if it cannot be, because the circuit breaker is
+   * open or the maintenance executor rejects it. A later failure is logged by the remover and
+   * counted by the {@code remove} operation metrics: use {@link #removeAsync(Project.NameKey)} to
+   * wait for the removal.
+   */
   @Override
   public void remove(Project.NameKey project) throws GlobalRefDbSystemError {
-    try {
-      client.delete().deletingChildrenIfNeeded().forPath("/" + project);
-    } catch (Exception e) {
-      throw new GlobalRefDbSystemError(
-          String.format("Not able to delete project '%s'", project), e);
+    CompletableFuture<ZkProjectRemover.Progress> removal = removeAsync(project);
+    if (removal.isCompletedExceptionally()) {
+      waitFor(
+          removal,
+          GlobalRefDbSystemError.class,
+          e ->
+              new GlobalRefDbSystemError(
+                  String.format("Not able to delete project '%s'", project), e));
+    }
+  }
+
+  /**
+   * Asynchronous version of {@link #remove(Project.NameKey)}.
+   *
+   * @return a future completed with the progress of the removal once all the nodes of the project
+   *     are deleted, or failed with a {@link GlobalRefDbSystemError}.
+   */
+  public CompletableFuture<ZkProjectRemover.Progress> removeAsync(Project.NameKey project) {
+    long startNanos = System.nanoTime();
+    SessionClient session = sessionFor(project);
+    if (!session.circuitBreaker.tryAcquire()) {
+      return ZkAsyncClient.failedFuture(session.circuitBreaker.rejection());
     }
+    return metrics.observe(
+        REMOVE,
+        startNanos,
+        failWith(
+            session.circuitBreaker.monitor(remover.remove(session.client, project)),
+            e ->
+                new GlobalRefDbSystemError(
+                    String.format("Not able to delete project '%s'", project), e)),
+        progress -> false);
   }
 
   @Override
   public boolean exists(Project.NameKey project, String refName) throws ZookeeperRuntimeException {
-    try {
-      return client.checkExists().forPath(pathFor(project, refName)) != null;
-    } catch (Exception e) {
-      throw new ZookeeperRuntimeException("Failed to check if path exists in Zookeeper", e);
+    return waitFor(
+        existsAsync(project, refName),
+        ZookeeperRuntimeException.class,
+        e -> new ZookeeperRuntimeException("Failed to check if path exists in Zookeeper", e));
+  }
+
+  /**
+   * Asynchronous version of {@link #exists(Project.NameKey, String)}.
+   *
+   * @return a future completed with the existence of the ref, or failed with a {@link
+   *     ZookeeperRuntimeException}.
+   */
+  public CompletableFuture<Boolean> existsAsync(Project.NameKey project, String refName) {
+    long startNanos = System.nanoTime();
+    SessionClient session = sessionFor(project);
+    if (!session.circuitBreaker.tryAcquire()) {
+      return ZkAsyncClient.failedFuture(session.circuitBreaker.rejection());
     }
+    return metrics.observe(
+        EXISTS,
+        startNanos,
+        failWith(
+            session.circuitBreaker.monitor(
+                syncIfLinearizable(
+                        session,
+                        refPaths.pathFor(project, refName),
+                        readConsistency.forRef(refName))
+                    .thenCompose(
+                        synced ->
+                            readWithFallback(
+                                session,
+                                project,
+                                refName,
+                                (client, refPath) -> client.zk.checkExists(refPath, Code.NONODE)))
+                    .thenApply(event -> resultCode(event) == Code.OK)),
+            e -> new ZookeeperRuntimeException("Failed to check if path exists in Zookeeper", e)),
+        exists -> false);
   }
 
   @Override
-  public Locker lockRef(Project.NameKey project, String refName) throws GlobalRefDbLockException {
-    InterProcessMutex refPathMutex =
-        new InterProcessMutex(client, "/locks" + pathFor(project, refName));
+  public AutoCloseable lockRef(Project.NameKey project, String refName)
+      throws GlobalRefDbLockException {
+    if (refFilter.isExcluded(refName)) {
+      return () -> {};
+    }
+    long startNanos = System.nanoTime();
+    SessionClient session = sessionFor(project);
+    if (!session.circuitBreaker.tryAcquire()) {
+      throw session.circuitBreaker.rejection();
+    }
     try {
-      return new Locker(refPathMutex, transactionLockTimeOut, MILLISECONDS);
+      AutoCloseable lock =
+          session.refLocker.lock(project, refName, refPaths.pathFor(project, refName));
+      session.circuitBreaker.recordOutcome(true);
+      return metrics.lockAcquired(startNanos, lock);
     } catch (Exception e) {
+      session.circuitBreaker.recordOutcome(false);
+      metrics.record(LOCK_WAIT, startNanos, ERROR);
+      if (e instanceof TimeoutException) {
+        metrics.recordLockTimeout();
+      }
       throw new GlobalRefDbLockException(project.get(), refName, e);
     }
   }
@@ -118,112 +418,556 @@ public class ZkSharedRefDatabase implements GlobalRefDatabase {
   @Override
   public boolean compareAndPut(Project.NameKey projectName, Ref oldRef, ObjectId newRefValue)
       throws GlobalRefDbSystemError {
+    return waitFor(
+        compareAndPutAsync(projectName, oldRef, newRefValue),
+        GlobalRefDbSystemError.class,
+        e -> casError("Error trying to perform CAS at path %s", projectName, oldRef.getName(), e));
+  }
 
-    final DistributedAtomicValue distributedRefValue =
-        new DistributedAtomicValue(client, pathFor(projectName, oldRef.getName()), retryPolicy);
+  /**
+   * Asynchronous version of {@link #compareAndPut(Project.NameKey, Ref, ObjectId)}.
+   *
+   * @return a future completed with the outcome of the Compare and Swap, or failed with a {@link
+   *     GlobalRefDbSystemError}.
+   */
+  public CompletableFuture<Boolean> compareAndPutAsync(
+      Project.NameKey projectName, Ref oldRef, ObjectId newRefValue) {
+    if (refFilter.isExcluded(oldRef.getName())) {
+      return CompletableFuture.completedFuture(true);
+    }
+    ObjectId expectedValue =
+        oldRef.getObjectId() == null ? ObjectId.zeroId() : oldRef.getObjectId();
+    ObjectId newValue = newRefValue == null ? ObjectId.zeroId() : newRefValue;
+
+    // Refs not yet in Zookeeper are accepted whatever their current local value
+    return compareAndSet(
+        sessionFor(projectName),
+        COMPARE_AND_PUT,
+        projectName,
+        oldRef.getName(),
+        valueInZk -> readObjectId(valueInZk).equals(expectedValue),
+        true,
+        () -> codec.encodeObjectId(newValue),
+        e -> casError("Error trying to perform CAS at path %s", projectName, oldRef.getName(), e));
+  }
 
-    try {
-      if ((oldRef.getObjectId() == null || oldRef.getObjectId().equals(ObjectId.zeroId()))
-          && refNotInZk(projectName, oldRef)) {
-        return distributedRefValue.initialize(writeObjectId(newRefValue));
-      }
-      final ObjectId newValue = newRefValue == null ? ObjectId.zeroId() : newRefValue;
-      final AtomicValue<byte[]> newDistributedValue =
-          distributedRefValue.compareAndSet(
-              writeObjectId(oldRef.getObjectId()), writeObjectId(newValue));
+  /**
+   * Atomically applies a batch of ref updates in a single Zookeeper transaction.
+   *
+   * <p>Every ref must have its expected value, or be missing in Zookeeper, for the batch to be
+   * applied: either all the refs are updated or none of them is. All the refs must be updated
+   * through the same Zookeeper session, which is always the case for the refs of a single project.
+   *
+   * @param updates ref updates to apply, at most one per ref.
+   * @return the outcome of every update, in the same order as {@code updates}.
+   * @throws GlobalRefDbSystemError if Zookeeper could not be reached.
+   */
+  public Map<ZkRefUpdate, ZkRefUpdate.Result> compareAndPutAll(List<ZkRefUpdate> updates)
+      throws GlobalRefDbSystemError {
+    return waitFor(
+        compareAndPutAllAsync(updates),
+        GlobalRefDbSystemError.class,
+        e -> batchCasError(updates, e));
+  }
 
-      if (!newDistributedValue.succeeded() && refNotInZk(projectName, oldRef)) {
-        return distributedRefValue.initialize(writeObjectId(newRefValue));
+  /**
+   * Asynchronous version of {@link #compareAndPutAll(List)}.
+   *
+   * @return a future completed with the outcome of every update, or failed with a {@link
+   *     GlobalRefDbSystemError}.
+   */
+  public CompletableFuture<Map<ZkRefUpdate, ZkRefUpdate.Result>> compareAndPutAllAsync(
+      List<ZkRefUpdate> updates) {
+    long startNanos = System.nanoTime();
+    SessionClient session =
+        updates.isEmpty()
+            ? sessionClients.get(router.defaultShard().getSessions().get(0))
+            : sessionFor(updates.get(0).project);
+    List<ZkRefUpdate> coordinated = new ArrayList<>(updates.size());
+    List<ZkMultiCasEngine.CasRequest> requests = new ArrayList<>(updates.size());
+    Set<String> paths = new HashSet<>();
+    for (ZkRefUpdate update : updates) {
+      checkArgument(
+          sessionFor(update.project) == session,
+          "Batch spans more than one Zookeeper session: %s is not updated through %s",
+          update.project,
+          session.name);
+      String path = refPaths.pathFor(update.project, update.oldRef.getName());
+      checkArgument(paths.add(path), "Duplicate update of %s in batch", path);
+      if (refFilter.isExcluded(update.oldRef.getName())) {
+        continue;
       }
 
-      return newDistributedValue.succeeded();
-    } catch (Exception e) {
-      logger.atWarning().withCause(e).log(
-          "Error trying to perform CAS at path %s", pathFor(projectName, oldRef.getName()));
-      throw new GlobalRefDbSystemError(
-          String.format(
-              "Error trying to perform CAS at path %s", pathFor(projectName, oldRef.getName())),
-          e);
+      coordinated.add(update);
+      ObjectId expectedValue =
+          update.oldRef.getObjectId() == null ? ObjectId.zeroId() : update.oldRef.getObjectId();
+      ObjectId newValue = update.newValue == null ? ObjectId.zeroId() : update.newValue;
+      requests.add(
+          new ZkMultiCasEngine.CasRequest(
+              path,
+              valueInZk -> readObjectId(valueInZk).equals(expectedValue),
+              true,
+              codec.encodeObjectId(newValue)));
+    }
+
+    if (!session.circuitBreaker.tryAcquire()) {
+      return ZkAsyncClient.failedFuture(session.circuitBreaker.rejection());
     }
+    CompletableFuture<ZkMultiCasEngine.MultiCasResult> results =
+        session.circuitBreaker.monitor(
+            allOf(
+                    coordinated.stream()
+                        .map(update -> promote(session, update.project, update.oldRef.getName())))
+                .thenCompose(promoted -> session.multiCasEngine.compareAndSet(requests)));
+    CompletableFuture<Map<ZkRefUpdate, ZkRefUpdate.Result>> outcomes =
+        failWith(
+                results.thenApply(
+                    casResults -> {
+                      Map<ZkRefUpdate, ZkRefUpdate.Result> outcome = new LinkedHashMap<>();
+                      for (int i = 0; i < coordinated.size(); i++) {
+                        outcome.put(coordinated.get(i), casResults.results.get(i));
+                        session.refLocker.recordCasOutcome(
+                            requests.get(i).path, casResults.raced(i));
+                      }
+                      return batchOutcome(updates, outcome);
+                    }),
+                e -> batchCasError(updates, e))
+            .whenComplete((result, error) -> paths.forEach(session.refCache::invalidate));
+    return metrics.observe(
+        COMPARE_AND_PUT_ALL,
+        startNanos,
+        outcomes,
+        outcome -> outcome.containsValue(ZkRefUpdate.Result.CONFLICT));
+  }
+
+  /**
+   * Returns the outcome of every update of a batch, in order. The updates of excluded refs follow
+   * the outcome of the batch, so that the batch is still applied either entirely or not at all.
+   */
+  private static ImmutableMap<ZkRefUpdate, ZkRefUpdate.Result> batchOutcome(
+      List<ZkRefUpdate> updates, Map<ZkRefUpdate, ZkRefUpdate.Result> coordinatedOutcome) {
+    ZkRefUpdate.Result excludedOutcome =
+        coordinatedOutcome.containsValue(ZkRefUpdate.Result.CONFLICT)
+            ? ZkRefUpdate.Result.ABORTED
+            : ZkRefUpdate.Result.SUCCEEDED;
+    ImmutableMap.Builder<ZkRefUpdate, ZkRefUpdate.Result> outcome = ImmutableMap.builder();
+    for (ZkRefUpdate update : updates) {
+      outcome.put(update, coordinatedOutcome.getOrDefault(update, excludedOutcome));
+    }
+    return outcome.build();
   }
 
   @Override
   public <T> boolean compareAndPut(
       Project.NameKey project, String refName, T expectedValue, T newValue)
       throws GlobalRefDbSystemError {
+    return waitFor(
+        compareAndPutAsync(project, refName, expectedValue, newValue),
+        GlobalRefDbSystemError.class,
+        e ->
+            casError(
+                "Error trying to perform CAS of generic value at path %s", project, refName, e));
+  }
 
-    final DistributedAtomicValue distributedRefValue =
-        new DistributedAtomicValue(client, pathFor(project, refName), retryPolicy);
-
-    try {
-      if (expectedValue == null && refNotInZk(project, refName)) {
-        return distributedRefValue.initialize(writeGeneric(newValue));
-      }
-
-      final AtomicValue<byte[]> newDistributedValue =
-          distributedRefValue.compareAndSet(writeGeneric(expectedValue), writeGeneric(newValue));
-
-      return newDistributedValue.succeeded();
-    } catch (Exception e) {
-      String message =
-          String.format(
-              "Error trying to perform CAS of generic value at path %s", pathFor(project, refName));
-      logger.atWarning().withCause(e).log(message);
-      throw new GlobalRefDbSystemError(message, e);
+  /**
+   * Asynchronous version of {@link #compareAndPut(Project.NameKey, String, Object, Object)}.
+   *
+   * @return a future completed with the outcome of the Compare and Swap, or failed with a {@link
+   *     GlobalRefDbSystemError}.
+   */
+  public <T> CompletableFuture<Boolean> compareAndPutAsync(
+      Project.NameKey project, String refName, T expectedValue, T newValue) {
+    if (refFilter.isExcluded(refName)) {
+      return CompletableFuture.completedFuture(true);
     }
+    return compareAndSet(
+        sessionFor(project),
+        COMPARE_AND_PUT_GENERIC,
+        project,
+        refName,
+        valueInZk -> expectedValue != null && ZkValueCodec.matches(valueInZk, expectedValue),
+        expectedValue == null,
+        () -> codec.encode(newValue),
+        e ->
+            casError(
+                "Error trying to perform CAS of generic value at path %s", project, refName, e));
   }
 
   @Override
   public <T> Optional<T> get(Project.NameKey project, String refName, Class<T> clazz)
       throws GlobalRefDbSystemError {
-    if (!exists(project, refName)) {
-      return Optional.empty();
+    return waitFor(
+        getAsync(project, refName, clazz),
+        GlobalRefDbSystemError.class,
+        e ->
+            new GlobalRefDbSystemError(
+                String.format("Cannot get value for %s:%s", project, refName), e));
+  }
+
+  /**
+   * Asynchronous version of {@link #get(Project.NameKey, String, Class)}.
+   *
+   * @return a future completed with the value of the ref, or empty if it does not exist or cannot
+   *     be read, or failed with a {@link GlobalRefDbSystemError} whilst the Zookeeper connection is
+   *     down.
+   */
+  public <T> CompletableFuture<Optional<T>> getAsync(
+      Project.NameKey project, String refName, Class<T> clazz) {
+    return getAsync(project, refName, clazz, readConsistency.forRef(refName));
+  }
+
+  /**
+   * Asynchronous version of {@link #get(Project.NameKey, String, Class)}, reading the ref with the
+   * given consistency rather than the configured one.
+   *
+   * @return a future completed with the value of the ref, or empty if it does not exist or cannot
+   *     be read, or failed with a {@link GlobalRefDbSystemError} whilst the Zookeeper connection is
+   *     down.
+   */
+  public <T> CompletableFuture<Optional<T>> getAsync(
+      Project.NameKey project,
+      String refName,
+      Class<T> clazz,
+      ZkReadConsistency.Level consistency) {
+    long startNanos = System.nanoTime();
+    SessionClient session = sessionFor(project);
+    if (!session.circuitBreaker.tryAcquire()) {
+      return ZkAsyncClient.failedFuture(session.circuitBreaker.rejection());
     }
+    return metrics
+        .observe(
+            GET,
+            startNanos,
+            session.circuitBreaker.monitor(
+                syncIfLinearizable(session, refPaths.pathFor(project, refName), consistency)
+                    .thenCompose(
+                        synced ->
+                            readWithFallback(
+                                session,
+                                project,
+                                refName,
+                                (client, refPath) -> client.zk.getData(refPath, Code.NONODE)))),
+            event -> false)
+        .handle(
+            (event, error) -> {
+              if (error != null) {
+                logger.atSevere().withCause(error).log(
+                    "Cannot get value for %s:%s", project, refName);
+                return Optional.empty();
+              }
+              if (resultCode(event) == Code.NONODE) {
+                return Optional.empty();
+              }
+
+              byte[] valueInZk = event.getData();
+              if (valueInZk == null) {
+                logger.atInfo().log("%s:%s not found in Zookeeper", project, refName);
+                return Optional.empty();
+              }
+
+              try {
+                return Optional.of(readGenericType(valueInZk, clazz));
+              } catch (Exception e) {
+                logger.atSevere().withCause(e).log(
+                    "Cannot get value for %s:%s", project, refName);
+                return Optional.empty();
+              }
+            });
+  }
 
+  private CompletableFuture<Boolean> compareAndSet(
+      SessionClient session,
+      String operation,
+      Project.NameKey project,
+      String refName,
+      Predicate<byte[]> expected,
+      boolean createIfMissing,
+      Supplier<byte[]> newValue,
+      Function<Exception, GlobalRefDbSystemError> errorWrapper) {
+    long startNanos = System.nanoTime();
+    String path = refPaths.pathFor(project, refName);
+    if (!session.circuitBreaker.tryAcquire()) {
+      return ZkAsyncClient.failedFuture(session.circuitBreaker.rejection());
+    }
+    CompletableFuture<ZkCasEngine.CasResult> cas;
     try {
-      final byte[] valueInZk = client.getData().forPath(pathFor(project, refName));
+      byte[] value = newValue.get();
+      cas =
+          promote(session, project, refName)
+              .thenCompose(
+                  promoted ->
+                      session.groupCommitter.compareAndSet(path, expected, createIfMissing, value));
+    } catch (RuntimeException e) {
+      cas = ZkAsyncClient.failedFuture(e);
+    }
+    cas = session.circuitBreaker.monitor(cas);
+
+    return metrics.observe(
+        operation,
+        startNanos,
+        failWith(
+                cas.thenApply(result -> succeeded(session, operation, path, result)), errorWrapper)
+            .whenComplete((result, error) -> session.refCache.invalidate(path)),
+        succeeded -> !succeeded);
+  }
 
-      if (valueInZk == null) {
-        logger.atInfo().log("%s:%s not found in Zookeeper", project, refName);
-        return Optional.empty();
-      }
+  private boolean succeeded(
+      SessionClient session, String operation, String path, ZkCasEngine.CasResult result) {
+    metrics.recordCasAttempts(operation, result.attempts);
+    session.refLocker.recordCasOutcome(path, result.attempts > 1);
+    if (result.attempts > 1) {
+      logger.atInfo().log(
+          "CAS at path %s %s after %d attempts",
+          path, result.succeeded ? "succeeded" : "failed", result.attempts);
+    }
+    return result.succeeded;
+  }
 
-      return Optional.of(readGenericType(valueInZk, clazz));
+  /**
+   * Synchronises the Zookeeper server of the session with the leader when reading with the {@link
+   * ZkReadConsistency.Level#LINEARIZABLE} consistency.
+   */
+  private static CompletableFuture<Void> syncIfLinearizable(
+      SessionClient session, String path, ZkReadConsistency.Level consistency) {
+    if (consistency != ZkReadConsistency.Level.LINEARIZABLE) {
+      return CompletableFuture.completedFuture(null);
+    }
+    return session.zk.sync(path, Code.NONODE).thenApply(event -> null);
+  }
 
-    } catch (Exception e) {
-      logger.atSevere().withCause(e).log("Cannot get value for %s:%s", project, refName);
-      return Optional.empty();
+  /**
+   * Reads a ref with {@code read}, falling back to its previous path whilst migrating to another
+   * layout, and to the other shards whilst rebalancing.
+   *
+   * <p>A ref moved by the migration or by the rebalancing in between the reads is read again from
+   * its new path.
+   */
+  private CompletableFuture<CuratorEvent> readWithFallback(
+      SessionClient session,
+      Project.NameKey project,
+      String refName,
+      BiFunction<SessionClient, String, CompletableFuture<CuratorEvent>> read) {
+    List<SessionClient> previousSessions = previousSessionsFor(project);
+    if (previousSessions.isEmpty()) {
+      return readInLayouts(session, project, refName, read);
+    }
+
+    return readInLayouts(session, project, refName, read)
+        .thenCompose(
+            event ->
+                resultCode(event) != Code.NONODE
+                    ? CompletableFuture.completedFuture(event)
+                    : readInShards(previousSessions, 0, project, refName, read)
+                        .thenCompose(
+                            previous ->
+                                resultCode(previous) != Code.NONODE
+                                    ? CompletableFuture.completedFuture(previous)
+                                    : readInLayouts(session, project, refName, read)));
+  }
+
+  /** Reads a ref in the shards of {@code sessions} from {@code index}, until found in one. */
+  private CompletableFuture<CuratorEvent> readInShards(
+      List<SessionClient> sessions,
+      int index,
+      Project.NameKey project,
+      String refName,
+      BiFunction<SessionClient, String, CompletableFuture<CuratorEvent>> read) {
+    return readInLayouts(sessions.get(index), project, refName, read)
+        .thenCompose(
+            event ->
+                resultCode(event) != Code.NONODE || index + 1 == sessions.size()
+                    ? CompletableFuture.completedFuture(event)
+                    : readInShards(sessions, index + 1, project, refName, read));
+  }
+
+  private CompletableFuture<CuratorEvent> readInLayouts(
+      SessionClient session,
+      Project.NameKey project,
+      String refName,
+      BiFunction<SessionClient, String, CompletableFuture<CuratorEvent>> read) {
+    String path = refPaths.pathFor(project, refName);
+    Optional<String> previousPath = refPaths.previousPathFor(project, refName);
+    if (!previousPath.isPresent()) {
+      return read.apply(session, path);
+    }
+
+    return read.apply(session, path)
+        .thenCompose(
+            event ->
+                resultCode(event) != Code.NONODE
+                    ? CompletableFuture.completedFuture(event)
+                    : read.apply(session, previousPath.get())
+                        .thenCompose(
+                            previous ->
+                                resultCode(previous) != Code.NONODE
+                                    ? CompletableFuture.completedFuture(previous)
+                                    : read.apply(session, path)));
+  }
+
+  /**
+   * Copies a ref missing in the configured layout of its shard from its previous path, whilst
+   * migrating to another layout, or from another shard, whilst rebalancing, so that it can be
+   * updated.
+   */
+  private CompletableFuture<Void> promote(
+      SessionClient session, Project.NameKey project, String refName) {
+    if (!refPaths.isMigrating() && !router.isRebalancing()) {
+      return CompletableFuture.completedFuture(null);
+    }
+
+    String path = refPaths.pathFor(project, refName);
+    return session
+        .zk
+        .checkExists(path, Code.NONODE)
+        .thenCompose(
+            exists ->
+                resultCode(exists) == Code.OK
+                    ? CompletableFuture.completedFuture(null)
+                    : readWithFallback(
+                            session,
+                            project,
+                            refName,
+                            (client, refPath) -> client.zk.getData(refPath, Code.NONODE))
+                        .thenCompose(
+                            previous ->
+                                resultCode(previous) == Code.NONODE
+                                    ? CompletableFuture.completedFuture(null)
+                                    : session
+                                        .zk
+                                        .create(path, previous.getData(), Code.NODEEXISTS)
+                                        .thenApply(created -> null)));
+  }
+
+  private static CompletableFuture<Void> allOf(Stream<CompletableFuture<Void>> futures) {
+    return CompletableFuture.allOf(futures.toArray(CompletableFuture<?>[]::new));
+  }
+
+  private GlobalRefDbSystemError casError(
+      String format, Project.NameKey project, String refName, Exception cause) {
+    String message = String.format(format, refPaths.pathFor(project, refName));
+    logger.atWarning().withCause(cause).log(message);
+    return new GlobalRefDbSystemError(message, cause);
+  }
+
+  private static GlobalRefDbSystemError batchCasError(List<ZkRefUpdate> updates, Exception cause) {
+    String message = String.format("Error trying to perform CAS of %d refs", updates.size());
+    logger.atWarning().withCause(cause).log(message);
+    return new GlobalRefDbSystemError(message, cause);
+  }
+
+  private static <T> CompletableFuture<T> failWith(
+      CompletableFuture<T> future, Function<Exception, ? extends Exception> errorWrapper) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    future.whenComplete(
+        (value, error) -> {
+          if (error == null) {
+            result.complete(value);
+          } else {
+            result.completeExceptionally(errorWrapper.apply(ZkAsyncClient.causeOf(error)));
+          }
+        });
+    return result;
+  }
+
+  private static <T, E extends Exception> T waitFor(
+      CompletableFuture<T> future, Class<E> errorClass, Function<Exception, E> errorWrapper)
+      throws E {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw errorWrapper.apply(e);
+    } catch (ExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), errorClass);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw errorWrapper.apply(ZkAsyncClient.causeOf(e.getCause()));
     }
   }
 
-  private boolean refNotInZk(Project.NameKey projectName, Ref oldRef) throws Exception {
-    return client.checkExists().forPath(pathFor(projectName, oldRef.getName())) == null;
+  private SessionClient sessionFor(Project.NameKey project) {
+    return sessionClients.get(router.shardFor(project).sessionFor(project));
   }
 
-  private boolean refNotInZk(Project.NameKey projectName, String oldRef) throws Exception {
-    return client.checkExists().forPath(pathFor(projectName, oldRef)) == null;
+  private List<SessionClient> previousSessionsFor(Project.NameKey project) {
+    List<SessionClient> previousSessions = new ArrayList<>();
+    for (ZkShard shard : router.previousShardsFor(project)) {
+      previousSessions.add(sessionClients.get(shard.sessionFor(project)));
+    }
+    return previousSessions;
   }
 
+  /**
+   * Root of the nodes the plugin keeps for its own bookkeeping, such as the leader latches and the
+   * progress markers. The {@code $} of its name is never allowed in a project name, so that it
+   * cannot clash with the nodes of a project.
+   */
+  static final String INTERNAL_ROOT = "/$ref-db";
+
+  /** Returns the path of a ref in the literal layout. */
   static String pathFor(Project.NameKey projectName, String refName) {
     return "/" + projectName + "/" + refName;
   }
 
   static ObjectId readObjectId(byte[] value) {
-    return ObjectId.fromString(value, 0);
+    return ZkValueCodec.decodeObjectId(value);
   }
 
-  @SuppressWarnings("unchecked")
   <T> T readGenericType(byte[] value, Class<T> clazz) throws DeserializerException {
-    StringDeserializer stringDeserializer = stringDeserializerFactory.create(clazz);
-    String str = new String(value, StandardCharsets.US_ASCII);
-    return (T) stringDeserializer.fromString(str);
+    Object decoded = ZkValueCodec.isBinary(value) ? ZkValueCodec.decodeBinary(value) : null;
+    if (clazz.isInstance(decoded)) {
+      return clazz.cast(decoded);
+    }
+
+    StringDeserializer<T> stringDeserializer = stringDeserializerFactory.create(clazz);
+    return decoded != null
+        ? stringDeserializer.fromString(ZkValueCodec.canonicalString(decoded))
+        : stringDeserializer.fromBytes(value);
   }
 
+  /** Writes an ObjectId in the legacy ASCII format. */
   static byte[] writeObjectId(ObjectId value) {
     return ObjectId.toString(value).getBytes(StandardCharsets.US_ASCII);
   }
 
+  /** Writes a value in the legacy ASCII format. */
   static <T> byte[] writeGeneric(T value) {
     return value.toString().getBytes(StandardCharsets.US_ASCII);
   }
+
+  /** Zookeeper clients of a session. */
+  private static class SessionClient {
+    final String name;
+    final CuratorFramework client;
+    final ZkAsyncClient zk;
+    final ZkRefCache refCache;
+    final ZkRefLocker refLocker;
+    final ZkCasEngine casEngine;
+    final ZkMultiCasEngine multiCasEngine;
+    final ZkGroupCommitter groupCommitter;
+    final ZkCircuitBreaker circuitBreaker;
+
+    SessionClient(
+        ZkShard shard,
+        ZkSession session,
+        ZkConnectionConfig connConfig,
+        ScheduledExecutorService executor) {
+      this.name = shard.getName() + "#" + shard.getSessions().indexOf(session);
+      this.client = session.getClient();
+      this.zk = new ZkAsyncClient(client);
+      this.refCache = session.getRefCache();
+      this.refLocker = session.getRefLocker();
+      this.casEngine = new ZkCasEngine(zk, connConfig.curatorRetryPolicy, executor);
+      this.multiCasEngine = new ZkMultiCasEngine(client, zk, executor);
+      this.groupCommitter =
+          new ZkGroupCommitter(
+              casEngine,
+              multiCasEngine,
+              executor,
+              connConfig.groupCommitWindowMicros,
+              connConfig.groupCommitMaxBatchSize);
+      this.circuitBreaker =
+          new ZkCircuitBreaker(
+              name, client, connConfig.circuitBreaker, connConfig.circuitBreakerProbeIntervalMs);
+    }
+  }
 }
@@ -0,0 +1,203 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Counter1;
+import com.google.gerrit.metrics.Counter2;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.Histogram1;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer1;
+import com.google.gerrit.server.logging.PluginMetadata;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+
+/**
+ * Metrics of the shared ref-db operations and of the Zookeeper connection.
+ *
+ * <p>Only the Compare and Swap operations and {@code is_up_to_date} have a {@link #CONFLICT}
+ * result: the other operations either succeed or fail with an {@link #ERROR}.
+ */
+@Singleton
+public class ZkSharedRefDbMetrics implements ConnectionStateListener, LifecycleListener {
+  static final String IS_UP_TO_DATE = "is_up_to_date";
+  static final String EXISTS = "exists";
+  static final String GET = "get";
+  static final String COMPARE_AND_PUT = "compare_and_put";
+  static final String COMPARE_AND_PUT_GENERIC = "compare_and_put_generic";
+  static final String COMPARE_AND_PUT_ALL = "compare_and_put_all";
+  static final String LOCK_WAIT = "lock_wait";
+  static final String LOCK_HOLD = "lock_hold";
+  static final String REMOVE = "remove";
+
+  static final String SUCCESS = "success";
+  static final String CONFLICT = "conflict";
+  static final String ERROR = "error";
+
+  private final ImmutableList<CuratorFramework> clients;
+  private final Timer1<String> latency;
+  private final Counter2<String, String> results;
+  private final Histogram1<String> casAttempts;
+  private final Counter1<String> connectionStates;
+  private final Counter0 reconnects;
+  private final Counter0 lockTimeouts;
+
+  @Inject
+  ZkSharedRefDbMetrics(MetricMaker metricMaker, ZkShardRouter router) {
+    this(
+        metricMaker,
+        router.shards().stream()
+            .flatMap(shard -> shard.getSessions().stream())
+            .map(ZkSession::getClient)
+            .collect(toImmutableList()));
+  }
+
+  public ZkSharedRefDbMetrics(MetricMaker metricMaker, CuratorFramework client) {
+    this(metricMaker, ImmutableList.of(client));
+  }
+
+  private ZkSharedRefDbMetrics(MetricMaker metricMaker, ImmutableList<CuratorFramework> clients) {
+    this.clients = clients;
+    Field<String> operation = stringField("operation", "Shared ref-db operation");
+    this.latency =
+        metricMaker.newTimer(
+            "ref_db/latency",
+            new Description("Latency of the shared ref-db operations")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS),
+            operation);
+    this.results =
+        metricMaker.newCounter(
+            "ref_db/results",
+            new Description("Outcome of the shared ref-db operations")
+                .setRate()
+                .setUnit("operations"),
+            operation,
+            stringField(
+                "result", "success, conflict (Compare and Swap and is_up_to_date only) or error"));
+    this.casAttempts =
+        metricMaker.newHistogram(
+            "ref_db/cas_attempts",
+            new Description("Zookeeper attempts of every Compare and Swap")
+                .setCumulative()
+                .setUnit("attempts"),
+            operation);
+    this.connectionStates =
+        metricMaker.newCounter(
+            "connection/state_changes",
+            new Description("Transitions of the Zookeeper connection state")
+                .setRate()
+                .setUnit("transitions"),
+            stringField("state", "New state of the Zookeeper connection"));
+    this.reconnects =
+        metricMaker.newCounter(
+            "connection/reconnects",
+            new Description("Reconnections of the Zookeeper session").setRate().setUnit("events"));
+    this.lockTimeouts =
+        metricMaker.newCounter(
+            "ref_db/lock_timeouts",
+            new Description("Ref locks not acquired within the lock timeout")
+                .setRate()
+                .setUnit("locks"));
+  }
+
+  @Override
+  public void start() {
+    clients.forEach(client -> client.getConnectionStateListenable().addListener(this));
+  }
+
+  @Override
+  public void stop() {
+    clients.forEach(client -> client.getConnectionStateListenable().removeListener(this));
+  }
+
+  @Override
+  public void stateChanged(CuratorFramework client, ConnectionState newState) {
+    connectionStates.increment(newState.name());
+    if (newState == ConnectionState.RECONNECTED) {
+      reconnects.increment();
+    }
+  }
+
+  /**
+   * Records the latency and the outcome of an asynchronous operation.
+   *
+   * @param operation name of the operation.
+   * @param startNanos {@link System#nanoTime()} at the start of the operation.
+   * @param future future of the operation.
+   * @param isConflict whether the value of a successful operation denotes a conflict.
+   * @return {@code future}.
+   */
+  <T> CompletableFuture<T> observe(
+      String operation,
+      long startNanos,
+      CompletableFuture<T> future,
+      Predicate<? super T> isConflict) {
+    future.whenComplete(
+        (value, error) ->
+            record(
+                operation,
+                startNanos,
+                error != null ? ERROR : isConflict.test(value) ? CONFLICT : SUCCESS));
+    return future;
+  }
+
+  void record(String operation, long startNanos, String result) {
+    latency.record(operation, System.nanoTime() - startNanos, NANOSECONDS);
+    results.increment(operation, result);
+  }
+
+  void recordCasAttempts(String operation, int attempts) {
+    casAttempts.record(operation, attempts);
+  }
+
+  /** Records the lock wait time and returns the lock, recording its hold time when closed. */
+  AutoCloseable lockAcquired(long waitStartNanos, AutoCloseable lock) {
+    long acquiredNanos = System.nanoTime();
+    record(LOCK_WAIT, waitStartNanos, SUCCESS);
+    return () -> {
+      try {
+        lock.close();
+      } finally {
+        latency.record(LOCK_HOLD, System.nanoTime() - acquiredNanos, NANOSECONDS);
+      }
+    };
+  }
+
+  void recordLockTimeout() {
+    lockTimeouts.increment();
+  }
+
+  private static Field<String> stringField(String name, String description) {
+    return Field.ofString(
+            name,
+            (metadata, value) -> metadata.addPluginMetadata(PluginMetadata.create(name, value)))
+        .description(description)
+        .build();
+  }
+}
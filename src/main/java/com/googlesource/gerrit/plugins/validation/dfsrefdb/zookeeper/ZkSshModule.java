@@ -0,0 +1,28 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import com.google.gerrit.sshd.PluginCommandModule;
+
+public class ZkSshModule extends PluginCommandModule {
+  @Override
+  protected void configureCommands() {
+    command(RebalanceShardsCommand.class);
+    command(MigratePathLayoutCommand.class);
+    command(SeedRefsCommand.class);
+    command(ExportTreeCommand.class);
+    command(DiffTreeCommand.class);
+  }
+}
@@ -0,0 +1,261 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * Readiness gate of the plugin startup, waiting for the Zookeeper sessions to connect and warming
+ * up the ref cache.
+ *
+ * <p>The Curator clients connect in background. On start, the gate waits for every session to be
+ * connected, and then prefetches into the ref cache the hot refs of the warm-up projects, listed
+ * from their local repositories. A hot ref is either an exact ref name or, when ending with {@code
+ * *}, a prefix. The refs are read in pages of concurrent asynchronous requests. The plugin start
+ * waits for the gate at most for the startup timeout, after which the connection and the warm-up
+ * carry on in background, and the {@code startup/ready} metric tells when they complete.
+ */
+@Singleton
+class ZkStartupGate implements LifecycleListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  static final int PREFETCH_PAGE_SIZE = 100;
+
+  private final ZkShardRouter router;
+  private final ZkRefPaths refPaths;
+  private final ZkRefFilter refFilter;
+  private final GitRepositoryManager repoManager;
+  private final ScheduledExecutorService executor;
+  private final long startupTimeoutMs;
+  private final ImmutableList<Project.NameKey> warmUpProjects;
+  private final ImmutableList<String> warmUpRefs;
+
+  private volatile CompletableFuture<Integer> startup;
+  private volatile boolean stopped;
+
+  @Inject
+  ZkStartupGate(
+      ZkShardRouter router,
+      ZkRefPaths refPaths,
+      ZkRefFilter refFilter,
+      GitRepositoryManager repoManager,
+      @ZkMaintenanceExecutor ScheduledExecutorService executor,
+      ZookeeperConfig cfg,
+      MetricMaker metricMaker) {
+    this(
+        router,
+        refPaths,
+        refFilter,
+        repoManager,
+        executor,
+        cfg.getStartupTimeoutMs(),
+        cfg.getWarmUpProjects(),
+        cfg.getWarmUpRefs(),
+        metricMaker);
+  }
+
+  ZkStartupGate(
+      ZkShardRouter router,
+      ZkRefPaths refPaths,
+      ZkRefFilter refFilter,
+      GitRepositoryManager repoManager,
+      ScheduledExecutorService executor,
+      long startupTimeoutMs,
+      Collection<String> warmUpProjects,
+      Collection<String> warmUpRefs,
+      MetricMaker metricMaker) {
+    this.router = router;
+    this.refPaths = refPaths;
+    this.refFilter = refFilter;
+    this.repoManager = repoManager;
+    this.executor = executor;
+    this.startupTimeoutMs = startupTimeoutMs;
+    this.warmUpProjects =
+        warmUpProjects.stream().map(Project::nameKey).collect(toImmutableList());
+    this.warmUpRefs = ImmutableList.copyOf(warmUpRefs);
+    metricMaker.newCallbackMetric(
+        "startup/ready",
+        Boolean.class,
+        new Description("Whether the Zookeeper sessions are connected and the ref cache warmed up")
+            .setGauge(),
+        this::isReady);
+  }
+
+  @Override
+  public synchronized void start() {
+    long startMs = System.currentTimeMillis();
+    stopped = false;
+    startup =
+        allOf(
+                router.shards().stream()
+                    .flatMap(shard -> shard.getSessions().stream())
+                    .map(session -> connected(session.getClient())))
+            .thenCompose(allConnected -> warmUp())
+            .whenComplete(
+                (prefetched, error) -> {
+                  long elapsedMs = System.currentTimeMillis() - startMs;
+                  if (error == null) {
+                    logger.atInfo().log(
+                        "Zookeeper ready in %d ms, with %d refs prefetched", elapsedMs, prefetched);
+                  } else {
+                    logger.atWarning().withCause(error).log(
+                        "Zookeeper warm-up failed after %d ms", elapsedMs);
+                  }
+                });
+
+    if (startupTimeoutMs <= 0) {
+      return;
+    }
+    try {
+      startup.get(startupTimeoutMs, MILLISECONDS);
+    } catch (TimeoutException e) {
+      logger.atWarning().log(
+          "Zookeeper not ready after %d ms: carrying on in background", startupTimeoutMs);
+    } catch (ExecutionException e) {
+      // Already logged when completed
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public synchronized void stop() {
+    stopped = true;
+  }
+
+  /** Returns whether all the sessions connected and the warm-up completed. */
+  boolean isReady() {
+    CompletableFuture<Integer> current = startup;
+    return current != null && current.isDone() && !current.isCompletedExceptionally();
+  }
+
+  private CompletableFuture<Integer> warmUp() {
+    List<CompletableFuture<Integer>> projects = new ArrayList<>();
+    for (Project.NameKey project : warmUpProjects) {
+      ZkRefCache refCache = router.shardFor(project).sessionFor(project).getRefCache();
+      if (!refCache.isEnabledFor(project)) {
+        logger.atWarning().log("Not warming up project %s: its refs are not cached", project);
+        continue;
+      }
+      projects.add(
+          hotRefPaths(project)
+              .thenCompose(paths -> prefetch(refCache, paths))
+              .exceptionally(
+                  e -> {
+                    logger.atWarning().withCause(e).log("Failed to warm up project %s", project);
+                    return 0;
+                  }));
+    }
+    return allOf(projects.stream())
+        .thenApply(allPrefetched -> projects.stream().mapToInt(CompletableFuture::join).sum());
+  }
+
+  /** Lists the Zookeeper paths of the hot refs of {@code project} from its local repository. */
+  private CompletableFuture<List<String>> hotRefPaths(Project.NameKey project) {
+    CompletableFuture<List<String>> result = new CompletableFuture<>();
+    try {
+      executor.execute(
+          () -> {
+            try (Repository repo = repoManager.openRepository(project)) {
+              List<String> paths = new ArrayList<>();
+              for (String hotRef : warmUpRefs) {
+                if (hotRef.endsWith("*")) {
+                  for (Ref ref :
+                      repo.getRefDatabase()
+                          .getRefsByPrefix(hotRef.substring(0, hotRef.length() - 1))) {
+                    addPath(project, ref.getName(), paths);
+                  }
+                } else if (repo.exactRef(hotRef) != null) {
+                  addPath(project, hotRef, paths);
+                }
+              }
+              result.complete(paths);
+            } catch (IOException | RuntimeException e) {
+              result.completeExceptionally(e);
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      result.completeExceptionally(e);
+    }
+    return result;
+  }
+
+  private void addPath(Project.NameKey project, String refName, List<String> paths) {
+    if (!refFilter.isExcluded(refName)) {
+      paths.add(refPaths.pathFor(project, refName));
+    }
+  }
+
+  private CompletableFuture<Integer> prefetch(ZkRefCache refCache, List<String> paths) {
+    CompletableFuture<Integer> prefetched = CompletableFuture.completedFuture(0);
+    for (List<String> page : Lists.partition(paths, PREFETCH_PAGE_SIZE)) {
+      prefetched =
+          prefetched.thenCompose(
+              count ->
+                  stopped
+                      ? CompletableFuture.completedFuture(count)
+                      : allOf(page.stream().map(refCache::get))
+                          .thenApply(pagePrefetched -> count + page.size()));
+    }
+    return prefetched;
+  }
+
+  /** Returns a future completed once {@code client} is connected to Zookeeper. */
+  private static CompletableFuture<Void> connected(CuratorFramework client) {
+    CompletableFuture<Void> connected = new CompletableFuture<>();
+    ConnectionStateListener listener =
+        (c, newState) -> {
+          if (newState.isConnected()) {
+            connected.complete(null);
+          }
+        };
+    client.getConnectionStateListenable().addListener(listener);
+    if (client.getZookeeperClient().isConnected()) {
+      connected.complete(null);
+    }
+    return connected.whenComplete(
+        (done, error) -> client.getConnectionStateListenable().removeListener(listener));
+  }
+
+  private static CompletableFuture<Void> allOf(Stream<? extends CompletableFuture<?>> futures) {
+    return CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new));
+  }
+}
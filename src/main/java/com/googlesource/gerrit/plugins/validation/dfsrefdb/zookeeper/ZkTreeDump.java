@@ -0,0 +1,197 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Format of the dumps of a Zookeeper tree.
+ *
+ * <p>A dump is a gzip-compressed text file, starting with the {@link #HEADER} line, followed by
+ * one line per node:
+ *
+ * <pre>path TAB mzxid TAB version TAB base64 value</pre>
+ *
+ * <p>The nodes are sorted by {@link #PATH_ORDER}, which is the depth-first order of the tree, so
+ * that two dumps can be compared by reading them side by side.
+ */
+final class ZkTreeDump {
+  static final String HEADER = "# zookeeper tree dump v1";
+
+  /** Order of the paths by component, equivalent to the depth-first walk of sorted children. */
+  static final Comparator<String> PATH_ORDER = ZkTreeDump::comparePaths;
+
+  private ZkTreeDump() {}
+
+  static class Node {
+    final String path;
+    final long mzxid;
+    final int version;
+    final byte[] value;
+
+    Node(String path, long mzxid, int version, byte[] value) {
+      this.path = path;
+      this.mzxid = mzxid;
+      this.version = version;
+      this.value = value == null ? new byte[0] : value;
+    }
+
+    private String format() {
+      return String.join(
+          "\t",
+          path,
+          Long.toHexString(mzxid),
+          Integer.toString(version),
+          Base64.getEncoder().encodeToString(value));
+    }
+
+    private static Node parse(String line) throws IOException {
+      String[] fields = line.split("\t", -1);
+      if (fields.length != 4) {
+        throw new IOException("Invalid dump line: " + line);
+      }
+      return new Node(
+          fields[0],
+          Long.parseLong(fields[1], 16),
+          Integer.parseInt(fields[2]),
+          Base64.getDecoder().decode(fields[3]));
+    }
+  }
+
+  static class Writer implements Closeable {
+    private final BufferedWriter out;
+
+    Writer(OutputStream out) throws IOException {
+      this.out =
+          new BufferedWriter(
+              new OutputStreamWriter(new GZIPOutputStream(out), StandardCharsets.UTF_8));
+      this.out.write(HEADER);
+      this.out.newLine();
+    }
+
+    void write(Node node) throws IOException {
+      out.write(node.format());
+      out.newLine();
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+
+  static class Reader implements Closeable {
+    private final BufferedReader in;
+
+    Reader(InputStream in) throws IOException {
+      this.in =
+          new BufferedReader(
+              new InputStreamReader(new GZIPInputStream(in), StandardCharsets.UTF_8));
+      String header = this.in.readLine();
+      if (!HEADER.equals(header)) {
+        this.in.close();
+        throw new IOException("Not a Zookeeper tree dump: " + header);
+      }
+    }
+
+    /** Returns the next node of the dump, or {@code null} at its end. */
+    Node next() throws IOException {
+      String line = in.readLine();
+      return line == null ? null : Node.parse(line);
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /** Differences between two dumps. */
+  static class Diff {
+    /** Number of nodes only in the second dump. */
+    int added;
+    /** Number of nodes only in the first dump. */
+    int removed;
+    /** Number of nodes with a different value. */
+    int changed;
+  }
+
+  /**
+   * Compares two dumps, reporting every different node as a line starting with {@code +} when only
+   * in {@code to}, {@code -} when only in {@code from} and {@code ~} when its value changed.
+   */
+  static Diff diff(Reader from, Reader to, Consumer<String> report) throws IOException {
+    Diff diff = new Diff();
+    Node fromNode = from.next();
+    Node toNode = to.next();
+    while (fromNode != null || toNode != null) {
+      int order =
+          fromNode == null
+              ? 1
+              : toNode == null ? -1 : PATH_ORDER.compare(fromNode.path, toNode.path);
+      if (order < 0) {
+        report.accept("- " + fromNode.path);
+        diff.removed++;
+        fromNode = from.next();
+      } else if (order > 0) {
+        report.accept("+ " + toNode.path);
+        diff.added++;
+        toNode = to.next();
+      } else {
+        if (!Arrays.equals(fromNode.value, toNode.value)) {
+          report.accept(
+              String.format(
+                  "~ %s (version %d -> %d)", toNode.path, fromNode.version, toNode.version));
+          diff.changed++;
+        }
+        fromNode = from.next();
+        toNode = to.next();
+      }
+    }
+    return diff;
+  }
+
+  private static int comparePaths(String a, String b) {
+    int length = Math.min(a.length(), b.length());
+    for (int i = 0; i < length; i++) {
+      char ca = a.charAt(i);
+      char cb = b.charAt(i);
+      if (ca != cb) {
+        if (ca == '/') {
+          return -1;
+        }
+        if (cb == '/') {
+          return 1;
+        }
+        return Character.compare(ca, cb);
+      }
+    }
+    return Integer.compare(a.length(), b.length());
+  }
+}
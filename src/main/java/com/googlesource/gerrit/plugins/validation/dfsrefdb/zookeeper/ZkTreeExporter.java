@@ -0,0 +1,196 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper.ZkAsyncClient.resultCode;
+
+import com.google.common.collect.Lists;
+import com.google.common.flogger.FluentLogger;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Export of the Zookeeper tree of a shard to a {@link ZkTreeDump}, and comparison of dumps.
+ *
+ * <p>The tree is walked depth-first. The children of every node are read in pages of concurrent
+ * asynchronous requests, so that at most a bounded number of requests is in flight, and written in
+ * order as soon as their page is read. The dump is not atomic: the modification zxid and the
+ * version of every node tell when it was last written.
+ */
+@Singleton
+public class ZkTreeExporter {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private final ZkShardRouter router;
+  private final int parallelism;
+
+  @Inject
+  ZkTreeExporter(ZkShardRouter router, ZookeeperConfig cfg) {
+    this(router, cfg.getExportParallelism());
+  }
+
+  ZkTreeExporter(ZkShardRouter router, int parallelism) {
+    this.router = router;
+    this.parallelism = parallelism;
+  }
+
+  public Optional<ZkShard> shard(String name) {
+    return router.shard(name);
+  }
+
+  /**
+   * Writes all the nodes of the tree of {@code shard} to {@code out}.
+   *
+   * @return the number of exported nodes.
+   */
+  public long export(ZkShard shard, OutputStream out) throws Exception {
+    long startMs = System.currentTimeMillis();
+    long exported;
+    try (ZkTreeDump.Writer writer = new ZkTreeDump.Writer(out)) {
+      exported = new ExportRun(shard.getClient(), writer).export();
+    }
+    logger.atInfo().log(
+        "Exported %d nodes of shard %s in %d ms",
+        exported, shard.getName(), System.currentTimeMillis() - startMs);
+    return exported;
+  }
+
+  /**
+   * Compares the dump {@code from} with the dump {@code to}, or with the current tree of {@code
+   * shard} when {@code to} is absent.
+   */
+  public ZkTreeDump.Diff diff(ZkShard shard, Path from, Optional<Path> to, Consumer<String> report)
+      throws Exception {
+    if (to.isPresent()) {
+      return diff(from, to.get(), report);
+    }
+
+    Path live = Files.createTempFile("zookeeper-tree-", ".dump.gz");
+    try {
+      try (OutputStream out = Files.newOutputStream(live)) {
+        export(shard, out);
+      }
+      return diff(from, live, report);
+    } finally {
+      Files.delete(live);
+    }
+  }
+
+  private static ZkTreeDump.Diff diff(Path from, Path to, Consumer<String> report)
+      throws IOException {
+    try (ZkTreeDump.Reader fromReader = new ZkTreeDump.Reader(Files.newInputStream(from));
+        ZkTreeDump.Reader toReader = new ZkTreeDump.Reader(Files.newInputStream(to))) {
+      return ZkTreeDump.diff(fromReader, toReader, report);
+    }
+  }
+
+  private static class Fetched {
+    final ZkTreeDump.Node node;
+    final List<String> children;
+
+    Fetched(ZkTreeDump.Node node, List<String> children) {
+      this.node = node;
+      this.children = children;
+    }
+  }
+
+  private class ExportRun {
+    private final ZkAsyncClient zk;
+    private final ZkTreeDump.Writer writer;
+    private long exported;
+
+    ExportRun(CuratorFramework client, ZkTreeDump.Writer writer) {
+      this.zk = new ZkAsyncClient(client);
+      this.writer = writer;
+    }
+
+    long export() throws Exception {
+      Optional<Fetched> root = waitFor(fetch("/"));
+      if (root.isPresent()) {
+        export(root.get());
+      }
+      return exported;
+    }
+
+    private void export(Fetched fetched) throws Exception {
+      writer.write(fetched.node);
+      exported++;
+
+      List<String> children = new ArrayList<>(fetched.children);
+      Collections.sort(children);
+      for (List<String> page : Lists.partition(children, parallelism)) {
+        List<CompletableFuture<Optional<Fetched>>> pageFetches = new ArrayList<>(page.size());
+        for (String child : page) {
+          pageFetches.add(fetch(ZKPaths.makePath(fetched.node.path, child)));
+        }
+        waitFor(CompletableFuture.allOf(pageFetches.toArray(new CompletableFuture<?>[0])));
+        for (CompletableFuture<Optional<Fetched>> childFetch : pageFetches) {
+          Optional<Fetched> child = childFetch.join();
+          if (child.isPresent()) {
+            export(child.get());
+          }
+        }
+      }
+    }
+
+    /** Reads the node at {@code path} and its children, unless it was deleted. */
+    private CompletableFuture<Optional<Fetched>> fetch(String path) {
+      CompletableFuture<List<String>> children =
+          zk.getChildren(path, Code.NONODE)
+              .thenApply(
+                  event ->
+                      resultCode(event) == Code.OK
+                          ? event.getChildren()
+                          : Collections.<String>emptyList());
+      return zk.getData(path, Code.NONODE)
+          .thenCombine(
+              children,
+              (event, childNames) -> {
+                if (resultCode(event) != Code.OK) {
+                  return Optional.<Fetched>empty();
+                }
+                Stat stat = event.getStat();
+                return Optional.of(
+                    new Fetched(
+                        new ZkTreeDump.Node(
+                            path, stat.getMzxid(), stat.getVersion(), event.getData()),
+                        childNames));
+              });
+    }
+
+    private <T> T waitFor(CompletableFuture<T> future) throws Exception {
+      try {
+        return future.get();
+      } catch (ExecutionException e) {
+        throw ZkAsyncClient.causeOf(e.getCause());
+      }
+    }
+  }
+}
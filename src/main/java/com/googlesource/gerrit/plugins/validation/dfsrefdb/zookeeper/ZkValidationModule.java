@@ -15,15 +15,22 @@
 package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
 
 import com.gerritforge.gerrit.globalrefdb.GlobalRefDatabase;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
 import com.google.common.flogger.FluentLogger;
 import com.google.gerrit.extensions.registration.DynamicItem;
 import com.google.gerrit.extensions.registration.DynamicSet;
-import com.google.inject.AbstractModule;
+import com.google.gerrit.lifecycle.LifecycleModule;
+import com.google.gerrit.server.plugins.ReloadPluginListener;
+import com.google.gerrit.server.plugins.StartPluginListener;
 import com.google.inject.Inject;
 import com.google.inject.Scopes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
 import org.apache.curator.framework.CuratorFramework;
 
-public class ZkValidationModule extends AbstractModule {
+public class ZkValidationModule extends LifecycleModule {
   private static final FluentLogger logger = FluentLogger.forEnclosingClass();
 
   private ZookeeperConfig cfg;
@@ -40,9 +47,37 @@ public class ZkValidationModule extends AbstractModule {
         .to(ZkSharedRefDatabase.class)
         .in(Scopes.SINGLETON);
     bind(CuratorFramework.class).toInstance(cfg.buildCurator());
+    bind(ZkShardRouter.class).toInstance(buildShardRouter());
+    bind(ZkRefPaths.class)
+        .toInstance(new ZkRefPaths(cfg.getPathLayout(), cfg.getPreviousPathLayout()));
+    bind(ZkReadConsistency.class).toInstance(cfg.getReadConsistency());
+    bind(ZkRefFilter.class).toInstance(cfg.getRefFilter());
+    bind(ZkValueCodec.class).toInstance(new ZkValueCodec(cfg.getValueEncoding()));
     bind(ZkConnectionConfig.class)
         .toInstance(
-            new ZkConnectionConfig(cfg.buildCasRetryPolicy(), cfg.getZkInterProcessLockTimeOut()));
+            new ZkConnectionConfig(
+                cfg.buildCasRetryPolicy(),
+                cfg.getZkInterProcessLockTimeOut(),
+                cfg.getGroupCommitWindowMicros(),
+                cfg.getGroupCommitMaxBatchSize(),
+                cfg.isCircuitBreaker(),
+                cfg.getCircuitBreakerProbeIntervalMs()));
+    bind(ScheduledExecutorService.class)
+        .annotatedWith(ZkExecutor.class)
+        .toProvider(ZkExecutorProvider.class);
+    bind(ScheduledExecutorService.class)
+        .annotatedWith(ZkMaintenanceExecutor.class)
+        .toProvider(ZkMaintenanceExecutorProvider.class);
+    listener().to(ZkCuratorCloser.class);
+    listener().to(ZkExecutorProvider.class);
+    listener().to(ZkMaintenanceExecutorProvider.class);
+    listener().to(ZkStartupGate.class);
+    listener().to(ZkLockReaper.class);
+    listener().to(ZkValueMigration.class);
+    listener().to(ZkSharedRefDbMetrics.class);
+
+    DynamicSet.bind(binder(), StartPluginListener.class).to(StringDeserializerFactory.class);
+    DynamicSet.bind(binder(), ReloadPluginListener.class).to(StringDeserializerFactory.class);
 
     DynamicSet.setOf(binder(), StringDeserializer.class);
     DynamicSet.bind(binder(), StringDeserializer.class)
@@ -58,4 +93,36 @@ public class ZkValidationModule extends AbstractModule {
         .to(IdentityDeserializer.class)
         .in(Scopes.SINGLETON);
   }
+
+  private ZkShardRouter buildShardRouter() {
+    RefContentionTracker contention = cfg.getRefContentionTracker();
+    List<ZkShard> shards = new ArrayList<>();
+    ListMultimap<String, String> projectPatterns = ArrayListMultimap.create();
+    for (ZookeeperConfig.ShardConfig shardCfg : cfg.getShards()) {
+      List<ZkSession> sessions = new ArrayList<>();
+      for (int i = 0; i < cfg.getSessionsPerShard(); i++) {
+        CuratorFramework client = cfg.buildCurator(shardCfg, i);
+        sessions.add(
+            new ZkSession(
+                client,
+                new ZkRefCache(client, cfg.getRefCacheProjects(), cfg.getRefCacheMaxEntries()),
+                new ZkRefLocker(
+                    new ZkLockRegistry(
+                        client,
+                        cfg.getLockRegistryMaxEntries(),
+                        cfg.getLockRegistryIdleTimeoutMs()),
+                    cfg.getZkInterProcessLockTimeOut(),
+                    cfg.getLockMode(),
+                    cfg.getOptimisticLockMaxConflicts(),
+                    contention,
+                    cfg.isAdaptiveRetry())));
+      }
+      shards.add(new ZkShard(shardCfg.getName(), sessions));
+      projectPatterns.putAll(shardCfg.getName(), shardCfg.getProjectPatterns());
+    }
+    logger.atInfo().log(
+        "Zookeeper shards: %s, %d sessions each", shards, cfg.getSessionsPerShard());
+    return new ZkShardRouter(
+        shards, projectPatterns, cfg.isHashProjectsAcrossShards(), cfg.isRebalancingShards());
+  }
 }
@@ -0,0 +1,183 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Encoding of the values stored in the Zookeeper nodes of the refs.
+ *
+ * <p>Values are written either in the legacy {@link Encoding#ASCII} format, their string form, or
+ * in the compact {@link Encoding#BINARY} format: a one-byte type tag followed by the raw SHA-1 of
+ * an {@link ObjectId}, or by the zig-zag varint of an {@link Integer} or {@link Long}. All the
+ * other values are always stored as ASCII. Binary tags have the most significant bit set, which
+ * never happens in ASCII, hence both formats can always be read back whatever the configured
+ * encoding.
+ */
+public class ZkValueCodec {
+  public enum Encoding {
+    ASCII,
+    BINARY
+  }
+
+  static final byte OBJECT_ID_TAG = (byte) 0x81;
+  static final byte INT_TAG = (byte) 0x82;
+  static final byte LONG_TAG = (byte) 0x83;
+
+  private final Encoding encoding;
+
+  public ZkValueCodec(Encoding encoding) {
+    this.encoding = encoding;
+  }
+
+  byte[] encodeObjectId(ObjectId value) {
+    if (encoding == Encoding.ASCII) {
+      return ZkSharedRefDatabase.writeObjectId(value);
+    }
+    byte[] encoded = new byte[1 + Constants.OBJECT_ID_LENGTH];
+    encoded[0] = OBJECT_ID_TAG;
+    value.copyRawTo(encoded, 1);
+    return encoded;
+  }
+
+  <T> byte[] encode(T value) {
+    if (encoding == Encoding.BINARY) {
+      if (value instanceof AnyObjectId) {
+        return encodeObjectId(((AnyObjectId) value).toObjectId());
+      }
+      if (value instanceof Integer) {
+        return encodeVarLong(INT_TAG, (Integer) value);
+      }
+      if (value instanceof Long) {
+        return encodeVarLong(LONG_TAG, (Long) value);
+      }
+    }
+    return ZkSharedRefDatabase.writeGeneric(value);
+  }
+
+  static boolean isBinary(byte[] value) {
+    return value.length > 0 && (value[0] & 0x80) != 0;
+  }
+
+  static ObjectId decodeObjectId(byte[] value) {
+    if (isBinary(value)) {
+      if (value[0] != OBJECT_ID_TAG) {
+        throw new IllegalArgumentException(
+            String.format("Value with tag 0x%02x is not an ObjectId", value[0]));
+      }
+      return ObjectId.fromRaw(value, 1);
+    }
+    return ObjectId.fromString(value, 0);
+  }
+
+  /**
+   * Decodes a binary value.
+   *
+   * @return the {@link ObjectId}, {@link Integer} or {@link Long} stored in {@code value}.
+   * @throws IllegalArgumentException if the value is not in the binary format.
+   */
+  static Object decodeBinary(byte[] value) {
+    if (!isBinary(value)) {
+      throw new IllegalArgumentException("Value is not in the binary format");
+    }
+    switch (value[0]) {
+      case OBJECT_ID_TAG:
+        return ObjectId.fromRaw(value, 1);
+      case INT_TAG:
+        return (int) decodeVarLong(value);
+      case LONG_TAG:
+        return decodeVarLong(value);
+      default:
+        throw new IllegalArgumentException(
+            String.format("Unknown value tag 0x%02x", value[0]));
+    }
+  }
+
+  /** Returns the string form of a value, as used for comparing values of different formats. */
+  static String canonicalString(Object value) {
+    return value instanceof AnyObjectId ? ((AnyObjectId) value).name() : value.toString();
+  }
+
+  /** Returns the string form of a stored value, whatever its format. */
+  static String canonicalString(byte[] value) {
+    return isBinary(value)
+        ? canonicalString(decodeBinary(value))
+        : new String(value, StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * Returns whether a stored value is {@code expected}: binary values are compared by their
+   * canonical string form, ASCII values byte by byte, as they have always been.
+   */
+  static boolean matches(byte[] value, Object expected) {
+    if (isBinary(value)) {
+      return canonicalString(decodeBinary(value)).equals(canonicalString(expected));
+    }
+    return Arrays.equals(value, ZkSharedRefDatabase.writeGeneric(expected));
+  }
+
+  /**
+   * Converts an ASCII value to the binary format, if it can be read back unchanged.
+   *
+   * @return the binary value, or {@code null} if the value cannot be converted losslessly.
+   */
+  static byte[] toBinary(byte[] value) {
+    if (isBinary(value) || value.length == 0) {
+      return null;
+    }
+
+    String ascii = new String(value, StandardCharsets.US_ASCII);
+    if (ObjectId.isId(ascii) && ObjectId.fromString(ascii).name().equals(ascii)) {
+      return new ZkValueCodec(Encoding.BINARY).encodeObjectId(ObjectId.fromString(ascii));
+    }
+    try {
+      long number = Long.parseLong(ascii);
+      if (Long.toString(number).equals(ascii)) {
+        return encodeVarLong(LONG_TAG, number);
+      }
+    } catch (NumberFormatException e) {
+      // Not a number, left as it is
+    }
+    return null;
+  }
+
+  private static byte[] encodeVarLong(byte tag, long value) {
+    byte[] buffer = new byte[11];
+    buffer[0] = tag;
+    int length = 1;
+    long zigZag = (value << 1) ^ (value >> 63);
+    while ((zigZag & ~0x7FL) != 0) {
+      buffer[length++] = (byte) ((zigZag & 0x7F) | 0x80);
+      zigZag >>>= 7;
+    }
+    buffer[length++] = (byte) zigZag;
+    return Arrays.copyOf(buffer, length);
+  }
+
+  private static long decodeVarLong(byte[] value) {
+    long zigZag = 0;
+    for (int i = 1, shift = 0; i < value.length && shift < 64; i++, shift += 7) {
+      zigZag |= (long) (value[i] & 0x7F) << shift;
+      if ((value[i] & 0x80) == 0) {
+        return (zigZag >>> 1) ^ -(zigZag & 1);
+      }
+    }
+    throw new IllegalArgumentException("Truncated varint value");
+  }
+}
@@ -0,0 +1,298 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.leader.LeaderLatch;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Background rewrite of the ref values stored in the legacy ASCII format into the binary format.
+ *
+ * <p>Runs once at startup when the binary encoding and the migration are both enabled. Values that
+ * would not be read back unchanged are left as they are, and a value concurrently updated is
+ * skipped thanks to the version check of its rewrite. The values of all the Zookeeper shards are
+ * migrated, one shard after the other.
+ *
+ * <p>In every Zookeeper shard only the site holding the migration leadership runs it. Once all the
+ * values under a top-level node are migrated, a marker node under {@link #MIGRATED_ROOT} records
+ * it, so that an interrupted migration resumes from the top-level nodes not migrated yet. The
+ * leadership is released once the shard is migrated, so that every other site finds it migrated
+ * in turn.
+ */
+@Singleton
+class ZkValueMigration implements LifecycleListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  static final String LEADER_PATH =
+      ZkSharedRefDatabase.INTERNAL_ROOT + "/leaders/value-migration";
+  static final String MIGRATED_ROOT = ZkSharedRefDatabase.INTERNAL_ROOT + "/migrated-values";
+
+  private static final long LEADERSHIP_POLL_INTERVAL_MS = 10000;
+  private static final ImmutableSet<String> NON_REF_ROOTS =
+      ImmutableSet.of(ZkLockReaper.LOCKS_ROOT, ZkSharedRefDatabase.INTERNAL_ROOT);
+
+  private final ImmutableList<CuratorFramework> clients;
+  private final ScheduledExecutorService executor;
+  private final boolean enabled;
+  private final RateLimiter requestsLimiter;
+
+  private final Map<CuratorFramework, LeaderLatch> leaderLatches = new LinkedHashMap<>();
+  private ScheduledFuture<?> migrationTask;
+  private volatile boolean stopped;
+
+  @Inject
+  ZkValueMigration(
+      ZkShardRouter router,
+      ZookeeperConfig cfg,
+      @ZkMaintenanceExecutor ScheduledExecutorService executor) {
+    this(
+        router.shards().stream().map(ZkShard::getClient).collect(toImmutableList()),
+        executor,
+        cfg.getValueEncoding() == ZkValueCodec.Encoding.BINARY && cfg.isValueMigrationEnabled(),
+        cfg.getValueMigrationRequestsPerSecond());
+  }
+
+  ZkValueMigration(
+      Collection<CuratorFramework> clients,
+      ScheduledExecutorService executor,
+      boolean enabled,
+      double requestsPerSecond) {
+    this.clients = ImmutableList.copyOf(clients);
+    this.executor = executor;
+    this.enabled = enabled;
+    this.requestsLimiter = RateLimiter.create(requestsPerSecond);
+  }
+
+  @Override
+  public synchronized void start() {
+    if (!enabled) {
+      return;
+    }
+
+    stopped = false;
+    try {
+      for (CuratorFramework client : clients) {
+        LeaderLatch leaderLatch = new LeaderLatch(client, LEADER_PATH);
+        leaderLatches.put(client, leaderLatch);
+        leaderLatch.start();
+      }
+    } catch (Exception e) {
+      logger.atSevere().withCause(e).log("Unable to start the migration of the ref values");
+      closeLeaderLatches();
+      return;
+    }
+    migrationTask =
+        executor.scheduleWithFixedDelay(
+            this::migrateIfLeader, 0, LEADERSHIP_POLL_INTERVAL_MS, MILLISECONDS);
+  }
+
+  @Override
+  public synchronized void stop() {
+    stopped = true;
+    if (migrationTask != null) {
+      migrationTask.cancel(false);
+      migrationTask = null;
+    }
+    closeLeaderLatches();
+  }
+
+  private void closeLeaderLatches() {
+    for (LeaderLatch leaderLatch : leaderLatches.values()) {
+      closeLeaderLatch(leaderLatch);
+    }
+    leaderLatches.clear();
+  }
+
+  private static void closeLeaderLatch(LeaderLatch leaderLatch) {
+    try {
+      leaderLatch.close();
+    } catch (Exception e) {
+      logger.atWarning().withCause(e).log("Unable to release the value migration leadership");
+    }
+  }
+
+  /**
+   * Rewrites all the ASCII values that can be converted to the binary format.
+   *
+   * @return the number of rewritten values.
+   */
+  int migrate() throws Exception {
+    int migrated = 0;
+    for (CuratorFramework client : clients) {
+      migrated += migrate(client);
+    }
+    return migrated;
+  }
+
+  private synchronized List<CuratorFramework> leadingClients() {
+    List<CuratorFramework> leading = new ArrayList<>();
+    leaderLatches.forEach(
+        (client, latch) -> {
+          if (latch.hasLeadership()) {
+            leading.add(client);
+          }
+        });
+    return leading;
+  }
+
+  private void migrateIfLeader() {
+    for (CuratorFramework client : leadingClients()) {
+      try {
+        long startMs = System.currentTimeMillis();
+        int migrated = migrate(client);
+        if (stopped) {
+          return;
+        }
+        logger.atInfo().log(
+            "Migrated %d ref values of %s to the binary format in %d ms",
+            migrated, client.getNamespace(), System.currentTimeMillis() - startMs);
+        releaseLeadership(client);
+      } catch (Exception e) {
+        logger.atWarning().withCause(e).log(
+            "Migration of the ref values of %s to the binary format failed: resuming later",
+            client.getNamespace());
+      }
+    }
+  }
+
+  private synchronized void releaseLeadership(CuratorFramework client) {
+    LeaderLatch leaderLatch = leaderLatches.remove(client);
+    if (leaderLatch != null) {
+      closeLeaderLatch(leaderLatch);
+    }
+    if (leaderLatches.isEmpty() && migrationTask != null) {
+      migrationTask.cancel(false);
+      migrationTask = null;
+    }
+  }
+
+  /** Migrates the top-level nodes of a shard not migrated yet, recording each once migrated. */
+  private int migrate(CuratorFramework client) throws Exception {
+    Set<String> alreadyMigrated = migratedRoots(client);
+    requestsLimiter.acquire();
+    List<String> roots = new ArrayList<>(client.getChildren().forPath("/"));
+    Collections.sort(roots);
+
+    int migrated = 0;
+    for (String root : roots) {
+      String rootPath = ZKPaths.makePath("/", root);
+      if (stopped) {
+        break;
+      }
+      if (NON_REF_ROOTS.contains(rootPath) || alreadyMigrated.contains(root)) {
+        continue;
+      }
+      migrated += migrate(client, rootPath);
+      if (!stopped) {
+        markMigrated(client, root);
+      }
+    }
+    return migrated;
+  }
+
+  private Set<String> migratedRoots(CuratorFramework client) throws Exception {
+    requestsLimiter.acquire();
+    try {
+      return new HashSet<>(client.getChildren().forPath(MIGRATED_ROOT));
+    } catch (KeeperException.NoNodeException e) {
+      return Collections.emptySet();
+    }
+  }
+
+  private void markMigrated(CuratorFramework client, String root) throws Exception {
+    requestsLimiter.acquire();
+    try {
+      client
+          .create()
+          .creatingParentContainersIfNeeded()
+          .forPath(ZKPaths.makePath(MIGRATED_ROOT, root));
+    } catch (KeeperException.NodeExistsException e) {
+      // Migrated concurrently by another site
+    }
+  }
+
+  private int migrate(CuratorFramework client, String path) throws Exception {
+    Stat stat = new Stat();
+    List<String> children;
+    requestsLimiter.acquire();
+    try {
+      children = client.getChildren().storingStatIn(stat).forPath(path);
+    } catch (KeeperException.NoNodeException e) {
+      return 0;
+    }
+
+    int migrated = 0;
+    if (stat.getDataLength() > 0
+        && stat.getEphemeralOwner() == 0
+        && migrateValue(client, path)) {
+      migrated++;
+    }
+    for (String child : children) {
+      String childPath = ZKPaths.makePath(path, child);
+      if (stopped) {
+        break;
+      }
+      if (!NON_REF_ROOTS.contains(childPath)) {
+        migrated += migrate(client, childPath);
+      }
+    }
+    return migrated;
+  }
+
+  private boolean migrateValue(CuratorFramework client, String path) throws Exception {
+    Stat stat = new Stat();
+    requestsLimiter.acquire();
+    byte[] binary;
+    try {
+      binary = ZkValueCodec.toBinary(client.getData().storingStatIn(stat).forPath(path));
+    } catch (KeeperException.NoNodeException e) {
+      return false;
+    }
+    if (binary == null) {
+      return false;
+    }
+
+    requestsLimiter.acquire();
+    try {
+      client.setData().withVersion(stat.getVersion()).forPath(path, binary);
+      return true;
+    } catch (KeeperException.NoNodeException | KeeperException.BadVersionException e) {
+      return false;
+    }
+  }
+}
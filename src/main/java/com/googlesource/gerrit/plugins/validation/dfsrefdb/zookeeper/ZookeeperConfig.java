@@ -17,9 +17,14 @@ package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
 import static com.google.common.base.Preconditions.checkArgument;
 
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.RateLimiter;
 import com.google.gerrit.extensions.annotations.PluginName;
 import com.google.gerrit.server.config.PluginConfigFactory;
 import com.google.inject.Inject;
+import java.util.HashMap;
+import java.util.Map;
 import org.apache.commons.lang.StringUtils;
 import org.apache.curator.RetryPolicy;
 import org.apache.curator.framework.CuratorFramework;
@@ -41,6 +46,30 @@ public class ZookeeperConfig {
   private final int DEFAULT_CAS_RETRY_POLICY_MAX_SLEEP_TIME_MS = 300;
   private final int DEFAULT_CAS_RETRY_POLICY_MAX_RETRIES = 3;
   private final int DEFAULT_TRANSACTION_LOCK_TIMEOUT = 1000;
+  private final long DEFAULT_REF_CACHE_MAX_ENTRIES = 100000;
+  private final int DEFAULT_THREAD_POOL_SIZE = 4;
+  private final int DEFAULT_MAINTENANCE_THREAD_POOL_SIZE = 4;
+  private final int DEFAULT_OPTIMISTIC_LOCK_MAX_CONFLICTS = 3;
+  private final long DEFAULT_OPTIMISTIC_LOCK_CONFLICT_WINDOW_MS = 60000;
+  private final int DEFAULT_LOCK_REGISTRY_MAX_ENTRIES = 10000;
+  private final long DEFAULT_LOCK_REGISTRY_IDLE_TIMEOUT_MS = 60000;
+  private final long DEFAULT_LOCK_REAPER_INTERVAL_MS = 3600000;
+  private final long DEFAULT_LOCK_REAPER_GRACE_PERIOD_MS = 60000;
+  private final int DEFAULT_LOCK_REAPER_REQUESTS_PER_SECOND = 10;
+  private final int DEFAULT_VALUE_MIGRATION_REQUESTS_PER_SECOND = 10;
+  private final int DEFAULT_REBALANCE_REQUESTS_PER_SECOND = 100;
+  private final int DEFAULT_SESSIONS_PER_SHARD = 1;
+  private final int DEFAULT_PATH_MIGRATION_REQUESTS_PER_SECOND = 100;
+  private final int DEFAULT_REMOVAL_BATCH_SIZE = 100;
+  private final int DEFAULT_REMOVAL_PARALLELISM = 4;
+  private final int DEFAULT_REMOVAL_REQUESTS_PER_SECOND = 1000;
+  private final int DEFAULT_SEED_MAX_IN_FLIGHT_REQUESTS = 100;
+  private final int DEFAULT_EXPORT_PARALLELISM = 16;
+  private final long DEFAULT_GROUP_COMMIT_WINDOW_MICROS = 0;
+  private final int DEFAULT_RETRY_BUDGET_PER_SECOND = 100;
+  private final long DEFAULT_STARTUP_TIMEOUT_MS = 0;
+  private final ImmutableList<String> DEFAULT_WARM_UP_REFS =
+      ImmutableList.of("refs/meta/config", "refs/heads/*");
 
   static {
     CuratorFrameworkFactory.Builder b = CuratorFrameworkFactory.builder();
@@ -60,6 +89,54 @@ public class ZookeeperConfig {
   public final String KEY_CAS_RETRY_POLICY_MAX_SLEEP_TIME_MS = "casRetryPolicyMaxSleepTimeMs";
   public final String KEY_CAS_RETRY_POLICY_MAX_RETRIES = "casRetryPolicyMaxRetries";
   public final String TRANSACTION_LOCK_TIMEOUT_KEY = "transactionLockTimeoutMs";
+  public static final String KEY_REF_CACHE_PROJECT = "refCacheProject";
+  public static final String KEY_REF_CACHE_MAX_ENTRIES = "refCacheMaxEntries";
+  public static final String KEY_THREAD_POOL_SIZE = "threadPoolSize";
+  public static final String KEY_MAINTENANCE_THREAD_POOL_SIZE = "maintenanceThreadPoolSize";
+  public static final String KEY_LOCK_MODE = "lockMode";
+  public static final String KEY_OPTIMISTIC_LOCK_MAX_CONFLICTS = "optimisticLockMaxConflicts";
+  public static final String KEY_OPTIMISTIC_LOCK_CONFLICT_WINDOW_MS =
+      "optimisticLockConflictWindowMs";
+  public static final String KEY_LOCK_REGISTRY_MAX_ENTRIES = "lockRegistryMaxEntries";
+  public static final String KEY_LOCK_REGISTRY_IDLE_TIMEOUT_MS = "lockRegistryIdleTimeoutMs";
+  public static final String KEY_LOCK_REAPER_INTERVAL_MS = "lockReaperIntervalMs";
+  public static final String KEY_LOCK_REAPER_GRACE_PERIOD_MS = "lockReaperGracePeriodMs";
+  public static final String KEY_LOCK_REAPER_REQUESTS_PER_SECOND = "lockReaperRequestsPerSecond";
+  public static final String KEY_VALUE_ENCODING = "valueEncoding";
+  public static final String KEY_MIGRATE_VALUES = "migrateValues";
+  public static final String KEY_VALUE_MIGRATION_REQUESTS_PER_SECOND =
+      "valueMigrationRequestsPerSecond";
+  public static final String KEY_HASH_PROJECTS_ACROSS_SHARDS = "hashProjectsAcrossShards";
+  public static final String KEY_REBALANCING_SHARDS = "rebalancingShards";
+  public static final String KEY_REBALANCE_REQUESTS_PER_SECOND = "rebalanceRequestsPerSecond";
+  public static final String KEY_SESSIONS_PER_SHARD = "sessionsPerShard";
+  public static final String KEY_PATH_LAYOUT = "pathLayout";
+  public static final String KEY_PREVIOUS_PATH_LAYOUT = "previousPathLayout";
+  public static final String KEY_PATH_MIGRATION_REQUESTS_PER_SECOND =
+      "pathMigrationRequestsPerSecond";
+  public static final String KEY_REMOVAL_BATCH_SIZE = "removalBatchSize";
+  public static final String KEY_REMOVAL_PARALLELISM = "removalParallelism";
+  public static final String KEY_REMOVAL_REQUESTS_PER_SECOND = "removalRequestsPerSecond";
+  public static final String KEY_SEED_MAX_IN_FLIGHT_REQUESTS = "seedMaxInFlightRequests";
+  public static final String KEY_EXPORT_PARALLELISM = "exportParallelism";
+  public static final String KEY_READ_CONSISTENCY = "readConsistency";
+  public static final String KEY_LINEARIZABLE_REF = "linearizableRef";
+  public static final String KEY_GROUP_COMMIT_WINDOW_MICROS = "groupCommitWindowMicros";
+  public static final String KEY_GROUP_COMMIT_MAX_BATCH_SIZE = "groupCommitMaxBatchSize";
+  public static final String KEY_ADAPTIVE_RETRY = "adaptiveRetry";
+  public static final String KEY_RETRY_BUDGET_PER_SECOND = "retryBudgetPerSecond";
+  public static final String KEY_CONNECTION_RETRY_BUDGET_PER_SECOND =
+      "connectionRetryBudgetPerSecond";
+  public static final String KEY_CIRCUIT_BREAKER = "circuitBreaker";
+  public static final String KEY_CIRCUIT_BREAKER_PROBE_INTERVAL_MS =
+      "circuitBreakerProbeIntervalMs";
+  public static final String KEY_STARTUP_TIMEOUT_MS = "startupTimeoutMs";
+  public static final String KEY_WARM_UP_PROJECT = "warmUpProject";
+  public static final String KEY_WARM_UP_REF = "warmUpRef";
+  public static final String KEY_EXCLUDED_REF = "excludedRef";
+  public static final String KEY_INCLUDED_REF = "includedRef";
+  public static final String SHARD_SECTION = "zookeeper-shard";
+  public static final String KEY_PROJECT = "project";
 
   private final String connectionString;
   private final String root;
@@ -74,8 +151,52 @@ public class ZookeeperConfig {
 
   public static final String SECTION = "ref-database";
   private final Long transactionLockTimeOut;
+  private final ImmutableSet<String> refCacheProjects;
+  private final long refCacheMaxEntries;
+  private final int threadPoolSize;
+  private final int maintenanceThreadPoolSize;
+  private final ZkRefLocker.Mode lockMode;
+  private final int optimisticLockMaxConflicts;
+  private final long optimisticLockConflictWindowMs;
+  private final int lockRegistryMaxEntries;
+  private final long lockRegistryIdleTimeoutMs;
+  private final long lockReaperIntervalMs;
+  private final long lockReaperGracePeriodMs;
+  private final int lockReaperRequestsPerSecond;
+  private final ZkValueCodec.Encoding valueEncoding;
+  private final boolean migrateValues;
+  private final int valueMigrationRequestsPerSecond;
+  private final boolean hashProjectsAcrossShards;
+  private final boolean rebalancingShards;
+  private final int rebalanceRequestsPerSecond;
+  private final int sessionsPerShard;
+  private final ZkPathLayout.Type pathLayout;
+  private final ZkPathLayout.Type previousPathLayout;
+  private final int pathMigrationRequestsPerSecond;
+  private final int removalBatchSize;
+  private final int removalParallelism;
+  private final int removalRequestsPerSecond;
+  private final int seedMaxInFlightRequests;
+  private final int exportParallelism;
+  private final long groupCommitWindowMicros;
+  private final int groupCommitMaxBatchSize;
+  private final boolean adaptiveRetry;
+  private final RateLimiter retryBudget;
+  private final RateLimiter connectionRetryBudget;
+  private final RefContentionTracker refContention;
+  private final boolean circuitBreaker;
+  private final long circuitBreakerProbeIntervalMs;
+  private final long startupTimeoutMs;
+  private final ImmutableList<String> warmUpProjects;
+  private final ImmutableList<String> warmUpRefs;
+  private final ZkReadConsistency.Level readConsistency;
+  private final ImmutableList<String> linearizableRefs;
+  private final ImmutableList<String> excludedRefs;
+  private final ImmutableList<String> includedRefs;
+  private final ImmutableList<ShardConfig> shards;
 
   private CuratorFramework build;
+  private final Map<String, CuratorFramework> shardCurators = new HashMap<>();
 
   @Inject
   public ZookeeperConfig(PluginConfigFactory cfgFactory, @PluginName String pluginName) {
@@ -145,31 +266,493 @@ public class ZookeeperConfig {
             TRANSACTION_LOCK_TIMEOUT_KEY,
             DEFAULT_TRANSACTION_LOCK_TIMEOUT);
 
+    refCacheProjects =
+        ImmutableSet.copyOf(zkConfig.getStringList(SECTION, SUBSECTION, KEY_REF_CACHE_PROJECT));
+
+    refCacheMaxEntries =
+        getLong(
+            zkConfig,
+            SECTION,
+            SUBSECTION,
+            KEY_REF_CACHE_MAX_ENTRIES,
+            DEFAULT_REF_CACHE_MAX_ENTRIES);
+
+    threadPoolSize =
+        getInt(zkConfig, SECTION, SUBSECTION, KEY_THREAD_POOL_SIZE, DEFAULT_THREAD_POOL_SIZE);
+    maintenanceThreadPoolSize =
+        Math.max(
+            1,
+            getInt(
+                zkConfig,
+                SECTION,
+                SUBSECTION,
+                KEY_MAINTENANCE_THREAD_POOL_SIZE,
+                DEFAULT_MAINTENANCE_THREAD_POOL_SIZE));
+
+    lockMode = getEnum(zkConfig, SECTION, SUBSECTION, KEY_LOCK_MODE, ZkRefLocker.Mode.MUTEX);
+
+    optimisticLockMaxConflicts =
+        getInt(
+            zkConfig,
+            SECTION,
+            SUBSECTION,
+            KEY_OPTIMISTIC_LOCK_MAX_CONFLICTS,
+            DEFAULT_OPTIMISTIC_LOCK_MAX_CONFLICTS);
+
+    optimisticLockConflictWindowMs =
+        getLong(
+            zkConfig,
+            SECTION,
+            SUBSECTION,
+            KEY_OPTIMISTIC_LOCK_CONFLICT_WINDOW_MS,
+            DEFAULT_OPTIMISTIC_LOCK_CONFLICT_WINDOW_MS);
+
+    lockRegistryMaxEntries =
+        getInt(
+            zkConfig,
+            SECTION,
+            SUBSECTION,
+            KEY_LOCK_REGISTRY_MAX_ENTRIES,
+            DEFAULT_LOCK_REGISTRY_MAX_ENTRIES);
+
+    lockRegistryIdleTimeoutMs =
+        getLong(
+            zkConfig,
+            SECTION,
+            SUBSECTION,
+            KEY_LOCK_REGISTRY_IDLE_TIMEOUT_MS,
+            DEFAULT_LOCK_REGISTRY_IDLE_TIMEOUT_MS);
+
+    lockReaperIntervalMs =
+        getLong(
+            zkConfig,
+            SECTION,
+            SUBSECTION,
+            KEY_LOCK_REAPER_INTERVAL_MS,
+            DEFAULT_LOCK_REAPER_INTERVAL_MS);
+
+    lockReaperGracePeriodMs =
+        getLong(
+            zkConfig,
+            SECTION,
+            SUBSECTION,
+            KEY_LOCK_REAPER_GRACE_PERIOD_MS,
+            DEFAULT_LOCK_REAPER_GRACE_PERIOD_MS);
+
+    lockReaperRequestsPerSecond =
+        getInt(
+            zkConfig,
+            SECTION,
+            SUBSECTION,
+            KEY_LOCK_REAPER_REQUESTS_PER_SECOND,
+            DEFAULT_LOCK_REAPER_REQUESTS_PER_SECOND);
+
+    valueEncoding =
+        getEnum(zkConfig, SECTION, SUBSECTION, KEY_VALUE_ENCODING, ZkValueCodec.Encoding.ASCII);
+
+    migrateValues = getBoolean(zkConfig, SECTION, SUBSECTION, KEY_MIGRATE_VALUES, false);
+
+    valueMigrationRequestsPerSecond =
+        getInt(
+            zkConfig,
+            SECTION,
+            SUBSECTION,
+            KEY_VALUE_MIGRATION_REQUESTS_PER_SECOND,
+            DEFAULT_VALUE_MIGRATION_REQUESTS_PER_SECOND);
+
+    hashProjectsAcrossShards =
+        getBoolean(zkConfig, SECTION, SUBSECTION, KEY_HASH_PROJECTS_ACROSS_SHARDS, false);
+    rebalancingShards = getBoolean(zkConfig, SECTION, SUBSECTION, KEY_REBALANCING_SHARDS, false);
+
+    rebalanceRequestsPerSecond =
+        getInt(
+            zkConfig,
+            SECTION,
+            SUBSECTION,
+            KEY_REBALANCE_REQUESTS_PER_SECOND,
+            DEFAULT_REBALANCE_REQUESTS_PER_SECOND);
+
+    sessionsPerShard =
+        Math.max(
+            1,
+            getInt(
+                zkConfig, SECTION, SUBSECTION, KEY_SESSIONS_PER_SHARD, DEFAULT_SESSIONS_PER_SHARD));
+
+    pathLayout =
+        getEnum(zkConfig, SECTION, SUBSECTION, KEY_PATH_LAYOUT, ZkPathLayout.Type.LITERAL);
+
+    previousPathLayout =
+        getEnum(zkConfig, SECTION, SUBSECTION, KEY_PREVIOUS_PATH_LAYOUT, pathLayout);
+
+    pathMigrationRequestsPerSecond =
+        getInt(
+            zkConfig,
+            SECTION,
+            SUBSECTION,
+            KEY_PATH_MIGRATION_REQUESTS_PER_SECOND,
+            DEFAULT_PATH_MIGRATION_REQUESTS_PER_SECOND);
+
+    removalBatchSize =
+        Math.max(
+            1,
+            getInt(
+                zkConfig, SECTION, SUBSECTION, KEY_REMOVAL_BATCH_SIZE, DEFAULT_REMOVAL_BATCH_SIZE));
+
+    removalParallelism =
+        Math.max(
+            1,
+            getInt(
+                zkConfig,
+                SECTION,
+                SUBSECTION,
+                KEY_REMOVAL_PARALLELISM,
+                DEFAULT_REMOVAL_PARALLELISM));
+
+    removalRequestsPerSecond =
+        getInt(
+            zkConfig,
+            SECTION,
+            SUBSECTION,
+            KEY_REMOVAL_REQUESTS_PER_SECOND,
+            DEFAULT_REMOVAL_REQUESTS_PER_SECOND);
+
+    seedMaxInFlightRequests =
+        Math.max(
+            1,
+            getInt(
+                zkConfig,
+                SECTION,
+                SUBSECTION,
+                KEY_SEED_MAX_IN_FLIGHT_REQUESTS,
+                DEFAULT_SEED_MAX_IN_FLIGHT_REQUESTS));
+
+    exportParallelism =
+        Math.max(
+            1,
+            getInt(
+                zkConfig, SECTION, SUBSECTION, KEY_EXPORT_PARALLELISM, DEFAULT_EXPORT_PARALLELISM));
+
+    groupCommitWindowMicros =
+        Math.max(
+            0,
+            getLong(
+                zkConfig,
+                SECTION,
+                SUBSECTION,
+                KEY_GROUP_COMMIT_WINDOW_MICROS,
+                DEFAULT_GROUP_COMMIT_WINDOW_MICROS));
+    groupCommitMaxBatchSize =
+        Math.max(
+            1,
+            getInt(
+                zkConfig,
+                SECTION,
+                SUBSECTION,
+                KEY_GROUP_COMMIT_MAX_BATCH_SIZE,
+                ZkConnectionConfig.DEFAULT_GROUP_COMMIT_MAX_BATCH_SIZE));
+
+    adaptiveRetry = getBoolean(zkConfig, SECTION, SUBSECTION, KEY_ADAPTIVE_RETRY, false);
+    retryBudget =
+        RateLimiter.create(
+            Math.max(
+                1,
+                getInt(
+                    zkConfig,
+                    SECTION,
+                    SUBSECTION,
+                    KEY_RETRY_BUDGET_PER_SECOND,
+                    DEFAULT_RETRY_BUDGET_PER_SECOND)));
+    connectionRetryBudget =
+        RateLimiter.create(
+            Math.max(
+                1,
+                getInt(
+                    zkConfig,
+                    SECTION,
+                    SUBSECTION,
+                    KEY_CONNECTION_RETRY_BUDGET_PER_SECOND,
+                    DEFAULT_RETRY_BUDGET_PER_SECOND)));
+    refContention = new RefContentionTracker(optimisticLockConflictWindowMs);
+
+    circuitBreaker = getBoolean(zkConfig, SECTION, SUBSECTION, KEY_CIRCUIT_BREAKER, false);
+    circuitBreakerProbeIntervalMs =
+        getLong(
+            zkConfig,
+            SECTION,
+            SUBSECTION,
+            KEY_CIRCUIT_BREAKER_PROBE_INTERVAL_MS,
+            ZkConnectionConfig.DEFAULT_CIRCUIT_BREAKER_PROBE_INTERVAL_MS);
+
+    startupTimeoutMs =
+        Math.max(
+            0,
+            getLong(
+                zkConfig, SECTION, SUBSECTION, KEY_STARTUP_TIMEOUT_MS, DEFAULT_STARTUP_TIMEOUT_MS));
+    warmUpProjects =
+        ImmutableList.copyOf(zkConfig.getStringList(SECTION, SUBSECTION, KEY_WARM_UP_PROJECT));
+    String[] warmUpRefNames = zkConfig.getStringList(SECTION, SUBSECTION, KEY_WARM_UP_REF);
+    warmUpRefs =
+        warmUpRefNames.length == 0 ? DEFAULT_WARM_UP_REFS : ImmutableList.copyOf(warmUpRefNames);
+
+    readConsistency =
+        getEnum(zkConfig, SECTION, SUBSECTION, KEY_READ_CONSISTENCY, ZkReadConsistency.Level.LOCAL);
+
+    linearizableRefs =
+        ImmutableList.copyOf(zkConfig.getStringList(SECTION, SUBSECTION, KEY_LINEARIZABLE_REF));
+
+    excludedRefs =
+        ImmutableList.copyOf(zkConfig.getStringList(SECTION, SUBSECTION, KEY_EXCLUDED_REF));
+    includedRefs =
+        ImmutableList.copyOf(zkConfig.getStringList(SECTION, SUBSECTION, KEY_INCLUDED_REF));
+
     checkArgument(StringUtils.isNotEmpty(connectionString), "zookeeper.%s contains no servers");
+
+    ImmutableList.Builder<ShardConfig> shards = ImmutableList.builder();
+    shards.add(
+        new ShardConfig(
+            ZkShard.DEFAULT,
+            connectionString,
+            root,
+            zkConfig.getStringList(SHARD_SECTION, ZkShard.DEFAULT, KEY_PROJECT)));
+    for (String name : zkConfig.getSubsections(SHARD_SECTION)) {
+      if (name.equals(ZkShard.DEFAULT)) {
+        continue;
+      }
+      String shardConnectionString = zkConfig.getString(SHARD_SECTION, name, KEY_CONNECT_STRING);
+      checkArgument(
+          StringUtils.isNotEmpty(shardConnectionString),
+          "%s.%s.%s contains no servers",
+          SHARD_SECTION,
+          name,
+          KEY_CONNECT_STRING);
+      shards.add(
+          new ShardConfig(
+              name,
+              shardConnectionString,
+              getString(zkConfig, SHARD_SECTION, name, KEY_ROOT_NODE, root),
+              zkConfig.getStringList(SHARD_SECTION, name, KEY_PROJECT)));
+    }
+    this.shards = shards.build();
   }
 
-  public CuratorFramework buildCurator() {
+  public synchronized CuratorFramework buildCurator() {
     if (build == null) {
-      this.build =
-          CuratorFrameworkFactory.builder()
-              .connectString(connectionString)
-              .sessionTimeoutMs(sessionTimeoutMs)
-              .connectionTimeoutMs(connectionTimeoutMs)
-              .retryPolicy(
-                  new BoundedExponentialBackoffRetry(baseSleepTimeMs, maxSleepTimeMs, maxRetries))
-              .namespace(root)
-              .build();
-      this.build.start();
+      this.build = newCurator(connectionString, root);
     }
 
     return this.build;
   }
 
+  /**
+   * Returns the client of a session of a shard, the same as {@link #buildCurator()} for the first
+   * session of the default one.
+   */
+  public synchronized CuratorFramework buildCurator(ShardConfig shard, int session) {
+    if (shard.name.equals(ZkShard.DEFAULT) && session == 0) {
+      return buildCurator();
+    }
+    return shardCurators.computeIfAbsent(
+        shard.name + "#" + session, name -> newCurator(shard.connectionString, shard.root));
+  }
+
+  /** Closes all the clients built, which are built anew if needed again. */
+  public synchronized void closeCurators() {
+    shardCurators.values().forEach(CuratorFramework::close);
+    shardCurators.clear();
+    if (build != null) {
+      build.close();
+      build = null;
+    }
+  }
+
+  private CuratorFramework newCurator(String connectionString, String root) {
+    CuratorFramework curator =
+        CuratorFrameworkFactory.builder()
+            .connectString(connectionString)
+            .sessionTimeoutMs(sessionTimeoutMs)
+            .connectionTimeoutMs(connectionTimeoutMs)
+            .retryPolicy(buildConnectionRetryPolicy())
+            .namespace(root)
+            .build();
+    curator.start();
+    return curator;
+  }
+
   public Long getZkInterProcessLockTimeOut() {
     return transactionLockTimeOut;
   }
 
+  public ImmutableSet<String> getRefCacheProjects() {
+    return refCacheProjects;
+  }
+
+  public long getRefCacheMaxEntries() {
+    return refCacheMaxEntries;
+  }
+
+  public int getThreadPoolSize() {
+    return threadPoolSize;
+  }
+
+  public int getMaintenanceThreadPoolSize() {
+    return maintenanceThreadPoolSize;
+  }
+
+  public ZkRefLocker.Mode getLockMode() {
+    return lockMode;
+  }
+
+  public int getOptimisticLockMaxConflicts() {
+    return optimisticLockMaxConflicts;
+  }
+
+  public long getOptimisticLockConflictWindowMs() {
+    return optimisticLockConflictWindowMs;
+  }
+
+  /** Returns the tracker of the recent conflicts of the refs, shared by all the sessions. */
+  public RefContentionTracker getRefContentionTracker() {
+    return refContention;
+  }
+
+  public boolean isAdaptiveRetry() {
+    return adaptiveRetry;
+  }
+
+  public boolean isCircuitBreaker() {
+    return circuitBreaker;
+  }
+
+  public long getCircuitBreakerProbeIntervalMs() {
+    return circuitBreakerProbeIntervalMs;
+  }
+
+  public long getStartupTimeoutMs() {
+    return startupTimeoutMs;
+  }
+
+  public ImmutableList<String> getWarmUpProjects() {
+    return warmUpProjects;
+  }
+
+  public ImmutableList<String> getWarmUpRefs() {
+    return warmUpRefs;
+  }
+
+  public int getLockRegistryMaxEntries() {
+    return lockRegistryMaxEntries;
+  }
+
+  public long getLockRegistryIdleTimeoutMs() {
+    return lockRegistryIdleTimeoutMs;
+  }
+
+  public long getLockReaperIntervalMs() {
+    return lockReaperIntervalMs;
+  }
+
+  public long getLockReaperGracePeriodMs() {
+    return lockReaperGracePeriodMs;
+  }
+
+  public int getLockReaperRequestsPerSecond() {
+    return lockReaperRequestsPerSecond;
+  }
+
+  public ZkValueCodec.Encoding getValueEncoding() {
+    return valueEncoding;
+  }
+
+  public boolean isValueMigrationEnabled() {
+    return migrateValues;
+  }
+
+  public int getValueMigrationRequestsPerSecond() {
+    return valueMigrationRequestsPerSecond;
+  }
+
+  /** Returns all the Zookeeper shards, the {@link ZkShard#DEFAULT} one first. */
+  public ImmutableList<ShardConfig> getShards() {
+    return shards;
+  }
+
+  public boolean isHashProjectsAcrossShards() {
+    return hashProjectsAcrossShards;
+  }
+
+  public boolean isRebalancingShards() {
+    return rebalancingShards;
+  }
+
+  public int getRebalanceRequestsPerSecond() {
+    return rebalanceRequestsPerSecond;
+  }
+
+  public int getSessionsPerShard() {
+    return sessionsPerShard;
+  }
+
+  public ZkPathLayout.Type getPathLayout() {
+    return pathLayout;
+  }
+
+  public ZkPathLayout.Type getPreviousPathLayout() {
+    return previousPathLayout;
+  }
+
+  public int getPathMigrationRequestsPerSecond() {
+    return pathMigrationRequestsPerSecond;
+  }
+
+  public int getRemovalBatchSize() {
+    return removalBatchSize;
+  }
+
+  public int getRemovalParallelism() {
+    return removalParallelism;
+  }
+
+  public int getRemovalRequestsPerSecond() {
+    return removalRequestsPerSecond;
+  }
+
+  public int getSeedMaxInFlightRequests() {
+    return seedMaxInFlightRequests;
+  }
+
+  public int getExportParallelism() {
+    return exportParallelism;
+  }
+
+  public long getGroupCommitWindowMicros() {
+    return groupCommitWindowMicros;
+  }
+
+  public int getGroupCommitMaxBatchSize() {
+    return groupCommitMaxBatchSize;
+  }
+
+  public ZkReadConsistency getReadConsistency() {
+    return new ZkReadConsistency(readConsistency, new RefPatternSet(linearizableRefs));
+  }
+
+  public ZkRefFilter getRefFilter() {
+    return new ZkRefFilter(new RefPatternSet(excludedRefs), new RefPatternSet(includedRefs));
+  }
+
+  private RetryPolicy buildConnectionRetryPolicy() {
+    if (adaptiveRetry) {
+      return new ZkAdaptiveRetryPolicy(
+          baseSleepTimeMs, maxSleepTimeMs, maxRetries, connectionRetryBudget, refContention);
+    }
+    return new BoundedExponentialBackoffRetry(baseSleepTimeMs, maxSleepTimeMs, maxRetries);
+  }
+
   public RetryPolicy buildCasRetryPolicy() {
+    if (adaptiveRetry) {
+      return new ZkAdaptiveRetryPolicy(
+          casBaseSleepTimeMs, casMaxSleepTimeMs, casMaxRetries, retryBudget, refContention);
+    }
     return new BoundedExponentialBackoffRetry(casBaseSleepTimeMs, casMaxSleepTimeMs, casMaxRetries);
   }
 
@@ -194,6 +777,28 @@ public class ZookeeperConfig {
     }
   }
 
+  private boolean getBoolean(
+      Config cfg, String section, String subSection, String name, boolean defaultValue) {
+    try {
+      return cfg.getBoolean(section, subSection, name, defaultValue);
+    } catch (IllegalArgumentException e) {
+      log.error("invalid value for {}; using default value {}", name, defaultValue);
+      log.debug("Failed to retrieve boolean value: {}", e.getMessage(), e);
+      return defaultValue;
+    }
+  }
+
+  private <T extends Enum<?>> T getEnum(
+      Config cfg, String section, String subSection, String name, T defaultValue) {
+    try {
+      return cfg.getEnum(section, subSection, name, defaultValue);
+    } catch (IllegalArgumentException e) {
+      log.error("invalid value for {}; using default value {}", name, defaultValue);
+      log.debug("Failed to retrieve enum value: {}", e.getMessage(), e);
+      return defaultValue;
+    }
+  }
+
   private String getString(
       Config cfg, String section, String subsection, String name, String defaultValue) {
     String value = cfg.getString(section, subsection, name);
@@ -202,4 +807,26 @@ public class ZookeeperConfig {
     }
     return defaultValue;
   }
+
+  public static class ShardConfig {
+    private final String name;
+    private final String connectionString;
+    private final String root;
+    private final ImmutableList<String> projectPatterns;
+
+    ShardConfig(String name, String connectionString, String root, String[] projectPatterns) {
+      this.name = name;
+      this.connectionString = connectionString;
+      this.root = root;
+      this.projectPatterns = ImmutableList.copyOf(projectPatterns);
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public ImmutableList<String> getProjectPatterns() {
+      return projectPatterns;
+    }
+  }
 }
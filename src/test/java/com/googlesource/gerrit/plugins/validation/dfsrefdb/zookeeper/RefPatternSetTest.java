@@ -0,0 +1,49 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+public class RefPatternSetTest {
+
+  @Test
+  public void shouldMatchExactPrefixAndRegexPatterns() {
+    RefPatternSet patterns =
+        new RefPatternSet(
+            ImmutableList.of(
+                "refs/meta/config",
+                "refs/cache-automerge/*",
+                "^refs/changes/[0-9]+/[0-9]+/[0-9]+"));
+
+    assertThat(patterns.matches("refs/meta/config")).isTrue();
+    assertThat(patterns.matches("refs/meta/configs")).isFalse();
+    assertThat(patterns.matches("refs/meta")).isFalse();
+    assertThat(patterns.matches("refs/cache-automerge/01/0123")).isTrue();
+    assertThat(patterns.matches("refs/changes/01/1/1")).isTrue();
+    assertThat(patterns.matches("refs/changes/01/1/meta")).isFalse();
+    assertThat(patterns.matches("refs/heads/master")).isFalse();
+  }
+
+  @Test
+  public void literalPrefixShouldStopBeforeTheFirstOptionalCharacter() {
+    assertThat(RefPatternSet.literalPrefix("^refs/changes/[0-9]+")).isEqualTo("refs/changes/");
+    assertThat(RefPatternSet.literalPrefix("^refs/heads/ma?ster")).isEqualTo("refs/heads/m");
+    assertThat(RefPatternSet.literalPrefix("^refs/heads/master|refs/meta/config")).isEmpty();
+    assertThat(RefPatternSet.literalPrefix("^refs/tags/v1+")).isEqualTo("refs/tags/v1");
+  }
+}
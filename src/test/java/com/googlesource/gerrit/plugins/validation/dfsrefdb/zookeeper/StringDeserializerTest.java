@@ -0,0 +1,104 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import com.google.gerrit.extensions.registration.DynamicSet;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+public class StringDeserializerTest implements RefFixture {
+
+  @Test
+  public void shouldParseLongsFromBytesLikeFromStrings() {
+    for (String value :
+        new String[] {
+          "0", "-0", "+42", "-42", "9223372036854775807", "-9223372036854775808", "007"
+        }) {
+      assertThat(new StringToLongDeserializer().fromBytes(ascii(value)))
+          .isEqualTo(Long.parseLong(value));
+    }
+  }
+
+  @Test
+  public void shouldRejectInvalidLongsFromBytes() {
+    for (String value : new String[] {"", "-", "+", "4x2", " 42", "9223372036854775808"}) {
+      try {
+        new StringToLongDeserializer().fromBytes(ascii(value));
+        assertWithMessage("Invalid long '%s' should have been rejected", value).fail();
+      } catch (NumberFormatException e) {
+        // Expected
+      }
+    }
+  }
+
+  @Test
+  public void shouldRejectIntsOutOfRangeFromBytes() {
+    assertThat(new StringToIntDeserializer().fromBytes(ascii("-2147483648")))
+        .isEqualTo(Integer.MIN_VALUE);
+    try {
+      new StringToIntDeserializer().fromBytes(ascii("2147483648"));
+      assertWithMessage("Int out of range should have been rejected").fail();
+    } catch (NumberFormatException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void shouldParseObjectIdsFromBytes() {
+    assertThat(new StringToObjectIdDeserializer().fromBytes(ascii(AN_OBJECT_ID_1.name())))
+        .isEqualTo(AN_OBJECT_ID_1);
+  }
+
+  @Test
+  public void factoryShouldReturnTheDeserializerOfTheType() throws Exception {
+    DynamicSet<StringDeserializer> deserializers = new DynamicSet<>();
+    StringToLongDeserializer longDeserializer = new StringToLongDeserializer();
+    deserializers.add("zookeeper", new IdentityDeserializer());
+    deserializers.add("zookeeper", longDeserializer);
+    StringDeserializerFactory factory = new StringDeserializerFactory(deserializers);
+
+    assertThat(factory.create(Long.class)).isSameInstanceAs(longDeserializer);
+    assertThat(factory.create(Long.class)).isSameInstanceAs(longDeserializer);
+    try {
+      factory.create(Integer.class);
+      assertWithMessage("Type without deserializer should have been rejected").fail();
+    } catch (DeserializerException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void factoryShouldFindTheDeserializersRegisteredAfterAMiss() throws Exception {
+    DynamicSet<StringDeserializer> deserializers = new DynamicSet<>();
+    StringDeserializerFactory factory = new StringDeserializerFactory(deserializers);
+    try {
+      factory.create(Long.class);
+      assertWithMessage("Type without deserializer should have been rejected").fail();
+    } catch (DeserializerException e) {
+      // Expected
+    }
+
+    StringToLongDeserializer longDeserializer = new StringToLongDeserializer();
+    deserializers.add("other-plugin", longDeserializer);
+    assertThat(factory.create(Long.class)).isSameInstanceAs(longDeserializer);
+  }
+
+  private static byte[] ascii(String value) {
+    return value.getBytes(StandardCharsets.US_ASCII);
+  }
+}
@@ -0,0 +1,112 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.util.concurrent.RateLimiter;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.curator.RetryPolicy;
+import org.apache.curator.RetrySleeper;
+import org.junit.Test;
+
+public class ZkAdaptiveRetryPolicyTest {
+  private static final int BASE_SLEEP_TIME_MS = 10;
+  private static final int MAX_SLEEP_TIME_MS = 100;
+  private static final int MAX_RETRIES = 20;
+  private static final String A_REF_PATH = "/project/refs/heads/master";
+  private static final double UNLIMITED_BUDGET = 1e9;
+
+  private final List<Long> sleepsMs = new ArrayList<>();
+  private final RetrySleeper sleeper = (time, unit) -> sleepsMs.add(unit.toMillis(time));
+
+  @Test
+  public void refRetriesShouldSleepBetweenTheBaseAndTheMaxSleepTime() {
+    RetryPolicy retries =
+        newPolicy(UNLIMITED_BUDGET, new RefContentionTracker(60000)).forRef(A_REF_PATH);
+
+    for (int i = 0; i < MAX_RETRIES; i++) {
+      assertThat(retries.allowRetry(i, 0, sleeper)).isTrue();
+    }
+    assertThat(retries.allowRetry(MAX_RETRIES, 0, sleeper)).isFalse();
+
+    assertThat(sleepsMs).hasSize(MAX_RETRIES);
+    for (long sleepMs : sleepsMs) {
+      assertThat(sleepMs).isAtLeast(BASE_SLEEP_TIME_MS);
+      assertThat(sleepMs).isAtMost(MAX_SLEEP_TIME_MS);
+    }
+  }
+
+  @Test
+  public void refRetriesShouldBackOffHarderOnContendedRefs() {
+    RefContentionTracker contention = new RefContentionTracker(60000);
+    for (int i = 0; i < 3; i++) {
+      contention.recordConflict(A_REF_PATH);
+    }
+
+    RetryPolicy retries = newPolicy(UNLIMITED_BUDGET, contention).forRef(A_REF_PATH);
+
+    assertThat(retries.allowRetry(0, 0, sleeper)).isTrue();
+    assertThat(sleepsMs.get(0)).isAtLeast(4L * BASE_SLEEP_TIME_MS);
+  }
+
+  @Test
+  public void firstRetryWithoutRefShouldBeImmediate() {
+    ZkAdaptiveRetryPolicy policy = newPolicy(UNLIMITED_BUDGET, new RefContentionTracker(60000));
+
+    assertThat(policy.allowRetry(0, 0, sleeper)).isTrue();
+    assertThat(policy.allowRetry(1, 0, sleeper)).isTrue();
+
+    assertThat(sleepsMs).hasSize(1);
+    assertThat(sleepsMs.get(0)).isAtLeast(BASE_SLEEP_TIME_MS);
+  }
+
+  @Test
+  public void retriesWithoutRefShouldBackOffExponentiallyWithJitter() {
+    ZkAdaptiveRetryPolicy policy = newPolicy(UNLIMITED_BUDGET, new RefContentionTracker(60000));
+
+    for (int i = 0; i < MAX_RETRIES; i++) {
+      assertThat(policy.allowRetry(i, 0, sleeper)).isTrue();
+    }
+
+    assertThat(sleepsMs).hasSize(MAX_RETRIES - 1);
+    long upperBoundMs = BASE_SLEEP_TIME_MS;
+    for (long sleepMs : sleepsMs) {
+      assertThat(sleepMs).isAtLeast(BASE_SLEEP_TIME_MS);
+      assertThat(sleepMs).isAtMost(Math.min(MAX_SLEEP_TIME_MS, upperBoundMs));
+      upperBoundMs *= 2;
+    }
+  }
+
+  @Test
+  public void retriesShouldStopOnceTheBudgetIsExhausted() {
+    ZkAdaptiveRetryPolicy policy = newPolicy(1, new RefContentionTracker(60000));
+
+    assertThat(policy.forRef(A_REF_PATH).allowRetry(0, 0, sleeper)).isTrue();
+    assertThat(policy.forRef(A_REF_PATH).allowRetry(0, 0, sleeper)).isFalse();
+    assertThat(policy.allowRetry(0, 0, sleeper)).isFalse();
+  }
+
+  private static ZkAdaptiveRetryPolicy newPolicy(
+      double retryBudgetPerSecond, RefContentionTracker contention) {
+    return new ZkAdaptiveRetryPolicy(
+        BASE_SLEEP_TIME_MS,
+        MAX_SLEEP_TIME_MS,
+        MAX_RETRIES,
+        RateLimiter.create(retryBudgetPerSecond),
+        contention);
+  }
+}
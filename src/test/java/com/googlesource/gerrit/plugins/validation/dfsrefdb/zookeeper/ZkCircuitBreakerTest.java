@@ -0,0 +1,90 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.retry.RetryOneTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ZkCircuitBreakerTest {
+  private static final long NO_PROBE_INTERVAL_MS = 0;
+  private static final long LONG_PROBE_INTERVAL_MS = 60000;
+
+  private CuratorFramework client;
+
+  @Before
+  public void setup() {
+    client = CuratorFrameworkFactory.newClient("localhost:1", new RetryOneTime(100));
+  }
+
+  @After
+  public void cleanup() {
+    client.close();
+  }
+
+  @Test
+  public void shouldFailFastWhilstDisconnectedUntilReconnected() {
+    ZkCircuitBreaker breaker = newBreaker(LONG_PROBE_INTERVAL_MS);
+
+    breaker.stateChanged(client, ConnectionState.CONNECTED);
+    assertThat(breaker.tryAcquire()).isTrue();
+
+    breaker.stateChanged(client, ConnectionState.SUSPENDED);
+    assertThat(breaker.tryAcquire()).isFalse();
+
+    breaker.stateChanged(client, ConnectionState.RECONNECTED);
+    assertThat(breaker.getState()).isEqualTo(ZkCircuitBreaker.State.CLOSED);
+    assertThat(breaker.tryAcquire()).isTrue();
+  }
+
+  @Test
+  public void shouldStartOpenWhenNotConnected() {
+    assertThat(newBreaker(LONG_PROBE_INTERVAL_MS).getState())
+        .isEqualTo(ZkCircuitBreaker.State.OPEN);
+  }
+
+  @Test
+  public void probeShouldCloseTheCircuitWhenSucceeding() {
+    ZkCircuitBreaker breaker = newBreaker(NO_PROBE_INTERVAL_MS);
+    breaker.stateChanged(client, ConnectionState.LOST);
+
+    assertThat(breaker.tryAcquire()).isTrue();
+    assertThat(breaker.getState()).isEqualTo(ZkCircuitBreaker.State.HALF_OPEN);
+    breaker.recordOutcome(true);
+
+    assertThat(breaker.getState()).isEqualTo(ZkCircuitBreaker.State.CLOSED);
+  }
+
+  @Test
+  public void probeShouldOpenTheCircuitAgainWhenFailing() {
+    ZkCircuitBreaker breaker = newBreaker(NO_PROBE_INTERVAL_MS);
+    breaker.stateChanged(client, ConnectionState.LOST);
+
+    assertThat(breaker.tryAcquire()).isTrue();
+    breaker.recordOutcome(false);
+
+    assertThat(breaker.getState()).isEqualTo(ZkCircuitBreaker.State.OPEN);
+  }
+
+  private ZkCircuitBreaker newBreaker(long probeIntervalMs) {
+    return new ZkCircuitBreaker("test#0", client, true, probeIntervalMs);
+  }
+}
@@ -0,0 +1,59 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.Optional;
+import org.apache.curator.utils.ZKPaths;
+import org.junit.Test;
+
+public class ZkPathLayoutTest implements RefFixture {
+  private static final String A_CHANGE_REF = "refs/changes/45/12345/1";
+
+  private final ZkPathLayout literal = ZkPathLayout.Type.LITERAL.create();
+  private final ZkPathLayout hashed = ZkPathLayout.Type.HASHED.create();
+
+  @Test
+  public void literalLayoutShouldMapTheRefNameToThePath() {
+    String path = literal.pathFor(A_TEST_PROJECT_NAME_KEY, A_CHANGE_REF);
+
+    assertThat(path).isEqualTo(ZkSharedRefDatabase.pathFor(A_TEST_PROJECT_NAME_KEY, A_CHANGE_REF));
+    assertThat(path).startsWith(literal.refsRoot(A_TEST_PROJECT_NAME_KEY) + "/");
+    assertThat(literal.refNameOf(A_TEST_PROJECT_NAME_KEY, path))
+        .isEqualTo(Optional.of(A_CHANGE_REF));
+  }
+
+  @Test
+  public void hashedLayoutShouldStoreTheRefsInBoundedBuckets() {
+    String path = hashed.pathFor(A_TEST_PROJECT_NAME_KEY, A_CHANGE_REF);
+    String root = hashed.refsRoot(A_TEST_PROJECT_NAME_KEY);
+
+    assertThat(path).startsWith(root + "/");
+    assertThat(path.substring(root.length() + 1)).matches("[0-9a-f]{2}/[0-9a-f]{2}/[^/]+");
+    assertThat(hashed.refNameOf(A_TEST_PROJECT_NAME_KEY, path))
+        .isEqualTo(Optional.of(A_CHANGE_REF));
+    assertThat(hashed.refNameOf(A_TEST_PROJECT_NAME_KEY, ZKPaths.getPathAndNode(path).getPath()))
+        .isEqualTo(Optional.empty());
+  }
+
+  @Test
+  public void hashedLayoutShouldRoundTripEscapedRefNames() {
+    String refName = "refs/heads/100%/a+b";
+    String path = hashed.pathFor(A_TEST_PROJECT_NAME_KEY, refName);
+
+    assertThat(hashed.refNameOf(A_TEST_PROJECT_NAME_KEY, path)).isEqualTo(Optional.of(refName));
+  }
+}
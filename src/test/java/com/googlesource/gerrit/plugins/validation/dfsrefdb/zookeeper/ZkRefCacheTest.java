@@ -0,0 +1,103 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper.ZkSharedRefDatabase.writeObjectId;
+
+import com.google.common.collect.ImmutableSet;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ZkRefCacheTest {
+  private static final String A_PATH = "/a-project/refs/heads/master";
+  private static final String ANOTHER_PATH = "/a-project/refs/heads/stable";
+  private static final ObjectId AN_OBJECT_ID =
+      ObjectId.fromString("0000000000000000000000000000000000000001");
+  private static final long WATCH_TIMEOUT_MS = 5000;
+
+  private TestingServer server;
+  private CuratorFramework curator;
+  private ZkRefCache refCache;
+
+  @Before
+  public void setup() throws Exception {
+    server = new TestingServer();
+    curator = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryOneTime(100));
+    curator.start();
+    curator.blockUntilConnected();
+    curator.create().creatingParentsIfNeeded().forPath(A_PATH, writeObjectId(AN_OBJECT_ID));
+
+    refCache = new ZkRefCache(curator, ImmutableSet.of(ZkRefCache.ALL_PROJECTS), 1);
+  }
+
+  @After
+  public void cleanup() throws Exception {
+    curator.close();
+    server.close();
+  }
+
+  @Test
+  public void evictedEntriesShouldBeReloadedWithTheSameWatcher() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      assertThat(refCache.get(A_PATH).get().objectId).isEqualTo(AN_OBJECT_ID);
+      assertThat(refCache.get(ANOTHER_PATH).get().exists).isFalse();
+    }
+
+    assertThat(refCache.size()).isEqualTo(1L);
+    assertThat(refCache.watchedNodes()).isEqualTo(2);
+  }
+
+  @Test
+  public void changedNodeShouldNoLongerBeWatched() throws Exception {
+    refCache.get(A_PATH).get();
+
+    curator.setData().forPath(A_PATH, writeObjectId(ObjectId.zeroId()));
+
+    long deadline = System.currentTimeMillis() + WATCH_TIMEOUT_MS;
+    while (refCache.watchedNodes() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(refCache.watchedNodes()).isEqualTo(0);
+    assertThat(refCache.size()).isEqualTo(0L);
+  }
+
+  @Test
+  public void suspendedSessionShouldDropAllTheEntries() throws Exception {
+    refCache.get(A_PATH).get();
+
+    refCache.stateChanged(curator, ConnectionState.SUSPENDED);
+
+    assertThat(refCache.size()).isEqualTo(0L);
+    assertThat(refCache.watchedNodes()).isEqualTo(1);
+  }
+
+  @Test
+  public void lostSessionShouldDropAllTheEntriesAndWatchers() throws Exception {
+    refCache.get(A_PATH).get();
+
+    refCache.stateChanged(curator, ConnectionState.LOST);
+
+    assertThat(refCache.size()).isEqualTo(0L);
+    assertThat(refCache.watchedNodes()).isEqualTo(0);
+  }
+}
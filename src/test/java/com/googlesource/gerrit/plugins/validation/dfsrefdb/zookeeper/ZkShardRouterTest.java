@@ -0,0 +1,98 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.gerrit.entities.Project;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.Test;
+
+public class ZkShardRouterTest {
+  private static final ZkShard DEFAULT_SHARD = new ZkShard(ZkShard.DEFAULT, null, null, null);
+  private static final ZkShard EU_SHARD = new ZkShard("eu", null, null, null);
+  private static final ZkShard US_SHARD = new ZkShard("us", null, null, null);
+
+  private static final List<Project.NameKey> PROJECTS =
+      IntStream.range(0, 1000)
+          .mapToObj(i -> Project.nameKey("project-" + i))
+          .collect(Collectors.toList());
+
+  @Test
+  public void shouldRouteProjectsMatchingThePatternsOfAShard() {
+    ZkShardRouter router =
+        new ZkShardRouter(
+            ImmutableList.of(DEFAULT_SHARD, EU_SHARD, US_SHARD),
+            ImmutableListMultimap.of(
+                "eu", "^eu/.*",
+                "us", "us/*",
+                "us", "platform/manifest"),
+            false);
+
+    assertThat(router.shardFor(Project.nameKey("eu/app"))).isEqualTo(EU_SHARD);
+    assertThat(router.shardFor(Project.nameKey("us/app"))).isEqualTo(US_SHARD);
+    assertThat(router.shardFor(Project.nameKey("platform/manifest"))).isEqualTo(US_SHARD);
+    assertThat(router.shardFor(Project.nameKey("platform/manifest2"))).isEqualTo(DEFAULT_SHARD);
+    assertThat(router.shardFor(Project.nameKey("some/eu/app"))).isEqualTo(DEFAULT_SHARD);
+  }
+
+  @Test
+  public void shouldPreferThePatternsOverHashing() {
+    ZkShardRouter router =
+        new ZkShardRouter(
+            ImmutableList.of(DEFAULT_SHARD, EU_SHARD),
+            ImmutableListMultimap.of("eu", "^.*"),
+            true);
+
+    PROJECTS.forEach(project -> assertThat(router.shardFor(project)).isEqualTo(EU_SHARD));
+  }
+
+  @Test
+  public void shouldSpreadTheProjectsAcrossAllShardsWhenHashing() {
+    ZkShardRouter router =
+        new ZkShardRouter(
+            ImmutableList.of(DEFAULT_SHARD, EU_SHARD, US_SHARD),
+            ImmutableListMultimap.of(),
+            true);
+
+    for (ZkShard shard : router.shards()) {
+      long routed = PROJECTS.stream().filter(p -> router.shardFor(p) == shard).count();
+      assertThat(routed).isGreaterThan(PROJECTS.size() / 6);
+    }
+  }
+
+  @Test
+  public void addingAShardShouldMoveProjectsOnlyToTheNewShard() {
+    ZkShardRouter twoShards =
+        new ZkShardRouter(
+            ImmutableList.of(DEFAULT_SHARD, EU_SHARD), ImmutableListMultimap.of(), true);
+    ZkShardRouter threeShards =
+        new ZkShardRouter(
+            ImmutableList.of(DEFAULT_SHARD, EU_SHARD, US_SHARD),
+            ImmutableListMultimap.of(),
+            true);
+
+    for (Project.NameKey project : PROJECTS) {
+      ZkShard shard = threeShards.shardFor(project);
+      if (shard != US_SHARD) {
+        assertThat(shard).isEqualTo(twoShards.shardFor(project));
+      }
+    }
+  }
+}
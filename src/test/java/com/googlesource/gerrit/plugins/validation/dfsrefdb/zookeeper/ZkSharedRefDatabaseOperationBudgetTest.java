@@ -0,0 +1,380 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper.ZkSharedRefDatabase.pathFor;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper.ZkSharedRefDatabase.writeObjectId;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.curator.drivers.TracerDriver;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryNTimes;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Locks in the number of Curator operations issued by each shared ref-db operation.
+ *
+ * <p>The operations are counted from the Curator traces, one per getData, exists, setData, create,
+ * delete, getChildren, multi or sync. The requests Curator sends on its own for an operation, such
+ * as the exists and create of the missing parents of a created node, or the retries, are not
+ * counted, hence the requests received by the Zookeeper server may be more.
+ */
+public class ZkSharedRefDatabaseOperationBudgetTest implements RefFixture {
+  private static final ImmutableList<String> ZK_OPERATIONS =
+      ImmutableList.of(
+          "GetDataBuilderImpl",
+          "ExistsBuilderImpl",
+          "SetDataBuilderImpl",
+          "CreateBuilderImpl",
+          "DeleteBuilderImpl",
+          "GetChildrenBuilderImpl",
+          "CuratorMultiTransactionImpl",
+          "SyncBuilderImpl");
+
+  private TestingServer server;
+  private CuratorFramework curator;
+  private OperationCounter operationCounter;
+  private ZkSharedRefDatabase zkSharedRefDatabase;
+  private ScheduledExecutorService executor;
+
+  @Before
+  public void setup() throws Exception {
+    server = new TestingServer();
+    curator = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryOneTime(100));
+    curator.start();
+    curator.blockUntilConnected();
+
+    executor = Executors.newSingleThreadScheduledExecutor();
+    operationCounter = new OperationCounter();
+    curator.getZookeeperClient().setTracerDriver(operationCounter);
+
+    zkSharedRefDatabase = newRefDatabase(ZkReadConsistency.local());
+  }
+
+  @After
+  public void cleanup() throws Exception {
+    executor.shutdown();
+    curator.close();
+    server.close();
+  }
+
+  @Test
+  public void isUpToDateShouldIssueOneOperation() throws Exception {
+    createRefInZk(AN_OBJECT_ID_1);
+
+    operationCounter.reset();
+    assertThat(zkSharedRefDatabase.isUpToDate(A_TEST_PROJECT_NAME_KEY, refOf(AN_OBJECT_ID_1)))
+        .isTrue();
+    assertThat(operationCounter.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void isUpToDateOfMissingRefShouldIssueOneOperation() throws Exception {
+    operationCounter.reset();
+    assertThat(zkSharedRefDatabase.isUpToDate(A_TEST_PROJECT_NAME_KEY, refOf(AN_OBJECT_ID_1)))
+        .isTrue();
+    assertThat(operationCounter.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void getShouldIssueOneOperation() throws Exception {
+    createRefInZk(AN_OBJECT_ID_1);
+
+    operationCounter.reset();
+    assertThat(
+            zkSharedRefDatabase
+                .get(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME, String.class)
+                .isPresent())
+        .isTrue();
+    assertThat(operationCounter.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void getOfMissingRefShouldIssueOneOperation() throws Exception {
+    operationCounter.reset();
+    assertThat(
+            zkSharedRefDatabase
+                .get(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME, String.class)
+                .isPresent())
+        .isFalse();
+    assertThat(operationCounter.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void compareAndPutShouldIssueTwoOperations() throws Exception {
+    createRefInZk(AN_OBJECT_ID_1);
+
+    operationCounter.reset();
+    assertThat(
+            zkSharedRefDatabase.compareAndPut(
+                A_TEST_PROJECT_NAME_KEY, refOf(AN_OBJECT_ID_1), AN_OBJECT_ID_2))
+        .isTrue();
+    assertThat(operationCounter.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void compareAndPutOfNewRefShouldIssueTwoOperations() throws Exception {
+    operationCounter.reset();
+    assertThat(
+            zkSharedRefDatabase.compareAndPut(
+                A_TEST_PROJECT_NAME_KEY, refOf(ObjectId.zeroId()), AN_OBJECT_ID_1))
+        .isTrue();
+    assertThat(operationCounter.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void compareAndPutOutOfSyncShouldIssueOneOperation() throws Exception {
+    createRefInZk(AN_OBJECT_ID_1);
+
+    operationCounter.reset();
+    assertThat(
+            zkSharedRefDatabase.compareAndPut(
+                A_TEST_PROJECT_NAME_KEY, refOf(AN_OBJECT_ID_2), AN_OBJECT_ID_3))
+        .isFalse();
+    assertThat(operationCounter.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void compareAndPutGenericShouldIssueTwoOperations() throws Exception {
+    zkSharedRefDatabase.compareAndPut(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME, null, "foo");
+
+    operationCounter.reset();
+    assertThat(
+            zkSharedRefDatabase.compareAndPut(
+                A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME, "foo", "bar"))
+        .isTrue();
+    assertThat(operationCounter.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void isUpToDateOfLinearizableRefShouldIssueTwoOperations() throws Exception {
+    ZkSharedRefDatabase linearizableRefDb =
+        newRefDatabase(
+            new ZkReadConsistency(
+                ZkReadConsistency.Level.LOCAL,
+                new RefPatternSet(ImmutableList.of(A_TEST_REF_NAME))));
+    createRefInZk(AN_OBJECT_ID_1);
+
+    operationCounter.reset();
+    assertThat(linearizableRefDb.isUpToDate(A_TEST_PROJECT_NAME_KEY, refOf(AN_OBJECT_ID_1)))
+        .isTrue();
+    assertThat(operationCounter.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void linearizableIsUpToDateShouldIssueTwoOperations() throws Exception {
+    createRefInZk(AN_OBJECT_ID_1);
+
+    operationCounter.reset();
+    assertThat(
+            zkSharedRefDatabase
+                .isUpToDateAsync(
+                    A_TEST_PROJECT_NAME_KEY,
+                    refOf(AN_OBJECT_ID_1),
+                    ZkReadConsistency.Level.LINEARIZABLE)
+                .get())
+        .isTrue();
+    assertThat(operationCounter.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void linearizableBulkIsUpToDateShouldIssueASingleSync() throws Exception {
+    ZkSharedRefDatabase linearizableRefDb =
+        newRefDatabase(
+            new ZkReadConsistency(ZkReadConsistency.Level.LINEARIZABLE, RefPatternSet.empty()));
+    List<Ref> refs = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      refs.add(
+          new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, A_TEST_REF_NAME + i, AN_OBJECT_ID_1));
+    }
+
+    operationCounter.reset();
+    assertThat(linearizableRefDb.isUpToDate(A_TEST_PROJECT_NAME_KEY, refs).values())
+        .containsExactly(true, true, true);
+    assertThat(operationCounter.get()).isEqualTo(4);
+  }
+
+  @Test
+  public void excludedRefShouldIssueNoOperation() throws Exception {
+    ZkSharedRefDatabase filteredRefDb =
+        newRefDatabase(
+            ZkReadConsistency.local(),
+            new ZkRefFilter(
+                new RefPatternSet(ImmutableList.of(A_TEST_REF_NAME)), RefPatternSet.empty()));
+
+    operationCounter.reset();
+    assertThat(filteredRefDb.isUpToDate(A_TEST_PROJECT_NAME_KEY, refOf(AN_OBJECT_ID_1))).isTrue();
+    try (AutoCloseable lock = filteredRefDb.lockRef(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME)) {
+      assertThat(
+              filteredRefDb.compareAndPut(
+                  A_TEST_PROJECT_NAME_KEY, refOf(AN_OBJECT_ID_2), AN_OBJECT_ID_3))
+          .isTrue();
+    }
+    assertThat(operationCounter.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void groupCommitShouldWriteConcurrentCompareAndPutsInOneTransaction() throws Exception {
+    ZkSharedRefDatabase groupCommitRefDb = newRefDatabase(groupCommit(3));
+    List<CompletableFuture<Boolean>> casOutcomes = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      createRefInZk(A_TEST_REF_NAME + i, AN_OBJECT_ID_1);
+    }
+
+    operationCounter.reset();
+    for (int i = 0; i < 3; i++) {
+      casOutcomes.add(
+          groupCommitRefDb.compareAndPutAsync(
+              A_TEST_PROJECT_NAME_KEY, refOf(A_TEST_REF_NAME + i, AN_OBJECT_ID_1), AN_OBJECT_ID_2));
+    }
+    for (CompletableFuture<Boolean> casOutcome : casOutcomes) {
+      assertThat(casOutcome.get()).isTrue();
+    }
+    assertThat(operationCounter.get()).isEqualTo(4);
+  }
+
+  @Test
+  public void groupCommitShouldFallBackToSingleCompareAndPutsOnConflict() throws Exception {
+    ZkSharedRefDatabase groupCommitRefDb = newRefDatabase(groupCommit(2));
+    createRefInZk(A_TEST_REF_NAME + 0, AN_OBJECT_ID_1);
+    createRefInZk(A_TEST_REF_NAME + 1, AN_OBJECT_ID_1);
+
+    operationCounter.reset();
+    CompletableFuture<Boolean> upToDateCas =
+        groupCommitRefDb.compareAndPutAsync(
+            A_TEST_PROJECT_NAME_KEY, refOf(A_TEST_REF_NAME + 0, AN_OBJECT_ID_1), AN_OBJECT_ID_3);
+    CompletableFuture<Boolean> outOfSyncCas =
+        groupCommitRefDb.compareAndPutAsync(
+            A_TEST_PROJECT_NAME_KEY, refOf(A_TEST_REF_NAME + 1, AN_OBJECT_ID_2), AN_OBJECT_ID_3);
+
+    assertThat(upToDateCas.get()).isTrue();
+    assertThat(outOfSyncCas.get()).isFalse();
+    assertThat(operationCounter.get()).isEqualTo(5);
+  }
+
+  /** Group commit of batches of {@code batchSize} operations, written as soon as full. */
+  private static ZkConnectionConfig groupCommit(int batchSize) {
+    return new ZkConnectionConfig(
+        new RetryNTimes(5, 30),
+        1000L,
+        TimeUnit.SECONDS.toMicros(1),
+        batchSize,
+        false,
+        ZkConnectionConfig.DEFAULT_CIRCUIT_BREAKER_PROBE_INTERVAL_MS);
+  }
+
+  private ZkSharedRefDatabase newRefDatabase(ZkReadConsistency readConsistency) {
+    return newRefDatabase(readConsistency, ZkRefFilter.all());
+  }
+
+  private ZkSharedRefDatabase newRefDatabase(ZkConnectionConfig connConfig) {
+    return newRefDatabase(ZkReadConsistency.local(), ZkRefFilter.all(), connConfig);
+  }
+
+  private ZkSharedRefDatabase newRefDatabase(
+      ZkReadConsistency readConsistency, ZkRefFilter refFilter) {
+    return newRefDatabase(
+        readConsistency, refFilter, new ZkConnectionConfig(new RetryNTimes(5, 30), 1000L));
+  }
+
+  private ZkSharedRefDatabase newRefDatabase(
+      ZkReadConsistency readConsistency, ZkRefFilter refFilter, ZkConnectionConfig connConfig) {
+    DynamicSet<StringDeserializer> deserializers = new DynamicSet<>();
+    deserializers.add("zookeeper", new StringToObjectIdDeserializer());
+    deserializers.add("zookeeper", new IdentityDeserializer());
+
+    return new ZkSharedRefDatabase(
+        ZkShardRouter.singleShard(
+            new ZkShard(
+                ZkShard.DEFAULT,
+                curator,
+                new ZkRefCache(curator, ImmutableSet.of(), 1),
+                new ZkRefLocker(
+                    new ZkLockRegistry(curator, 10, 60000),
+                    1000L,
+                    ZkRefLocker.Mode.MUTEX,
+                    3,
+                    new RefContentionTracker(60000)))),
+        ZkRefPaths.literal(),
+        readConsistency,
+        refFilter,
+        connConfig,
+        new StringDeserializerFactory(deserializers),
+        new ZkValueCodec(ZkValueCodec.Encoding.ASCII),
+        new ZkSharedRefDbMetrics(new DisabledMetricMaker(), curator),
+        new ZkProjectRemover(executor, 100, 1, 1000),
+        executor);
+  }
+
+  private void createRefInZk(ObjectId objectId) throws Exception {
+    createRefInZk(A_TEST_REF_NAME, objectId);
+  }
+
+  private void createRefInZk(String refName, ObjectId objectId) throws Exception {
+    curator
+        .create()
+        .creatingParentContainersIfNeeded()
+        .forPath(pathFor(A_TEST_PROJECT_NAME_KEY, refName), writeObjectId(objectId));
+  }
+
+  private Ref refOf(ObjectId objectId) {
+    return refOf(A_TEST_REF_NAME, objectId);
+  }
+
+  private Ref refOf(String refName, ObjectId objectId) {
+    return new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, refName, objectId);
+  }
+
+  private static class OperationCounter implements TracerDriver {
+    private final AtomicInteger operations = new AtomicInteger();
+
+    @Override
+    public void addTrace(String name, long time, TimeUnit unit) {
+      if (ZK_OPERATIONS.stream().anyMatch(name::startsWith)) {
+        operations.incrementAndGet();
+      }
+    }
+
+    @Override
+    public void addCount(String name, int increment) {}
+
+    int get() {
+      return operations.get();
+    }
+
+    void reset() {
+      operations.set(0);
+    }
+  }
+}
@@ -15,14 +15,39 @@
 package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
 
 import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper.ZkSharedRefDatabase.pathFor;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper.ZkSharedRefDatabase.readObjectId;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper.ZkSharedRefDatabase.writeObjectId;
 
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbLockException;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableSet;
 import com.google.gerrit.entities.Project;
 import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.retry.RetryNTimes;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectIdRef;
 import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.SymbolicRef;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -34,7 +59,16 @@ public class ZkSharedRefDatabaseTest implements RefFixture {
 
   ZookeeperTestContainerSupport zookeeperContainer;
 
+  private static final long REF_CACHE_MAX_ENTRIES = 10;
+  private static final long WATCH_TIMEOUT_MS = 5000;
+  private static final int OPTIMISTIC_LOCK_MAX_CONFLICTS = 1;
+  private static final long OPTIMISTIC_LOCK_CONFLICT_WINDOW_MS = 60000;
+  private static final int LOCK_REGISTRY_MAX_ENTRIES = 1;
+  private static final long LOCK_REGISTRY_IDLE_TIMEOUT_MS = 60000;
+
   private ZkSharedRefDatabase zkSharedRefDatabase;
+  private ZkLockRegistry lockRegistry;
+  private ScheduledExecutorService executor;
 
   private StringDeserializerFactory stringDeserializerFactory =
       new StringDeserializerFactory(asDynamicSet());
@@ -48,24 +82,26 @@ public class ZkSharedRefDatabaseTest implements RefFixture {
     return result;
   }
 
+  private static final int SLEEP_BETWEEN_RETRIES_MS = 30;
+  private static final long TRANSACTION_LOCK_TIMEOUT = 1000l;
+  private static final int NUMBER_OF_RETRIES = 5;
+
   @Before
   public void setup() {
     zookeeperContainer = new ZookeeperTestContainerSupport();
-    int SLEEP_BETWEEN_RETRIES_MS = 30;
-    long TRANSACTION_LOCK_TIMEOUT = 1000l;
-    int NUMBER_OF_RETRIES = 5;
+    executor = Executors.newSingleThreadScheduledExecutor();
 
-    zkSharedRefDatabase =
-        new ZkSharedRefDatabase(
+    lockRegistry =
+        new ZkLockRegistry(
             zookeeperContainer.getCurator(),
-            new ZkConnectionConfig(
-                new RetryNTimes(NUMBER_OF_RETRIES, SLEEP_BETWEEN_RETRIES_MS),
-                TRANSACTION_LOCK_TIMEOUT),
-            stringDeserializerFactory);
+            LOCK_REGISTRY_MAX_ENTRIES,
+            LOCK_REGISTRY_IDLE_TIMEOUT_MS);
+    zkSharedRefDatabase = newRefDatabase(ZkRefLocker.Mode.MUTEX);
   }
 
   @After
   public void cleanup() {
+    executor.shutdown();
     zookeeperContainer.cleanup();
   }
 
@@ -186,11 +222,107 @@ public class ZkSharedRefDatabaseTest implements RefFixture {
 
     assertThat(getNumChildrenForPath("/")).isEqualTo(1);
 
-    zkSharedRefDatabase.remove(projectName);
+    zkSharedRefDatabase.removeAsync(projectName).get();
 
     assertThat(getNumChildrenForPath("/")).isEqualTo(0);
   }
 
+  @Test
+  public void removeProjectShouldFailAtOnceWhenTheRemovalCannotBeScheduled() throws Exception {
+    executor.shutdown();
+
+    try {
+      zkSharedRefDatabase.remove(A_TEST_PROJECT_NAME_KEY);
+      assertWithMessage("Removal rejected by the executor should have failed").fail();
+    } catch (GlobalRefDbSystemError e) {
+      assertThat(e).hasCauseThat().isInstanceOf(RejectedExecutionException.class);
+    }
+  }
+
+  @Test
+  public void removeProjectShouldDeleteAllTheRefsAndLocksInBatches() throws Exception {
+    CuratorFramework curator = zookeeperContainer.getCurator();
+    String lockedRef = aBranchRef();
+    for (int i = 0; i < 25; i++) {
+      zookeeperContainer.createRefInZk(
+          A_TEST_PROJECT_NAME_KEY,
+          new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, lockedRef + "_" + i, AN_OBJECT_ID_1));
+    }
+    try (AutoCloseable lock = zkSharedRefDatabase.lockRef(A_TEST_PROJECT_NAME_KEY, lockedRef)) {
+      assertThat(getNumChildrenForPath(ZkLockReaper.LOCKS_ROOT)).isEqualTo(1);
+    }
+
+    ZkProjectRemover remover = new ZkProjectRemover(executor, 10, 2, 1000);
+    ZkProjectRemover.Progress progress = remover.remove(curator, A_TEST_PROJECT_NAME_KEY).get();
+
+    assertThat(progress.getDeleted()).isEqualTo(progress.getFound());
+    assertThat(progress.getDeleted()).isGreaterThan(25L);
+    assertThat(curator.checkExists().forPath("/" + A_TEST_PROJECT_NAME)).isNull();
+    assertThat(getNumChildrenForPath(ZkLockReaper.LOCKS_ROOT)).isEqualTo(0);
+  }
+
+  @Test
+  public void seedShouldCreateOnlyTheRefsMissingInZk() throws Exception {
+    CuratorFramework curator = zookeeperContainer.getCurator();
+    Ref existingRef = refOf(AN_OBJECT_ID_1);
+    Ref newRef =
+        new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, aBranchRef() + "_new", AN_OBJECT_ID_2);
+    zookeeperContainer.createRefInZk(A_TEST_PROJECT_NAME_KEY, existingRef);
+    ZkRefSeeder seeder =
+        new ZkRefSeeder(
+            ZkShardRouter.singleShard(newShard(ZkShard.DEFAULT, curator)),
+            ZkRefPaths.literal(),
+            new ZkValueCodec(ZkValueCodec.Encoding.ASCII),
+            null,
+            1);
+
+    ZkRefSeeder.Outcome outcome =
+        seeder.seed(
+            curator,
+            A_TEST_PROJECT_NAME_KEY,
+            ImmutableList.of(refOf(AN_OBJECT_ID_3), newRef, new SymbolicRef("HEAD", newRef)));
+
+    assertThat(outcome.created).isEqualTo(1);
+    assertThat(outcome.existing).isEqualTo(1);
+    assertThat(zookeeperContainer.readRefValueFromZk(A_TEST_PROJECT_NAME_KEY, existingRef))
+        .isEqualTo(AN_OBJECT_ID_1);
+    assertThat(zookeeperContainer.readRefValueFromZk(A_TEST_PROJECT_NAME_KEY, newRef))
+        .isEqualTo(AN_OBJECT_ID_2);
+    assertThat(curator.checkExists().forPath("/" + A_TEST_PROJECT_NAME + "/HEAD")).isNull();
+  }
+
+  @Test
+  public void diffTreeShouldReportTheNodesChangedSinceTheExport() throws Exception {
+    CuratorFramework curator = zookeeperContainer.getCurator();
+    Ref changedRef = refOf(AN_OBJECT_ID_1);
+    String changedPath = pathFor(A_TEST_PROJECT_NAME_KEY, changedRef.getName());
+    Ref addedRef =
+        new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, aBranchRef() + "_new", AN_OBJECT_ID_1);
+    zookeeperContainer.createRefInZk(A_TEST_PROJECT_NAME_KEY, changedRef);
+    ZkShard shard = newShard(ZkShard.DEFAULT, curator);
+    ZkTreeExporter exporter = new ZkTreeExporter(ZkShardRouter.singleShard(shard), 2);
+    Path dump = Files.createTempFile("zookeeper-tree-", ".dump.gz");
+    try {
+      try (OutputStream out = Files.newOutputStream(dump)) {
+        assertThat(exporter.export(shard, out)).isGreaterThan(1L);
+      }
+      curator.setData().forPath(changedPath, writeObjectId(AN_OBJECT_ID_2));
+      zookeeperContainer.createRefInZk(A_TEST_PROJECT_NAME_KEY, addedRef);
+
+      List<String> report = new ArrayList<>();
+      ZkTreeDump.Diff diff = exporter.diff(shard, dump, Optional.empty(), report::add);
+
+      assertThat(report)
+          .containsExactly(
+              "~ " + changedPath + " (version 0 -> 1)",
+              "+ " + pathFor(A_TEST_PROJECT_NAME_KEY, addedRef.getName()))
+          .inOrder();
+      assertThat(diff.removed).isEqualTo(0);
+    } finally {
+      Files.delete(dump);
+    }
+  }
+
   @Test
   public void shouldReturnIntValueIfExists() throws Exception {
     zkSharedRefDatabase.compareAndPut(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME, null, 1);
@@ -260,6 +392,762 @@ public class ZkSharedRefDatabaseTest implements RefFixture {
     assertThat(zkSharedRefDatabase.compareAndPut(projectName, zerosRef, AN_OBJECT_ID_1)).isTrue();
   }
 
+  @Test
+  public void isUpToDateShouldSeeRefUpdatedByAnotherSite() throws Exception {
+    zkSharedRefDatabase = newCachedRefDatabase();
+    Ref oldRef = refOf(AN_OBJECT_ID_1);
+    Ref newRef = refOf(AN_OBJECT_ID_2);
+    Project.NameKey projectName = A_TEST_PROJECT_NAME_KEY;
+
+    zookeeperContainer.createRefInZk(projectName, oldRef);
+    assertThat(zkSharedRefDatabase.isUpToDate(projectName, oldRef)).isTrue();
+
+    zookeeperContainer
+        .getCurator()
+        .setData()
+        .forPath(pathFor(projectName, oldRef.getName()), writeObjectId(AN_OBJECT_ID_2));
+
+    assertThat(waitForIsUpToDate(projectName, newRef, true)).isTrue();
+    assertThat(zkSharedRefDatabase.isUpToDate(projectName, oldRef)).isFalse();
+  }
+
+  @Test
+  public void isUpToDateShouldSeeRefCreatedByAnotherSite() throws Exception {
+    zkSharedRefDatabase = newCachedRefDatabase();
+    Ref ref = refOf(AN_OBJECT_ID_1);
+    Ref otherRef = refOf(AN_OBJECT_ID_2);
+    Project.NameKey projectName = A_TEST_PROJECT_NAME_KEY;
+
+    assertThat(zkSharedRefDatabase.isUpToDate(projectName, otherRef)).isTrue();
+
+    zookeeperContainer.createRefInZk(projectName, ref);
+
+    assertThat(waitForIsUpToDate(projectName, otherRef, false)).isFalse();
+    assertThat(zkSharedRefDatabase.isUpToDate(projectName, ref)).isTrue();
+  }
+
+  @Test
+  public void isUpToDateShouldSeeLocalCompareAndPutImmediately() throws Exception {
+    zkSharedRefDatabase = newCachedRefDatabase();
+    Ref oldRef = refOf(AN_OBJECT_ID_1);
+    Ref newRef = refOf(AN_OBJECT_ID_2);
+    Project.NameKey projectName = A_TEST_PROJECT_NAME_KEY;
+
+    zookeeperContainer.createRefInZk(projectName, oldRef);
+    assertThat(zkSharedRefDatabase.isUpToDate(projectName, oldRef)).isTrue();
+
+    assertThat(zkSharedRefDatabase.compareAndPut(projectName, oldRef, newRef.getObjectId()))
+        .isTrue();
+
+    assertThat(zkSharedRefDatabase.isUpToDate(projectName, newRef)).isTrue();
+    assertThat(zkSharedRefDatabase.isUpToDate(projectName, oldRef)).isFalse();
+  }
+
+  @Test
+  public void shouldCompareAndPutAndCheckManyRefsAsynchronously() throws Exception {
+    Project.NameKey projectName = A_TEST_PROJECT_NAME_KEY;
+    List<Ref> refs =
+        IntStream.range(0, 10)
+            .mapToObj(
+                i ->
+                    new ObjectIdRef.Unpeeled(
+                        Ref.Storage.NETWORK, aBranchRef() + "_" + i, ObjectId.zeroId()))
+            .collect(Collectors.toList());
+
+    List<CompletableFuture<Boolean>> updates =
+        refs.stream()
+            .map(ref -> zkSharedRefDatabase.compareAndPutAsync(projectName, ref, AN_OBJECT_ID_1))
+            .collect(Collectors.toList());
+    for (CompletableFuture<Boolean> update : updates) {
+      assertThat(update.get()).isTrue();
+    }
+
+    for (Ref ref : refs) {
+      assertThat(zkSharedRefDatabase.existsAsync(projectName, ref.getName()).get()).isTrue();
+      assertThat(zkSharedRefDatabase.isUpToDateAsync(projectName, ref).get()).isFalse();
+      assertThat(
+              zkSharedRefDatabase.getAsync(projectName, ref.getName(), ObjectId.class).get())
+          .isEqualTo(Optional.of(AN_OBJECT_ID_1));
+    }
+  }
+
+  @Test
+  public void shouldCheckManyRefsAtOnce() throws Exception {
+    Project.NameKey projectName = A_TEST_PROJECT_NAME_KEY;
+    Ref upToDateRef = refOf(AN_OBJECT_ID_1);
+    Ref outOfSyncRef =
+        new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, aBranchRef() + "_other", AN_OBJECT_ID_1);
+    Ref missingRef =
+        new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, aBranchRef() + "_missing", AN_OBJECT_ID_1);
+    zookeeperContainer.createRefInZk(projectName, upToDateRef);
+    zookeeperContainer.createRefInZk(
+        projectName,
+        new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, outOfSyncRef.getName(), AN_OBJECT_ID_2));
+
+    assertThat(
+            zkSharedRefDatabase.isUpToDate(
+                projectName, ImmutableList.of(upToDateRef, outOfSyncRef, missingRef)))
+        .containsExactly(
+            upToDateRef.getName(), true,
+            outOfSyncRef.getName(), false,
+            missingRef.getName(), true);
+  }
+
+  @Test
+  public void shouldCompareAndPutAllRefsOfBatch() throws Exception {
+    Project.NameKey projectName = A_TEST_PROJECT_NAME_KEY;
+    Ref existingRef = refOf(AN_OBJECT_ID_1);
+    Ref newRef = new ObjectIdRef.Unpeeled(Ref.Storage.NEW, aBranchRef() + "_new", null);
+    zookeeperContainer.createRefInZk(projectName, existingRef);
+
+    ZkRefUpdate existingRefUpdate = new ZkRefUpdate(projectName, existingRef, AN_OBJECT_ID_2);
+    ZkRefUpdate newRefUpdate = new ZkRefUpdate(projectName, newRef, AN_OBJECT_ID_3);
+
+    assertThat(
+            zkSharedRefDatabase.compareAndPutAll(ImmutableList.of(existingRefUpdate, newRefUpdate)))
+        .containsExactly(
+            existingRefUpdate, ZkRefUpdate.Result.SUCCEEDED,
+            newRefUpdate, ZkRefUpdate.Result.SUCCEEDED);
+    assertThat(zookeeperContainer.readRefValueFromZk(projectName, existingRef))
+        .isEqualTo(AN_OBJECT_ID_2);
+    assertThat(zookeeperContainer.readRefValueFromZk(projectName, newRef))
+        .isEqualTo(AN_OBJECT_ID_3);
+  }
+
+  @Test
+  public void shouldNotUpdateAnyRefOfBatchWhenOneIsOutOfSync() throws Exception {
+    Project.NameKey projectName = A_TEST_PROJECT_NAME_KEY;
+    Ref upToDateRef = refOf(AN_OBJECT_ID_1);
+    Ref outOfSyncRef =
+        new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, aBranchRef() + "_other", AN_OBJECT_ID_1);
+    zookeeperContainer.createRefInZk(projectName, upToDateRef);
+    zookeeperContainer.createRefInZk(
+        projectName,
+        new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, outOfSyncRef.getName(), AN_OBJECT_ID_2));
+
+    ZkRefUpdate upToDateRefUpdate = new ZkRefUpdate(projectName, upToDateRef, AN_OBJECT_ID_3);
+    ZkRefUpdate outOfSyncRefUpdate = new ZkRefUpdate(projectName, outOfSyncRef, AN_OBJECT_ID_3);
+
+    assertThat(
+            zkSharedRefDatabase.compareAndPutAll(
+                ImmutableList.of(upToDateRefUpdate, outOfSyncRefUpdate)))
+        .containsExactly(
+            upToDateRefUpdate, ZkRefUpdate.Result.ABORTED,
+            outOfSyncRefUpdate, ZkRefUpdate.Result.CONFLICT);
+    assertThat(zookeeperContainer.readRefValueFromZk(projectName, upToDateRef))
+        .isEqualTo(AN_OBJECT_ID_1);
+    assertThat(zookeeperContainer.readRefValueFromZk(projectName, outOfSyncRef))
+        .isEqualTo(AN_OBJECT_ID_2);
+  }
+
+  @Test
+  public void casEngineShouldSucceedAtFirstAttemptWithoutContention() throws Exception {
+    Ref ref = refOf(AN_OBJECT_ID_1);
+    zookeeperContainer.createRefInZk(A_TEST_PROJECT_NAME_KEY, ref);
+
+    ZkCasEngine.CasResult result =
+        newCasEngine()
+            .compareAndSet(
+                pathFor(A_TEST_PROJECT_NAME_KEY, ref.getName()),
+                value -> true,
+                false,
+                writeObjectId(AN_OBJECT_ID_2))
+            .get();
+
+    assertThat(result.succeeded).isTrue();
+    assertThat(result.attempts).isEqualTo(1);
+  }
+
+  @Test
+  public void casEngineShouldRetryWhenConcurrentlyUpdatedWithTheExpectedValue() throws Exception {
+    Ref ref = refOf(AN_OBJECT_ID_1);
+    String path = pathFor(A_TEST_PROJECT_NAME_KEY, ref.getName());
+    zookeeperContainer.createRefInZk(A_TEST_PROJECT_NAME_KEY, ref);
+    AtomicBoolean concurrentUpdateDone = new AtomicBoolean();
+
+    ZkCasEngine.CasResult result =
+        newCasEngine()
+            .compareAndSet(
+                path,
+                value -> {
+                  if (concurrentUpdateDone.compareAndSet(false, true)) {
+                    setRefValueInZk(path, AN_OBJECT_ID_1);
+                  }
+                  return readObjectId(value).equals(AN_OBJECT_ID_1);
+                },
+                false,
+                writeObjectId(AN_OBJECT_ID_2))
+            .get();
+
+    assertThat(result.succeeded).isTrue();
+    assertThat(result.attempts).isEqualTo(2);
+    assertThat(zookeeperContainer.readRefValueFromZk(A_TEST_PROJECT_NAME_KEY, ref))
+        .isEqualTo(AN_OBJECT_ID_2);
+  }
+
+  @Test
+  public void casEngineShouldFailWhenConcurrentlyUpdatedWithAnotherValue() throws Exception {
+    Ref ref = refOf(AN_OBJECT_ID_1);
+    String path = pathFor(A_TEST_PROJECT_NAME_KEY, ref.getName());
+    zookeeperContainer.createRefInZk(A_TEST_PROJECT_NAME_KEY, ref);
+    AtomicBoolean concurrentUpdateDone = new AtomicBoolean();
+
+    ZkCasEngine.CasResult result =
+        newCasEngine()
+            .compareAndSet(
+                path,
+                value -> {
+                  if (concurrentUpdateDone.compareAndSet(false, true)) {
+                    setRefValueInZk(path, AN_OBJECT_ID_3);
+                  }
+                  return readObjectId(value).equals(AN_OBJECT_ID_1);
+                },
+                false,
+                writeObjectId(AN_OBJECT_ID_2))
+            .get();
+
+    assertThat(result.succeeded).isFalse();
+    assertThat(result.attempts).isEqualTo(2);
+    assertThat(zookeeperContainer.readRefValueFromZk(A_TEST_PROJECT_NAME_KEY, ref))
+        .isEqualTo(AN_OBJECT_ID_3);
+  }
+
+  @Test
+  public void mutexLockShouldAcquireTheDistributedLock() throws Exception {
+    String lockPath = "/locks" + pathFor(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME);
+
+    try (AutoCloseable lock =
+        zkSharedRefDatabase.lockRef(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME)) {
+      assertThat(getNumChildrenForPath(lockPath)).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void optimisticLockShouldNotAcquireTheDistributedLockWithoutConflicts() throws Exception {
+    ZkSharedRefDatabase optimisticRefDb = newRefDatabase(ZkRefLocker.Mode.OPTIMISTIC);
+    Ref oldRef = refOf(AN_OBJECT_ID_1);
+    zookeeperContainer.createRefInZk(A_TEST_PROJECT_NAME_KEY, oldRef);
+    String lockPath = "/locks" + pathFor(A_TEST_PROJECT_NAME_KEY, oldRef.getName());
+
+    try (AutoCloseable lock = optimisticRefDb.lockRef(A_TEST_PROJECT_NAME_KEY, oldRef.getName())) {
+      assertThat(optimisticRefDb.compareAndPut(A_TEST_PROJECT_NAME_KEY, oldRef, AN_OBJECT_ID_2))
+          .isTrue();
+    }
+
+    assertThat(zookeeperContainer.getCurator().checkExists().forPath(lockPath)).isNull();
+  }
+
+  @Test
+  public void optimisticLockShouldAcquireTheDistributedLockAfterConflicts() throws Exception {
+    ZkSharedRefDatabase optimisticRefDb = newRefDatabase(ZkRefLocker.Mode.OPTIMISTIC);
+    zookeeperContainer.createRefInZk(A_TEST_PROJECT_NAME_KEY, refOf(AN_OBJECT_ID_1));
+    String path = pathFor(A_TEST_PROJECT_NAME_KEY, aBranchRef());
+    String lockPath = "/locks" + path;
+
+    assertThat(
+            optimisticRefDb.compareAndPut(
+                A_TEST_PROJECT_NAME_KEY,
+                aBranchRef(),
+                racingExpectedValue(path, AN_OBJECT_ID_1),
+                AN_OBJECT_ID_2))
+        .isTrue();
+
+    try (AutoCloseable lock = optimisticRefDb.lockRef(A_TEST_PROJECT_NAME_KEY, aBranchRef())) {
+      assertThat(getNumChildrenForPath(lockPath)).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void optimisticLockShouldNotAcquireTheDistributedLockAfterOutOfSyncCompareAndPut()
+      throws Exception {
+    ZkSharedRefDatabase optimisticRefDb = newRefDatabase(ZkRefLocker.Mode.OPTIMISTIC);
+    zookeeperContainer.createRefInZk(A_TEST_PROJECT_NAME_KEY, refOf(AN_OBJECT_ID_1));
+    String lockPath = "/locks" + pathFor(A_TEST_PROJECT_NAME_KEY, aBranchRef());
+
+    assertThat(
+            optimisticRefDb.compareAndPut(
+                A_TEST_PROJECT_NAME_KEY, refOf(AN_OBJECT_ID_2), AN_OBJECT_ID_3))
+        .isFalse();
+
+    try (AutoCloseable lock = optimisticRefDb.lockRef(A_TEST_PROJECT_NAME_KEY, aBranchRef())) {
+      assertThat(zookeeperContainer.getCurator().checkExists().forPath(lockPath)).isNull();
+    }
+  }
+
+  @Test
+  public void optimisticLockShouldNotAcquireTheDistributedLockAfterOutOfSyncCompareAndPutAll()
+      throws Exception {
+    ZkSharedRefDatabase optimisticRefDb = newRefDatabase(ZkRefLocker.Mode.OPTIMISTIC);
+    zookeeperContainer.createRefInZk(A_TEST_PROJECT_NAME_KEY, refOf(AN_OBJECT_ID_1));
+    String lockPath = "/locks" + pathFor(A_TEST_PROJECT_NAME_KEY, aBranchRef());
+    ZkRefUpdate outOfSyncRefUpdate =
+        new ZkRefUpdate(A_TEST_PROJECT_NAME_KEY, refOf(AN_OBJECT_ID_2), AN_OBJECT_ID_3);
+
+    assertThat(optimisticRefDb.compareAndPutAll(ImmutableList.of(outOfSyncRefUpdate)))
+        .containsExactly(outOfSyncRefUpdate, ZkRefUpdate.Result.CONFLICT);
+
+    try (AutoCloseable lock = optimisticRefDb.lockRef(A_TEST_PROJECT_NAME_KEY, aBranchRef())) {
+      assertThat(zookeeperContainer.getCurator().checkExists().forPath(lockPath)).isNull();
+    }
+  }
+
+  @Test
+  public void lockShouldBeOnTheLiteralPathOfTheRefWhateverTheLayout() throws Exception {
+    ZkSharedRefDatabase hashedRefDb =
+        newRefDatabase(
+            ZkShardRouter.singleShard(newShard(ZkShard.DEFAULT, zookeeperContainer.getCurator())),
+            new ZkRefPaths(ZkPathLayout.Type.HASHED, ZkPathLayout.Type.LITERAL));
+    String lockPath = "/locks" + pathFor(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME);
+
+    try (AutoCloseable lock = hashedRefDb.lockRef(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME)) {
+      assertThat(getNumChildrenForPath(lockPath)).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void lockShouldBeReentrantWithoutAnotherDistributedLock() throws Exception {
+    String lockPath = "/locks" + pathFor(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME);
+
+    try (AutoCloseable lock =
+            zkSharedRefDatabase.lockRef(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME);
+        AutoCloseable reentrantLock =
+            zkSharedRefDatabase.lockRef(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME)) {
+      assertThat(getNumChildrenForPath(lockPath)).isEqualTo(1);
+    }
+    assertThat(getNumChildrenForPath(lockPath)).isEqualTo(0);
+  }
+
+  @Test
+  public void lockHeldByAnotherThreadShouldTimeOutWithoutGoingToZookeeper() throws Exception {
+    String lockPath = "/locks" + pathFor(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME);
+
+    try (AutoCloseable lock =
+        zkSharedRefDatabase.lockRef(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME)) {
+      CompletableFuture<AutoCloseable> concurrentLock =
+          CompletableFuture.supplyAsync(
+              () -> {
+                try {
+                  return zkSharedRefDatabase.lockRef(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME);
+                } catch (GlobalRefDbLockException e) {
+                  throw new CompletionException(e);
+                }
+              },
+              executor);
+
+      assertThat(getNumChildrenForPath(lockPath)).isEqualTo(1);
+      try {
+        concurrentLock.join();
+        assertWithMessage("Concurrent lock should have timed out").fail();
+      } catch (CompletionException e) {
+        assertThat(e).hasCauseThat().isInstanceOf(GlobalRefDbLockException.class);
+      }
+      assertThat(getNumChildrenForPath(lockPath)).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void unusedLocksShouldBeEvictedWhenTheRegistryIsFull() throws Exception {
+    zkSharedRefDatabase.lockRef(A_TEST_PROJECT_NAME_KEY, "refs/heads/one").close();
+    zkSharedRefDatabase.lockRef(A_TEST_PROJECT_NAME_KEY, "refs/heads/two").close();
+
+    assertThat(lockRegistry.size()).isAtMost(LOCK_REGISTRY_MAX_ENTRIES);
+  }
+
+  @Test
+  public void lockReaperShouldDeleteOnlyTheEmptyLockNodes() throws Exception {
+    String releasedLockPath = "/locks" + pathFor(A_TEST_PROJECT_NAME_KEY, "refs/heads/released");
+    String heldLockPath = "/locks" + pathFor(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME);
+    zkSharedRefDatabase.lockRef(A_TEST_PROJECT_NAME_KEY, "refs/heads/released").close();
+
+    try (AutoCloseable lock =
+        zkSharedRefDatabase.lockRef(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME)) {
+      assertThat(newLockReaper().reap()).isEqualTo(1);
+
+      assertThat(zookeeperContainer.getCurator().checkExists().forPath(releasedLockPath))
+          .isNull();
+      assertThat(getNumChildrenForPath(heldLockPath)).isEqualTo(1);
+    }
+
+    assertThat(newLockReaper().reap()).isEqualTo(4);
+    assertThat(getNumChildrenForPath(ZkLockReaper.LOCKS_ROOT)).isEqualTo(0);
+  }
+
+  @Test
+  public void binaryEncodingShouldStoreRawObjectIds() throws Exception {
+    ZkSharedRefDatabase binaryRefDb =
+        newRefDatabase(ZkRefLocker.Mode.MUTEX, ZkValueCodec.Encoding.BINARY);
+    Ref oldRef = refOf(AN_OBJECT_ID_1);
+    zookeeperContainer.createRefInZk(A_TEST_PROJECT_NAME_KEY, oldRef);
+
+    assertThat(binaryRefDb.compareAndPut(A_TEST_PROJECT_NAME_KEY, oldRef, AN_OBJECT_ID_2))
+        .isTrue();
+
+    byte[] valueInZk =
+        zookeeperContainer
+            .getCurator()
+            .getData()
+            .forPath(pathFor(A_TEST_PROJECT_NAME_KEY, oldRef.getName()));
+    assertThat(valueInZk).hasLength(21);
+    assertThat(zkSharedRefDatabase.isUpToDate(A_TEST_PROJECT_NAME_KEY, refOf(AN_OBJECT_ID_2)))
+        .isTrue();
+    assertThat(
+            zkSharedRefDatabase.compareAndPut(
+                A_TEST_PROJECT_NAME_KEY, refOf(AN_OBJECT_ID_2), AN_OBJECT_ID_3))
+        .isTrue();
+  }
+
+  @Test
+  public void binaryEncodingShouldCompareAndPutGenericValues() {
+    ZkSharedRefDatabase binaryRefDb =
+        newRefDatabase(ZkRefLocker.Mode.MUTEX, ZkValueCodec.Encoding.BINARY);
+
+    assertThat(binaryRefDb.compareAndPut(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME, null, 1L))
+        .isTrue();
+    assertThat(binaryRefDb.compareAndPut(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME, 1L, 2L))
+        .isTrue();
+    assertThat(binaryRefDb.get(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME, Long.class).get())
+        .isEqualTo(2L);
+    assertThat(binaryRefDb.get(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME, String.class).get())
+        .isEqualTo("2");
+  }
+
+  @Test
+  public void valueMigrationShouldRewriteOnlyTheLosslessValues() throws Exception {
+    zookeeperContainer.createRefInZk(A_TEST_PROJECT_NAME_KEY, refOf(AN_OBJECT_ID_1));
+    zkSharedRefDatabase.compareAndPut(A_TEST_PROJECT_NAME_KEY, "refs/meta/string", null, "foo");
+    zkSharedRefDatabase.compareAndPut(A_TEST_PROJECT_NAME_KEY, "refs/meta/number", null, 42);
+    zkSharedRefDatabase.lockRef(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME).close();
+
+    ZkValueMigration migration =
+        new ZkValueMigration(
+            ImmutableList.of(zookeeperContainer.getCurator()), executor, true, 1000);
+    assertThat(migration.migrate()).isEqualTo(2);
+
+    assertThat(zookeeperContainer.readRefValueFromZk(A_TEST_PROJECT_NAME_KEY, refOf(null)))
+        .isEqualTo(AN_OBJECT_ID_1);
+    assertThat(
+            zkSharedRefDatabase
+                .get(A_TEST_PROJECT_NAME_KEY, "refs/meta/string", String.class)
+                .get())
+        .isEqualTo("foo");
+    assertThat(
+            zkSharedRefDatabase
+                .get(A_TEST_PROJECT_NAME_KEY, "refs/meta/number", Integer.class)
+                .get())
+        .isEqualTo(42);
+    assertThat(
+            zkSharedRefDatabase.compareAndPut(A_TEST_PROJECT_NAME_KEY, "refs/meta/number", 42, 43))
+        .isTrue();
+  }
+
+  @Test
+  public void valueMigrationShouldResumeFromTheProjectsNotMigratedYet() throws Exception {
+    zookeeperContainer.createRefInZk(A_TEST_PROJECT_NAME_KEY, refOf(AN_OBJECT_ID_1));
+
+    ZkValueMigration migration =
+        new ZkValueMigration(
+            ImmutableList.of(zookeeperContainer.getCurator()), executor, true, 1000);
+    assertThat(migration.migrate()).isEqualTo(1);
+
+    Project.NameKey anotherProject = Project.nameKey("another-project");
+    zkSharedRefDatabase.compareAndPut(A_TEST_PROJECT_NAME_KEY, "refs/meta/number", null, 42);
+    zkSharedRefDatabase.compareAndPut(anotherProject, "refs/meta/number", null, 42);
+
+    assertThat(migration.migrate()).isEqualTo(1);
+    assertThat(
+            zkSharedRefDatabase.get(anotherProject, "refs/meta/number", Integer.class).get())
+        .isEqualTo(42);
+  }
+
+  @Test
+  public void valueMigrationShouldMigrateTheProjectsNamedLikeItsBookkeepingNodes()
+      throws Exception {
+    Project.NameKey seededProject = Project.nameKey("seeded");
+    zookeeperContainer.createRefInZk(seededProject, refOf(AN_OBJECT_ID_1));
+
+    ZkValueMigration migration =
+        new ZkValueMigration(
+            ImmutableList.of(zookeeperContainer.getCurator()), executor, true, 1000);
+
+    assertThat(migration.migrate()).isEqualTo(1);
+    assertThat(
+            zookeeperContainer
+                .getCurator()
+                .checkExists()
+                .forPath(ZkValueMigration.MIGRATED_ROOT + "/seeded"))
+        .isNotNull();
+  }
+
+  @Test
+  public void shouldRouteProjectsToTheirShardAndRebalanceThem() throws Exception {
+    Ref ref = refOf(AN_OBJECT_ID_1);
+    zookeeperContainer.createRefInZk(A_TEST_PROJECT_NAME_KEY, ref);
+
+    ImmutableList<ZkShard> shards =
+        ImmutableList.of(
+            newShard(ZkShard.DEFAULT, zookeeperContainer.getCurator()),
+            newShard("other", zookeeperContainer.getCurator().usingNamespace("other-shard")));
+    ZkShardRouter router =
+        new ZkShardRouter(shards, ImmutableListMultimap.of("other", A_TEST_PROJECT_NAME), false);
+    ZkSharedRefDatabase shardedRefDb = newRefDatabase(router);
+    assertThat(shardedRefDb.exists(A_TEST_PROJECT_NAME_KEY, ref.getName())).isFalse();
+    try {
+      new ZkShardRebalancer(router, 1000).rebalance(A_TEST_PROJECT_NAME_KEY, false);
+      assertWithMessage("Rebalancing without rebalancingShards should have been refused").fail();
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+
+    ZkShardRebalancer rebalancer =
+        new ZkShardRebalancer(
+            new ZkShardRouter(
+                shards, ImmutableListMultimap.of("other", A_TEST_PROJECT_NAME), false, true),
+            1000);
+    assertThat(rebalancer.rebalance(A_TEST_PROJECT_NAME_KEY, true))
+        .containsExactly(ZkShard.DEFAULT, 3);
+    assertThat(shardedRefDb.exists(A_TEST_PROJECT_NAME_KEY, ref.getName())).isFalse();
+
+    assertThat(rebalancer.rebalance(A_TEST_PROJECT_NAME_KEY, false))
+        .containsExactly(ZkShard.DEFAULT, 3);
+    assertThat(shardedRefDb.get(A_TEST_PROJECT_NAME_KEY, ref.getName(), ObjectId.class))
+        .isEqualTo(Optional.of(AN_OBJECT_ID_1));
+    assertThat(zkSharedRefDatabase.exists(A_TEST_PROJECT_NAME_KEY, ref.getName())).isFalse();
+    assertThat(rebalancer.rebalance(A_TEST_PROJECT_NAME_KEY, false)).isEmpty();
+  }
+
+  @Test
+  public void shouldReadTheRefsFromTheirPreviousShardWhilstRebalancing() throws Exception {
+    Ref updatedRef = refOf(AN_OBJECT_ID_1);
+    Ref movedRef =
+        new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, A_TEST_REF_NAME, AN_OBJECT_ID_2);
+    zookeeperContainer.createRefInZk(A_TEST_PROJECT_NAME_KEY, updatedRef);
+    zookeeperContainer.createRefInZk(A_TEST_PROJECT_NAME_KEY, movedRef);
+
+    CuratorFramework otherCurator = zookeeperContainer.getCurator().usingNamespace("other-shard");
+    ZkShardRouter router =
+        new ZkShardRouter(
+            ImmutableList.of(
+                newShard(ZkShard.DEFAULT, zookeeperContainer.getCurator()),
+                newShard("other", otherCurator)),
+            ImmutableListMultimap.of("other", A_TEST_PROJECT_NAME),
+            false,
+            true);
+    ZkSharedRefDatabase shardedRefDb = newRefDatabase(router);
+
+    assertThat(shardedRefDb.isUpToDate(A_TEST_PROJECT_NAME_KEY, updatedRef)).isTrue();
+    assertThat(shardedRefDb.exists(A_TEST_PROJECT_NAME_KEY, movedRef.getName())).isTrue();
+    assertThat(shardedRefDb.compareAndPut(A_TEST_PROJECT_NAME_KEY, updatedRef, AN_OBJECT_ID_3))
+        .isTrue();
+    String updatedPath = pathFor(A_TEST_PROJECT_NAME_KEY, updatedRef.getName());
+    assertThat(readObjectId(otherCurator.getData().forPath(updatedPath)))
+        .isEqualTo(AN_OBJECT_ID_3);
+
+    new ZkShardRebalancer(router, 1000).rebalance(A_TEST_PROJECT_NAME_KEY, false);
+    assertThat(zkSharedRefDatabase.exists(A_TEST_PROJECT_NAME_KEY, movedRef.getName())).isFalse();
+    assertThat(shardedRefDb.get(A_TEST_PROJECT_NAME_KEY, updatedRef.getName(), ObjectId.class))
+        .isEqualTo(Optional.of(AN_OBJECT_ID_3));
+    assertThat(shardedRefDb.get(A_TEST_PROJECT_NAME_KEY, movedRef.getName(), ObjectId.class))
+        .isEqualTo(Optional.of(AN_OBJECT_ID_2));
+  }
+
+  @Test
+  public void shouldStripeProjectsAcrossTheSessionsOfAShard() throws Exception {
+    ZkSession firstSession = newSession(zookeeperContainer.getCurator());
+    ZkSession secondSession = newSession(zookeeperContainer.newSession());
+    ZkShard shard = new ZkShard(ZkShard.DEFAULT, ImmutableList.of(firstSession, secondSession));
+    Project.NameKey secondSessionProject =
+        IntStream.range(0, 100)
+            .mapToObj(i -> Project.nameKey("project-" + i))
+            .filter(project -> shard.sessionFor(project) == secondSession)
+            .findFirst()
+            .get();
+
+    ZkSharedRefDatabase stripedRefDb = newRefDatabase(ZkShardRouter.singleShard(shard));
+    String refName = aBranchRef();
+    try (AutoCloseable lock = stripedRefDb.lockRef(secondSessionProject, refName)) {
+      String lockPath = ZkLockReaper.LOCKS_ROOT + pathFor(secondSessionProject, refName);
+      List<String> lockNodes = zookeeperContainer.getCurator().getChildren().forPath(lockPath);
+      assertThat(lockNodes).hasSize(1);
+      assertThat(
+              zookeeperContainer
+                  .getCurator()
+                  .checkExists()
+                  .forPath(lockPath + "/" + lockNodes.get(0))
+                  .getEphemeralOwner())
+          .isEqualTo(secondSession.getClient().getZookeeperClient().getZooKeeper().getSessionId());
+
+      assertThat(
+              stripedRefDb.compareAndPut(
+                  secondSessionProject,
+                  new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, refName, null),
+                  AN_OBJECT_ID_1))
+          .isTrue();
+    }
+    assertThat(zkSharedRefDatabase.get(secondSessionProject, refName, ObjectId.class))
+        .isEqualTo(Optional.of(AN_OBJECT_ID_1));
+  }
+
+  @Test
+  public void shouldMoveTheRefsToTheHashedLayoutOnline() throws Exception {
+    Ref updatedRef = refOf(AN_OBJECT_ID_1);
+    Ref movedRef =
+        new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, A_TEST_REF_NAME, AN_OBJECT_ID_2);
+    zookeeperContainer.createRefInZk(A_TEST_PROJECT_NAME_KEY, updatedRef);
+    zookeeperContainer.createRefInZk(A_TEST_PROJECT_NAME_KEY, movedRef);
+
+    ZkShardRouter router =
+        ZkShardRouter.singleShard(newShard(ZkShard.DEFAULT, zookeeperContainer.getCurator()));
+    ZkRefPaths refPaths = new ZkRefPaths(ZkPathLayout.Type.HASHED, ZkPathLayout.Type.LITERAL);
+    ZkSharedRefDatabase hashedRefDb = newRefDatabase(router, refPaths);
+    String hashedPath = refPaths.pathFor(A_TEST_PROJECT_NAME_KEY, updatedRef.getName());
+
+    assertThat(hashedRefDb.isUpToDate(A_TEST_PROJECT_NAME_KEY, updatedRef)).isTrue();
+    assertThat(hashedRefDb.isUpToDate(A_TEST_PROJECT_NAME_KEY, refOf(AN_OBJECT_ID_2))).isFalse();
+    assertThat(hashedRefDb.compareAndPut(A_TEST_PROJECT_NAME_KEY, updatedRef, AN_OBJECT_ID_3))
+        .isTrue();
+    assertThat(readObjectId(zookeeperContainer.getCurator().getData().forPath(hashedPath)))
+        .isEqualTo(AN_OBJECT_ID_3);
+
+    ZkPathLayoutMigration migration = new ZkPathLayoutMigration(router, refPaths, 1000);
+    ZkPathLayoutMigration.Outcome outcome = migration.migrate(A_TEST_PROJECT_NAME_KEY);
+    assertThat(outcome.migrated).isEqualTo(2);
+    assertThat(outcome.skipped).isEqualTo(0);
+
+    assertThat(
+            zookeeperContainer
+                .getCurator()
+                .checkExists()
+                .forPath(refPaths.previousLayout().get().refsRoot(A_TEST_PROJECT_NAME_KEY)))
+        .isNull();
+    assertThat(hashedRefDb.get(A_TEST_PROJECT_NAME_KEY, updatedRef.getName(), ObjectId.class))
+        .isEqualTo(Optional.of(AN_OBJECT_ID_3));
+    assertThat(hashedRefDb.get(A_TEST_PROJECT_NAME_KEY, movedRef.getName(), ObjectId.class))
+        .isEqualTo(Optional.of(AN_OBJECT_ID_2));
+  }
+
+  private ZkShard newShard(String name, CuratorFramework client) {
+    return new ZkShard(name, ImmutableList.of(newSession(client)));
+  }
+
+  private ZkSession newSession(CuratorFramework client) {
+    return new ZkSession(
+        client,
+        new ZkRefCache(client, ImmutableSet.of(), REF_CACHE_MAX_ENTRIES),
+        new ZkRefLocker(
+            new ZkLockRegistry(client, LOCK_REGISTRY_MAX_ENTRIES, LOCK_REGISTRY_IDLE_TIMEOUT_MS),
+            TRANSACTION_LOCK_TIMEOUT,
+            ZkRefLocker.Mode.MUTEX,
+            OPTIMISTIC_LOCK_MAX_CONFLICTS,
+            new RefContentionTracker(OPTIMISTIC_LOCK_CONFLICT_WINDOW_MS)));
+  }
+
+  private ZkSharedRefDatabase newRefDatabase(ZkShardRouter router) {
+    return newRefDatabase(router, ZkRefPaths.literal());
+  }
+
+  private ZkSharedRefDatabase newRefDatabase(ZkShardRouter router, ZkRefPaths refPaths) {
+    return new ZkSharedRefDatabase(
+        router,
+        refPaths,
+        ZkReadConsistency.local(),
+        ZkRefFilter.all(),
+        new ZkConnectionConfig(
+            new RetryNTimes(NUMBER_OF_RETRIES, SLEEP_BETWEEN_RETRIES_MS), TRANSACTION_LOCK_TIMEOUT),
+        stringDeserializerFactory,
+        new ZkValueCodec(ZkValueCodec.Encoding.ASCII),
+        new ZkSharedRefDbMetrics(new DisabledMetricMaker(), zookeeperContainer.getCurator()),
+        new ZkProjectRemover(executor, 10, 2, 1000),
+        executor);
+  }
+
+  private ZkLockReaper newLockReaper() {
+    return new ZkLockReaper(
+        ImmutableList.of(zookeeperContainer.getCurator()),
+        executor,
+        0,
+        0,
+        1000,
+        new DisabledMetricMaker());
+  }
+
+  private ZkSharedRefDatabase newRefDatabase(ZkRefLocker.Mode lockMode) {
+    return newRefDatabase(lockMode, ZkValueCodec.Encoding.ASCII);
+  }
+
+  private ZkSharedRefDatabase newRefDatabase(
+      ZkRefLocker.Mode lockMode, ZkValueCodec.Encoding valueEncoding) {
+    return newRefDatabase(lockMode, valueEncoding, ImmutableSet.of());
+  }
+
+  private ZkSharedRefDatabase newCachedRefDatabase() {
+    return newRefDatabase(
+        ZkRefLocker.Mode.MUTEX, ZkValueCodec.Encoding.ASCII, ImmutableSet.of(A_TEST_PROJECT_NAME));
+  }
+
+  private ZkSharedRefDatabase newRefDatabase(
+      ZkRefLocker.Mode lockMode,
+      ZkValueCodec.Encoding valueEncoding,
+      ImmutableSet<String> refCacheProjects) {
+    return new ZkSharedRefDatabase(
+        zookeeperContainer.getCurator(),
+        new ZkConnectionConfig(
+            new RetryNTimes(NUMBER_OF_RETRIES, SLEEP_BETWEEN_RETRIES_MS), TRANSACTION_LOCK_TIMEOUT),
+        stringDeserializerFactory,
+        new ZkRefCache(
+            zookeeperContainer.getCurator(), refCacheProjects, REF_CACHE_MAX_ENTRIES),
+        new ZkRefLocker(
+            lockRegistry,
+            TRANSACTION_LOCK_TIMEOUT,
+            lockMode,
+            OPTIMISTIC_LOCK_MAX_CONFLICTS,
+            new RefContentionTracker(OPTIMISTIC_LOCK_CONFLICT_WINDOW_MS)),
+        new ZkValueCodec(valueEncoding),
+        new ZkSharedRefDbMetrics(new DisabledMetricMaker(), zookeeperContainer.getCurator()),
+        executor);
+  }
+
+  private ZkCasEngine newCasEngine() {
+    return new ZkCasEngine(
+        new ZkAsyncClient(zookeeperContainer.getCurator()),
+        new RetryNTimes(NUMBER_OF_RETRIES, SLEEP_BETWEEN_RETRIES_MS),
+        executor);
+  }
+
+  private void setRefValueInZk(String path, ObjectId value) {
+    try {
+      zookeeperContainer.getCurator().setData().inBackground().forPath(path, writeObjectId(value));
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Returns an expected value of a generic Compare and Swap which, when first compared, rewrites
+   * the same value at {@code path} so that the Compare and Swap conflicts once.
+   */
+  private Object racingExpectedValue(String path, ObjectId value) {
+    AtomicBoolean concurrentUpdateDone = new AtomicBoolean();
+    return new Object() {
+      @Override
+      public String toString() {
+        if (concurrentUpdateDone.compareAndSet(false, true)) {
+          setRefValueInZk(path, value);
+        }
+        return value.getName();
+      }
+    };
+  }
+
+  private boolean waitForIsUpToDate(Project.NameKey projectName, Ref ref, boolean expected)
+      throws Exception {
+    long deadline = System.currentTimeMillis() + WATCH_TIMEOUT_MS;
+    while (zkSharedRefDatabase.isUpToDate(projectName, ref) != expected
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    return zkSharedRefDatabase.isUpToDate(projectName, ref);
+  }
+
   @Override
   public String testBranch() {
     return "branch_" + nameRule.getMethodName();
@@ -0,0 +1,135 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.entities.RefNames;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ZkStartupGateTest {
+  private static final Project.NameKey A_PROJECT = Project.nameKey("a-project");
+  private static final long STARTUP_TIMEOUT_MS = 10000;
+
+  private TestingServer server;
+  private CuratorFramework curator;
+  private ScheduledExecutorService executor;
+  private InMemoryRepository repo;
+  private GitRepositoryManager repoManager;
+  private ZkRefCache refCache;
+
+  @Before
+  public void setup() throws Exception {
+    server = new TestingServer();
+    curator = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryOneTime(100));
+    executor = Executors.newSingleThreadScheduledExecutor();
+    repo = new InMemoryRepository(new DfsRepositoryDescription(A_PROJECT.get()));
+    repoManager = mock(GitRepositoryManager.class);
+    when(repoManager.openRepository(A_PROJECT)).thenReturn(repo);
+    refCache = new ZkRefCache(curator, ImmutableSet.of(A_PROJECT.get()), 100);
+  }
+
+  @After
+  public void cleanup() throws Exception {
+    executor.shutdown();
+    curator.close();
+    server.close();
+  }
+
+  @Test
+  public void startShouldWaitForTheWarmUpOfTheHotRefs() throws Exception {
+    createRef(RefNames.REFS_CONFIG);
+    createRef("refs/heads/master");
+    createRef("refs/heads/stable");
+    createRef("refs/changes/01/1/1");
+    curator.start();
+
+    ZkStartupGate gate = newStartupGate(STARTUP_TIMEOUT_MS);
+    gate.start();
+
+    assertThat(gate.isReady()).isTrue();
+    assertThat(refCache.size()).isEqualTo(3L);
+  }
+
+  @Test
+  public void startShouldNotWaitPastTheStartupTimeout() throws Exception {
+    server.stop();
+    curator.start();
+
+    ZkStartupGate gate = newStartupGate(100);
+    long startMs = System.currentTimeMillis();
+    gate.start();
+
+    assertThat(System.currentTimeMillis() - startMs).isLessThan(STARTUP_TIMEOUT_MS);
+    assertThat(gate.isReady()).isFalse();
+  }
+
+  private ZkStartupGate newStartupGate(long startupTimeoutMs) {
+    return new ZkStartupGate(
+        ZkShardRouter.singleShard(
+            new ZkShard(
+                ZkShard.DEFAULT,
+                curator,
+                refCache,
+                new ZkRefLocker(
+                    new ZkLockRegistry(curator, 10, 60000),
+                    1000L,
+                    ZkRefLocker.Mode.MUTEX,
+                    3,
+                    new RefContentionTracker(60000)))),
+        ZkRefPaths.literal(),
+        ZkRefFilter.all(),
+        repoManager,
+        executor,
+        startupTimeoutMs,
+        ImmutableList.of(A_PROJECT.get()),
+        ImmutableList.of(RefNames.REFS_CONFIG, "refs/heads/*"),
+        new DisabledMetricMaker());
+  }
+
+  private void createRef(String refName) throws IOException {
+    ObjectId id;
+    try (ObjectInserter inserter = repo.newObjectInserter()) {
+      id = inserter.insert(Constants.OBJ_BLOB, refName.getBytes(UTF_8));
+      inserter.flush();
+    }
+    RefUpdate update = repo.updateRef(refName);
+    update.setNewObjectId(id);
+    assertThat(update.update()).isEqualTo(RefUpdate.Result.NEW);
+  }
+}
@@ -0,0 +1,71 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class ZkTreeDumpTest {
+
+  @Test
+  public void pathOrderShouldFollowTheDepthFirstWalkOfSortedChildren() {
+    List<String> paths = new ArrayList<>(Arrays.asList("/a-b", "/a/b", "/a", "/", "/a/b/c", "/ab"));
+
+    paths.sort(ZkTreeDump.PATH_ORDER);
+
+    assertThat(paths).containsExactly("/", "/a", "/a/b", "/a/b/c", "/a-b", "/ab").inOrder();
+  }
+
+  @Test
+  public void diffShouldReportTheAddedRemovedAndChangedNodes() throws Exception {
+    byte[] from = dump(node("/", 0, ""), node("/a", 0, "1"), node("/a/removed", 0, "2"));
+    byte[] to = dump(node("/", 0, ""), node("/a", 1, "3"), node("/a/added", 0, "2"));
+    List<String> report = new ArrayList<>();
+
+    ZkTreeDump.Diff diff;
+    try (ZkTreeDump.Reader fromReader = new ZkTreeDump.Reader(new ByteArrayInputStream(from));
+        ZkTreeDump.Reader toReader = new ZkTreeDump.Reader(new ByteArrayInputStream(to))) {
+      diff = ZkTreeDump.diff(fromReader, toReader, report::add);
+    }
+
+    assertThat(report)
+        .containsExactly("~ /a (version 0 -> 1)", "+ /a/added", "- /a/removed")
+        .inOrder();
+    assertThat(diff.added).isEqualTo(1);
+    assertThat(diff.removed).isEqualTo(1);
+    assertThat(diff.changed).isEqualTo(1);
+  }
+
+  private static ZkTreeDump.Node node(String path, int version, String value) {
+    return new ZkTreeDump.Node(path, version + 1L, version, value.getBytes(UTF_8));
+  }
+
+  private static byte[] dump(ZkTreeDump.Node... nodes) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (ZkTreeDump.Writer writer = new ZkTreeDump.Writer(out)) {
+      for (ZkTreeDump.Node node : nodes) {
+        writer.write(node);
+      }
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,72 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.zookeeper;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.nio.charset.StandardCharsets;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Test;
+
+public class ZkValueCodecTest implements RefFixture {
+  private final ZkValueCodec binaryCodec = new ZkValueCodec(ZkValueCodec.Encoding.BINARY);
+  private final ZkValueCodec asciiCodec = new ZkValueCodec(ZkValueCodec.Encoding.ASCII);
+
+  @Test
+  public void shouldReadObjectIdsInBothFormats() {
+    assertThat(ZkValueCodec.decodeObjectId(binaryCodec.encodeObjectId(AN_OBJECT_ID_1)))
+        .isEqualTo(AN_OBJECT_ID_1);
+    assertThat(ZkValueCodec.decodeObjectId(asciiCodec.encodeObjectId(AN_OBJECT_ID_1)))
+        .isEqualTo(AN_OBJECT_ID_1);
+  }
+
+  @Test
+  public void shouldRoundTripNumbers() {
+    for (long value : new long[] {0, 1, -1, 63, -64, 300, Long.MAX_VALUE, Long.MIN_VALUE}) {
+      assertThat(ZkValueCodec.decodeBinary(binaryCodec.encode(value))).isEqualTo(value);
+    }
+    for (int value : new int[] {0, -1, Integer.MAX_VALUE, Integer.MIN_VALUE}) {
+      assertThat(ZkValueCodec.decodeBinary(binaryCodec.encode(value))).isEqualTo(value);
+    }
+  }
+
+  @Test
+  public void shouldStoreStringsAsAscii() {
+    assertThat(ZkValueCodec.isBinary(binaryCodec.encode("foo"))).isFalse();
+  }
+
+  @Test
+  public void shouldMatchValuesAcrossFormats() {
+    assertThat(ZkValueCodec.matches(binaryCodec.encode(42L), 42L)).isTrue();
+    assertThat(ZkValueCodec.matches(binaryCodec.encode(42L), "42")).isTrue();
+    assertThat(ZkValueCodec.matches(binaryCodec.encode(42L), 43L)).isFalse();
+    assertThat(ZkValueCodec.matches(asciiCodec.encode(42L), 42L)).isTrue();
+  }
+
+  @Test
+  public void shouldConvertOnlyLosslessValuesToBinary() {
+    assertThat(ZkValueCodec.toBinary(ascii(AN_OBJECT_ID_1.name())))
+        .isEqualTo(binaryCodec.encodeObjectId(AN_OBJECT_ID_1));
+    assertThat(ZkValueCodec.toBinary(ascii("42"))).isEqualTo(binaryCodec.encode(42L));
+    assertThat(ZkValueCodec.toBinary(ascii("042"))).isNull();
+    assertThat(ZkValueCodec.toBinary(ascii("ABCDEF0123456789ABCDEF0123456789ABCDEF01"))).isNull();
+    assertThat(ZkValueCodec.toBinary(ascii("foo"))).isNull();
+    assertThat(ZkValueCodec.toBinary(binaryCodec.encodeObjectId(ObjectId.zeroId()))).isNull();
+  }
+
+  private static byte[] ascii(String value) {
+    return value.getBytes(StandardCharsets.US_ASCII);
+  }
+}
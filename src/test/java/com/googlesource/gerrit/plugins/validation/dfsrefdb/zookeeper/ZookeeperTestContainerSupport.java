@@ -21,6 +21,8 @@ import static org.mockito.Mockito.when;
 
 import com.google.gerrit.entities.Project;
 import com.google.gerrit.server.config.PluginConfigFactory;
+import java.util.ArrayList;
+import java.util.List;
 import org.apache.curator.framework.CuratorFramework;
 import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.ObjectId;
@@ -43,6 +45,7 @@ public class ZookeeperTestContainerSupport {
   private ZookeeperContainer container;
   private ZookeeperConfig configuration;
   private CuratorFramework curator;
+  private final List<CuratorFramework> sessions = new ArrayList<>();
 
   public CuratorFramework getCurator() {
     return curator;
@@ -74,7 +77,16 @@ public class ZookeeperTestContainerSupport {
     this.curator = configuration.buildCurator();
   }
 
+  /** Opens another Zookeeper session, closed by {@link #cleanup()}. */
+  public CuratorFramework newSession() {
+    CuratorFramework session =
+        configuration.buildCurator(configuration.getShards().get(0), sessions.size() + 1);
+    sessions.add(session);
+    return session;
+  }
+
   public void cleanup() {
+    sessions.forEach(CuratorFramework::close);
     this.curator.delete();
     this.container.stop();
   }